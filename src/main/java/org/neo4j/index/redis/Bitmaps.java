@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Operations on bitmaps as stored by redis SETBIT, where bit {@code n} is
+ * bit {@code 7 - n % 8} (counting from the least significant bit) of byte
+ * {@code n / 8}.
+ */
+final class Bitmaps
+{
+    /**
+     * Redis rejects SETBIT offsets of 2^32 and above, so no id can be that big.
+     */
+    static final long MAX_ID = (1L << 32) - 1;
+
+    private Bitmaps()
+    {
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code id} can't be a bit of a bitmap.
+     */
+    static void checkId( long id )
+    {
+        if ( id < 0 || id > MAX_ID )
+        {
+            throw new IllegalArgumentException( "Id " + id + " is beyond the " + MAX_ID +
+                    " a bitmap index can hold" );
+        }
+    }
+
+    /**
+     * Sets bit {@code id} of {@code bitmap} with SETBIT, which the Jedis
+     * pipeline doesn't have, see {@link RedisPipeline}.
+     */
+    static void set( Pipeline pipeline, byte[] bitmap, long id, boolean value )
+    {
+        checkId( id );
+        ((RedisPipeline) pipeline).setbit( bitmap, id, value );
+    }
+
+    /**
+     * @return the bitwise AND of all {@code bitmaps}, or {@code null} if any
+     * of them is {@code null}, i.e. a missing key.
+     */
+    static byte[] and( List<byte[]> bitmaps )
+    {
+        byte[] result = null;
+        for ( byte[] bitmap : bitmaps )
+        {
+            if ( bitmap == null )
+            {
+                return null;
+            }
+            if ( result == null )
+            {
+                result = bitmap.clone();
+                continue;
+            }
+            int length = Math.min( result.length, bitmap.length );
+            byte[] anded = new byte[length];
+            for ( int i = 0; i < length; i++ )
+            {
+                anded[i] = (byte) (result[i] & bitmap[i]);
+            }
+            result = anded;
+        }
+        return result;
+    }
+
+    /**
+     * Reads the intersection of the given bitmaps as pages of ids, each page
+     * a slice of the bitmaps covering {@code pageSize} ids of the id space.
+     * The slices of all bitmaps are read in one round trip per page.
+     */
+    static IdPages pages( final byte[][] postings, int pageSize )
+    {
+        final int sliceLength = Math.max( 1, pageSize / 8 );
+        return new IdPages()
+        {
+            private int offset;
+
+            public long[] next( Jedis resource )
+            {
+                List<byte[]> slices;
+                int end = offset + sliceLength - 1;
+                if ( postings.length == 1 )
+                {
+                    slices = Collections.singletonList( resource.substr( postings[0], offset, end ) );
+                }
+                else
+                {
+                    Pipeline pipeline = resource.pipelined();
+                    for ( byte[] posting : postings )
+                    {
+                        pipeline.substr( posting, offset, end );
+                    }
+                    slices = new ArrayList<byte[]>( postings.length );
+                    for ( Object reply : pipeline.execute() )
+                    {
+                        slices.add( Replies.bulk( reply ) );
+                    }
+                }
+                byte[] result = and( slices );
+                if ( result == null || result.length == 0 )
+                {
+                    // The end of the shortest bitmap
+                    return null;
+                }
+                long[] ids = setBits( result, offset * 8L );
+                offset += sliceLength;
+                return ids;
+            }
+        };
+    }
+
+    /**
+     * @return the positions of all set bits in {@code bitmap}, offset by
+     * {@code firstBit}, in ascending order.
+     */
+    static long[] setBits( byte[] bitmap, long firstBit )
+    {
+        int count = 0;
+        for ( byte b : bitmap )
+        {
+            count += Integer.bitCount( b & 0xFF );
+        }
+        long[] ids = new long[count];
+        int k = 0;
+        for ( int i = 0; i < bitmap.length; i++ )
+        {
+            int b = bitmap[i] & 0xFF;
+            while ( b != 0 )
+            {
+                int highest = Integer.numberOfLeadingZeros( b ) - 24;
+                ids[k++] = firstBit + i * 8L + highest;
+                b &= ~(0x80 >>> highest);
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.io.ByteArrayOutputStream;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Small utilities for building and parsing the byte[] keys and members
+ * sent to redis.
+ */
+final class Bytes
+{
+    private Bytes()
+    {
+    }
+
+    static byte[] encode( String string )
+    {
+        return SafeEncoder.encode( string );
+    }
+
+    static String decode( byte[] bytes )
+    {
+        return SafeEncoder.encode( bytes );
+    }
+
+    /**
+     * Compares {@code a} and {@code b} as unsigned bytes, the order redis
+     * keeps members of a sorted set with equal scores in.
+     */
+    static int compare( byte[] a, byte[] b )
+    {
+        for ( int i = 0; i < Math.min( a.length, b.length ); i++ )
+        {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if ( difference != 0 )
+            {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    static void write( ByteArrayOutputStream out, byte[] bytes )
+    {
+        out.write( bytes, 0, bytes.length );
+    }
+
+    /**
+     * Writes {@code value} as an unsigned LEB128 varint, i.e. 7 bits per
+     * byte with the high bit set on all but the last byte.
+     */
+    static void writeVarLong( ByteArrayOutputStream out, long value )
+    {
+        while ( (value & ~0x7FL) != 0 )
+        {
+            out.write( (int) ((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+        out.write( (int) value );
+    }
+
+    static long readVarLong( byte[] source, int offset )
+    {
+        long value = 0;
+        for ( int shift = 0; offset < source.length; shift += 7 )
+        {
+            byte b = source[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            if ( (b & 0x80) == 0 )
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException( "Truncated varint" );
+    }
+
+    /**
+     * @return the number of bytes {@link #writeVarLong(ByteArrayOutputStream, long)}
+     * writes for {@code value}.
+     */
+    static int varLongSize( long value )
+    {
+        int size = 1;
+        while ( (value & ~0x7FL) != 0 )
+        {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static void writeFixedLong( ByteArrayOutputStream out, long value )
+    {
+        for ( int shift = 56; shift >= 0; shift -= 8 )
+        {
+            out.write( (int) (value >>> shift) );
+        }
+    }
+
+    static long readFixedLong( byte[] source, int offset )
+    {
+        long value = 0;
+        for ( int i = 0; i < 8; i++ )
+        {
+            value = (value << 8) | (source[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Writes {@code bytes} prefixed by its length as a varint, so that
+     * several segments can be concatenated without any delimiter.
+     */
+    static void writeSegment( ByteArrayOutputStream out, byte[] bytes )
+    {
+        writeVarLong( out, bytes.length );
+        write( out, bytes );
+    }
+
+    /**
+     * Parses a decimal number straight from its ASCII bytes, without going
+     * through a {@link String}.
+     */
+    static long parseDecimal( byte[] bytes )
+    {
+        if ( bytes.length == 0 )
+        {
+            throw new NumberFormatException( "Empty number" );
+        }
+        boolean negative = bytes[0] == '-';
+        long value = 0;
+        for ( int i = negative ? 1 : 0; i < bytes.length; i++ )
+        {
+            int digit = bytes[i] - '0';
+            if ( digit < 0 || digit > 9 )
+            {
+                throw new NumberFormatException( decode( bytes ) );
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Escapes all glob characters in {@code bytes} so that they can be used
+     * as a literal part of a redis KEYS pattern.
+     */
+    static void writeGlobEscaped( ByteArrayOutputStream out, byte[] bytes )
+    {
+        for ( byte b : bytes )
+        {
+            if ( b == '*' || b == '?' || b == '[' || b == ']' || b == '\\' )
+            {
+                out.write( '\\' );
+            }
+            out.write( b );
+        }
+    }
+}
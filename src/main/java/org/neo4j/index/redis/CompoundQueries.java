@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ZParams;
+
+/**
+ * Evaluates a {@link CompoundQuery} in redis, for index types with
+ * {@link IndexType#hasSetPostings(RedisKeys) set postings}.
+ *
+ * Each AND and OR with more than one part is stored with SINTERSTORE or
+ * SUNIONSTORE into a temporary key under the index prefix, and the NOTs of
+ * an AND are subtracted from it with SDIFFSTORE. The result is read with
+ * SMEMBERS and the temporary keys deleted, all in one pipeline. They're
+ * also set to expire, in case the pipeline never gets to the DEL.
+ *
+ * The same pipeline checks with SISMEMBER which of the terms each id changed
+ * in the transaction is a member of in redis, so that the query can be
+ * evaluated for those ids with the transaction state laid over.
+ *
+ * An {@link OrderedQuery} intersects the result with the sorted set of its
+ * sort key with ZINTERSTORE, weighing the result 0 so that the scores are
+ * the sort values, and reads its window with ZRANGE or ZREVRANGE.
+ */
+final class CompoundQueries
+{
+    static final int TEMP_KEY_SECONDS = 60;
+
+    private CompoundQueries()
+    {
+    }
+
+    /**
+     * @param postings the posting of each of the {@link CompoundQuery#terms()},
+     * or {@code null} for a term nothing has been stored with.
+     * @param touched the ids to check the memberships of.
+     */
+    static Evaluation evaluate( Jedis resource, RedisKeys keys, CompoundQuery query, byte[][] postings,
+            long[] touched )
+    {
+        Pipeline pipeline = resource.pipelined();
+        for ( long id : touched )
+        {
+            for ( byte[] posting : postings )
+            {
+                if ( posting != null )
+                {
+                    pipeline.sismember( posting, keys.id( id ) );
+                }
+            }
+        }
+        List<byte[]> temps = new ArrayList<byte[]>();
+        byte[] result = compile( pipeline, keys, query, postings, new int[1],
+                UUID.randomUUID().toString(), temps );
+        if ( result != null )
+        {
+            pipeline.smembers( result );
+        }
+        if ( !temps.isEmpty() )
+        {
+            pipeline.del( temps.toArray( new byte[temps.size()][] ) );
+        }
+        List<Object> replies = pipeline.execute();
+
+        boolean[][] memberships = new boolean[touched.length][postings.length];
+        int reply = 0;
+        for ( int i = 0; i < touched.length; i++ )
+        {
+            for ( int t = 0; t < postings.length; t++ )
+            {
+                if ( postings[t] != null )
+                {
+                    memberships[i][t] = Replies.integer( replies.get( reply++ ) ) == 1;
+                }
+            }
+        }
+        long[] ids = result != null ? IndexType.ids( keys, replies.get( reply ) ) : new long[0];
+        return new Evaluation( ids, memberships );
+    }
+
+    /**
+     * @param postings the posting of each of the {@link CompoundQuery#terms()}
+     * of the query, or {@code null} for a term nothing has been stored with.
+     * @return the ids in the window of the query, in sort order.
+     */
+    static long[] order( Jedis resource, RedisKeys keys, OrderedQuery query, byte[][] postings,
+            String storedSortKey )
+    {
+        if ( query.getCount() == 0 )
+        {
+            return new long[0];
+        }
+        Pipeline pipeline = resource.pipelined();
+        List<byte[]> temps = new ArrayList<byte[]>();
+        String name = UUID.randomUUID().toString();
+        byte[] result = compile( pipeline, keys, query.getQuery(), postings, new int[1], name, temps );
+        if ( result != null )
+        {
+            byte[] sorted = temp( keys, name, temps );
+            pipeline.zinterstore( sorted, new ZParams().weights( 0, 1 ), result,
+                    keys.sortValues( storedSortKey ) );
+            pipeline.expire( sorted, TEMP_KEY_SECONDS );
+            int start = query.getOffset();
+            int end = query.getCount() == -1 ? -1 :
+                    (int) Math.min( (long) start + query.getCount() - 1, Integer.MAX_VALUE );
+            if ( query.isDescending() )
+            {
+                pipeline.zrevrange( sorted, start, end );
+            }
+            else
+            {
+                pipeline.zrange( sorted, start, end );
+            }
+        }
+        if ( !temps.isEmpty() )
+        {
+            pipeline.del( temps.toArray( new byte[temps.size()][] ) );
+        }
+        List<Object> replies = pipeline.execute();
+        // The window is the last reply but for the DEL
+        return result != null ? IndexType.ids( keys, replies.get( replies.size() - 2 ) ) : new long[0];
+    }
+
+    /**
+     * Adds the commands computing {@code query} to the pipeline.
+     *
+     * @return the key holding the result, or {@code null} if it's empty.
+     */
+    private static byte[] compile( Pipeline pipeline, RedisKeys keys, CompoundQuery query,
+            byte[][] postings, int[] position, String name, List<byte[]> temps )
+    {
+        switch ( query.getOperator() )
+        {
+        case TERM:
+            return postings[position[0]++];
+        case OR:
+            List<byte[]> sets = new ArrayList<byte[]>();
+            for ( CompoundQuery child : query.getChildren() )
+            {
+                byte[] set = compile( pipeline, keys, child, postings, position, name, temps );
+                if ( set != null )
+                {
+                    sets.add( set );
+                }
+            }
+            if ( sets.size() <= 1 )
+            {
+                return sets.isEmpty() ? null : sets.get( 0 );
+            }
+            byte[] union = temp( keys, name, temps );
+            pipeline.sunionstore( union, sets.toArray( new byte[sets.size()][] ) );
+            pipeline.expire( union, TEMP_KEY_SECONDS );
+            return union;
+        case AND:
+            List<byte[]> included = new ArrayList<byte[]>();
+            List<byte[]> excluded = new ArrayList<byte[]>();
+            boolean empty = false;
+            for ( CompoundQuery child : query.getChildren() )
+            {
+                boolean not = child.getOperator() == CompoundQuery.Operator.NOT;
+                byte[] set = compile( pipeline, keys, not ? child.getChildren().get( 0 ) : child,
+                        postings, position, name, temps );
+                if ( set == null )
+                {
+                    // Still compiled, to keep track of the term positions
+                    empty |= !not;
+                }
+                else
+                {
+                    (not ? excluded : included).add( set );
+                }
+            }
+            if ( empty )
+            {
+                return null;
+            }
+            if ( included.size() == 1 && excluded.isEmpty() )
+            {
+                return included.get( 0 );
+            }
+            byte[] intersection = temp( keys, name, temps );
+            if ( included.size() == 1 )
+            {
+                excluded.add( 0, included.get( 0 ) );
+            }
+            else
+            {
+                pipeline.sinterstore( intersection, included.toArray( new byte[included.size()][] ) );
+                excluded.add( 0, intersection );
+            }
+            if ( excluded.size() > 1 )
+            {
+                pipeline.sdiffstore( intersection, excluded.toArray( new byte[excluded.size()][] ) );
+            }
+            pipeline.expire( intersection, TEMP_KEY_SECONDS );
+            return intersection;
+        default:
+            throw new IllegalArgumentException( "NOT must be combined with AND in " + query );
+        }
+    }
+
+    private static byte[] temp( RedisKeys keys, String name, List<byte[]> temps )
+    {
+        byte[] temp = keys.temp( name + "." + temps.size() );
+        temps.add( temp );
+        return temp;
+    }
+
+    static class Evaluation
+    {
+        private final long[] ids;
+        private final boolean[][] memberships;
+
+        Evaluation( long[] ids, boolean[][] memberships )
+        {
+            this.ids = ids;
+            this.memberships = memberships;
+        }
+
+        /**
+         * @return the ids matching the query in redis.
+         */
+        long[] getIds()
+        {
+            return ids;
+        }
+
+        /**
+         * @return whether the {@code touched}th id is a member of the
+         * {@code term}th term in redis.
+         */
+        boolean isMember( int touched, int term )
+        {
+            return memberships[touched][term];
+        }
+    }
+}
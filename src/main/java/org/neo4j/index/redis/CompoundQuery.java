@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query object for {@link RedisIndex#query(Object)} combining exact
+ * key:value terms with AND, OR and NOT, evaluated in redis with set
+ * operations. Created with {@link #term(String, Object)}, {@link #and},
+ * {@link #or} and {@link #not}, or parsed from a string like
+ * <pre>
+ * name:Mattias AND (city:Malmo OR city:"New York") AND NOT status:inactive
+ * </pre>
+ * where NOT binds tighter than AND, which binds tighter than OR. Values
+ * with whitespace, parentheses or quotes are quoted, with backslash
+ * escapes. Since there's no set of all entities to subtract from, a NOT
+ * must be one of the parts of an AND with at least one part which isn't.
+ */
+public final class CompoundQuery
+{
+    enum Operator
+    {
+        TERM, AND, OR, NOT
+    }
+
+    private final Operator operator;
+    private final String key;
+    private final Object value;
+    private final List<CompoundQuery> children;
+
+    private CompoundQuery( Operator operator, String key, Object value, List<CompoundQuery> children )
+    {
+        this.operator = operator;
+        this.key = key;
+        this.value = value;
+        this.children = children;
+    }
+
+    public static CompoundQuery term( String key, Object value )
+    {
+        if ( key == null || value == null )
+        {
+            throw new IllegalArgumentException( "Null key or value in " + key + ":" + value );
+        }
+        return new CompoundQuery( Operator.TERM, key, value, Collections.<CompoundQuery>emptyList() );
+    }
+
+    public static CompoundQuery and( CompoundQuery... queries )
+    {
+        boolean positive = false;
+        for ( CompoundQuery query : queries )
+        {
+            positive |= query.operator != Operator.NOT;
+        }
+        if ( !positive )
+        {
+            throw new IllegalArgumentException( "AND with nothing but NOTs" );
+        }
+        return combine( Operator.AND, queries );
+    }
+
+    public static CompoundQuery or( CompoundQuery... queries )
+    {
+        for ( CompoundQuery query : queries )
+        {
+            if ( query.operator == Operator.NOT )
+            {
+                throw new IllegalArgumentException( "NOT can only be combined with AND, not in " +
+                        Arrays.asList( queries ) );
+            }
+        }
+        return combine( Operator.OR, queries );
+    }
+
+    public static CompoundQuery not( CompoundQuery query )
+    {
+        if ( query.operator == Operator.NOT )
+        {
+            return query.children.get( 0 );
+        }
+        return new CompoundQuery( Operator.NOT, null, null, Collections.singletonList( query ) );
+    }
+
+    private static CompoundQuery combine( Operator operator, CompoundQuery[] queries )
+    {
+        if ( queries.length == 0 )
+        {
+            throw new IllegalArgumentException( "Empty " + operator );
+        }
+        if ( queries.length == 1 )
+        {
+            return queries[0];
+        }
+        return new CompoundQuery( operator, null, null, Arrays.asList( queries.clone() ) );
+    }
+
+    /**
+     * Parses a query in the syntax described in {@link CompoundQuery}.
+     *
+     * @throws IllegalArgumentException if the query can't be parsed.
+     */
+    public static CompoundQuery parse( String query )
+    {
+        return new Parser( query ).parse();
+    }
+
+    Operator getOperator()
+    {
+        return operator;
+    }
+
+    String getKey()
+    {
+        return key;
+    }
+
+    Object getValue()
+    {
+        return value;
+    }
+
+    List<CompoundQuery> getChildren()
+    {
+        return children;
+    }
+
+    /**
+     * @return the terms of this query, in the order they appear in it.
+     */
+    List<CompoundQuery> terms()
+    {
+        List<CompoundQuery> terms = new ArrayList<CompoundQuery>();
+        addTerms( terms );
+        return terms;
+    }
+
+    private void addTerms( List<CompoundQuery> terms )
+    {
+        if ( operator == Operator.TERM )
+        {
+            terms.add( this );
+        }
+        for ( CompoundQuery child : children )
+        {
+            child.addTerms( terms );
+        }
+    }
+
+    /**
+     * @param terms whether an entity matches each of the {@link #terms()}.
+     * @return whether the entity matches this query.
+     */
+    boolean matches( boolean[] terms )
+    {
+        return matches( terms, new int[1] );
+    }
+
+    private boolean matches( boolean[] terms, int[] position )
+    {
+        switch ( operator )
+        {
+        case TERM:
+            return terms[position[0]++];
+        case NOT:
+            return !children.get( 0 ).matches( terms, position );
+        default:
+            // All children are evaluated to keep track of the term positions
+            boolean and = operator == Operator.AND;
+            boolean result = and;
+            for ( CompoundQuery child : children )
+            {
+                boolean matches = child.matches( terms, position );
+                result = and ? result && matches : result || matches;
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        switch ( operator )
+        {
+        case TERM:
+            return Parser.quote( key, true ) + ":" + Parser.quote( value.toString(), false );
+        case NOT:
+            return "NOT " + children.get( 0 );
+        default:
+            StringBuilder builder = new StringBuilder( "(" );
+            for ( CompoundQuery child : children )
+            {
+                if ( builder.length() > 1 )
+                {
+                    builder.append( " " ).append( operator ).append( " " );
+                }
+                builder.append( child );
+            }
+            return builder.append( ")" ).toString();
+        }
+    }
+
+    private static class Parser
+    {
+        private final String query;
+        private int position;
+
+        Parser( String query )
+        {
+            this.query = query;
+        }
+
+        CompoundQuery parse()
+        {
+            CompoundQuery result = or();
+            skipWhitespace();
+            if ( position < query.length() )
+            {
+                throw error( "Unexpected '" + query.charAt( position ) + "'" );
+            }
+            if ( result.operator == Operator.NOT )
+            {
+                throw error( "NOT must be combined with AND" );
+            }
+            return result;
+        }
+
+        private CompoundQuery or()
+        {
+            List<CompoundQuery> parts = new ArrayList<CompoundQuery>();
+            parts.add( and() );
+            while ( operator( "OR" ) )
+            {
+                parts.add( and() );
+            }
+            try
+            {
+                return CompoundQuery.or( parts.toArray( new CompoundQuery[parts.size()] ) );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                throw error( e.getMessage() );
+            }
+        }
+
+        private CompoundQuery and()
+        {
+            List<CompoundQuery> parts = new ArrayList<CompoundQuery>();
+            parts.add( unary() );
+            while ( operator( "AND" ) )
+            {
+                parts.add( unary() );
+            }
+            if ( parts.size() == 1 )
+            {
+                return parts.get( 0 );
+            }
+            try
+            {
+                return CompoundQuery.and( parts.toArray( new CompoundQuery[parts.size()] ) );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                throw error( e.getMessage() );
+            }
+        }
+
+        private CompoundQuery unary()
+        {
+            if ( operator( "NOT" ) )
+            {
+                return CompoundQuery.not( unary() );
+            }
+            skipWhitespace();
+            if ( position < query.length() && query.charAt( position ) == '(' )
+            {
+                position++;
+                CompoundQuery result = or();
+                skipWhitespace();
+                if ( position >= query.length() || query.charAt( position ) != ')' )
+                {
+                    throw error( "Missing ')'" );
+                }
+                position++;
+                return result;
+            }
+            String key = word( true );
+            if ( position >= query.length() || query.charAt( position ) != ':' )
+            {
+                throw error( "Expected key:value" );
+            }
+            position++;
+            return CompoundQuery.term( key, word( false ) );
+        }
+
+        /**
+         * @return whether the next word is {@code operator}, skipping it if so.
+         */
+        private boolean operator( String operator )
+        {
+            skipWhitespace();
+            int end = position + operator.length();
+            if ( query.startsWith( operator, position ) &&
+                    (end == query.length() || Character.isWhitespace( query.charAt( end ) ) ||
+                            query.charAt( end ) == '(') )
+            {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private String word( boolean key )
+        {
+            skipWhitespace();
+            StringBuilder word = new StringBuilder();
+            boolean quoted = position < query.length() && query.charAt( position ) == '"';
+            if ( quoted )
+            {
+                position++;
+            }
+            while ( position < query.length() )
+            {
+                char c = query.charAt( position );
+                if ( quoted ? c == '"' : Character.isWhitespace( c ) || c == '(' || c == ')' ||
+                        c == '"' || (key && c == ':') )
+                {
+                    break;
+                }
+                if ( c == '\\' && position + 1 < query.length() )
+                {
+                    c = query.charAt( ++position );
+                }
+                word.append( c );
+                position++;
+            }
+            if ( quoted )
+            {
+                if ( position >= query.length() )
+                {
+                    throw error( "Missing '\"'" );
+                }
+                position++;
+            }
+            else if ( word.length() == 0 )
+            {
+                throw error( "Expected a " + (key ? "key" : "value") );
+            }
+            return word.toString();
+        }
+
+        private void skipWhitespace()
+        {
+            while ( position < query.length() && Character.isWhitespace( query.charAt( position ) ) )
+            {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error( String message )
+        {
+            return new IllegalArgumentException( message + " at " + position + " in '" + query + "'" );
+        }
+
+        static String quote( String value, boolean key )
+        {
+            boolean plain = value.length() > 0;
+            StringBuilder quoted = new StringBuilder( value.length() + 2 ).append( '"' );
+            for ( int i = 0; i < value.length(); i++ )
+            {
+                char c = value.charAt( i );
+                plain &= !Character.isWhitespace( c ) && c != '(' && c != ')' && c != '"' &&
+                        c != '\\' && !(key && c == ':');
+                if ( c == '"' || c == '\\' )
+                {
+                    quoted.append( '\\' );
+                }
+                quoted.append( c );
+            }
+            return plain ? value : quoted.append( '"' ).toString();
+        }
+    }
+}
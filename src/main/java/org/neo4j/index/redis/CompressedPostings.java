@@ -0,0 +1,397 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Postings stored as roaring-style chunks, used by {@link IndexType#compressed}.
+ *
+ * The ids of a posting are split into chunks of {@link #CHUNK_SIZE} ids by
+ * their high bits. The posting key itself is a set of the chunk numbers in
+ * use and each chunk is a redis string at {@link RedisKeys#part(byte[], long)}
+ * holding a sequence of records:
+ * <ul>
+ * <li>{@link #ADD}/{@link #REMOVE} followed by the 16 low bits of an id,
+ * appended by writes with APPEND so that no read is needed to write.</li>
+ * <li>{@link #ARRAY} followed by a varint count and the delta-encoded low bits
+ * of that many ids, for sparse chunks.</li>
+ * <li>{@link #BITMAP} followed by a bitmap of all {@link #CHUNK_SIZE} low bits,
+ * for dense chunks.</li>
+ * </ul>
+ * A chunk is decoded by replaying its records in order. Reads rewrite chunks
+ * which have accumulated many add/remove records into a single array or
+ * bitmap container.
+ */
+final class CompressedPostings
+{
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int WORDS = CHUNK_SIZE / 64;
+
+    // An array container costs up to 3 bytes per id, a bitmap a fixed 8k
+    private static final int ARRAY_MAX_SIZE = 4096;
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte ARRAY = 3;
+    static final byte BITMAP = 4;
+
+    private CompressedPostings()
+    {
+    }
+
+    static long chunk( long id )
+    {
+        return id >>> CHUNK_BITS;
+    }
+
+    static byte[] add( long id )
+    {
+        return op( ADD, id );
+    }
+
+    static byte[] remove( long id )
+    {
+        return op( REMOVE, id );
+    }
+
+    private static byte[] op( byte type, long id )
+    {
+        return new byte[] { type, (byte) (id >>> 8), (byte) id };
+    }
+
+    /**
+     * Reads the intersection of the given postings as sorted pages of ids,
+     * enough chunks per page to cover {@code pageSize} ids of the id space.
+     * Only chunks present in all postings are fetched, in one MGET per page.
+     */
+    static IdPages pages( final RedisKeys keys, final byte[][] postings, int pageSize )
+    {
+        final int chunksPerPage = Math.max( 1, pageSize >>> CHUNK_BITS );
+        return new IdPages()
+        {
+            private List<Long> chunks;
+            private int position;
+
+            public long[] next( Jedis resource )
+            {
+                if ( chunks == null )
+                {
+                    chunks = readChunks( resource, keys, postings );
+                }
+                if ( position >= chunks.size() )
+                {
+                    return null;
+                }
+                List<Long> pageChunks = chunks.subList( position,
+                        Math.min( position + chunksPerPage, chunks.size() ) );
+                position += pageChunks.size();
+                return readPage( resource, keys, postings, pageChunks );
+            }
+        };
+    }
+
+    private static List<Long> readChunks( Jedis resource, RedisKeys keys, byte[][] postings )
+    {
+        Set<Long> chunks = null;
+        for ( byte[] posting : postings )
+        {
+            Set<Long> postingChunks = new HashSet<Long>();
+            for ( byte[] member : resource.smembers( posting ) )
+            {
+                postingChunks.add( keys.id( member ) );
+            }
+            if ( chunks == null )
+            {
+                chunks = postingChunks;
+            }
+            else
+            {
+                chunks.retainAll( postingChunks );
+            }
+        }
+        List<Long> sortedChunks = new ArrayList<Long>( chunks );
+        Collections.sort( sortedChunks );
+        return sortedChunks;
+    }
+
+    private static long[] readPage( Jedis resource, RedisKeys keys, byte[][] postings,
+            List<Long> chunks )
+    {
+        byte[][] chunkKeys = new byte[chunks.size() * postings.length][];
+        int k = 0;
+        for ( Long chunk : chunks )
+        {
+            for ( byte[] posting : postings )
+            {
+                chunkKeys[k++] = keys.part( posting, chunk );
+            }
+        }
+        List<byte[]> data = resource.mget( chunkKeys );
+
+        long[] result = new long[0];
+        int size = 0;
+        k = 0;
+        for ( Long chunk : chunks )
+        {
+            long[] words = null;
+            for ( int p = 0; p < postings.length; p++, k++ )
+            {
+                byte[] chunkData = data.get( k );
+                long[] postingWords = replay( chunkData );
+                if ( chunkData != null && shouldCompact( chunkData.length, postingWords ) )
+                {
+                    compact( resource, postings[p], keys.id( chunk ), chunkKeys[k], chunkData, postingWords );
+                }
+                words = words == null ? postingWords : and( words, postingWords );
+            }
+            int cardinality = cardinality( words );
+            if ( size + cardinality > result.length )
+            {
+                result = Arrays.copyOf( result, Math.max( size + cardinality, result.length * 2 ) );
+            }
+            size = addIds( chunk << CHUNK_BITS, words, result, size );
+        }
+        return size == result.length ? result : Arrays.copyOf( result, size );
+    }
+
+    /**
+     * Replays the records of a chunk into a bit set of its low bits.
+     */
+    static long[] replay( byte[] data )
+    {
+        long[] words = new long[WORDS];
+        if ( data == null )
+        {
+            return words;
+        }
+        RecordReader reader = new RecordReader( data );
+        while ( reader.hasMore() )
+        {
+            byte type = reader.readByte();
+            switch ( type )
+            {
+            case ADD:
+                int added = reader.readLow();
+                words[added >>> 6] |= 1L << added;
+                break;
+            case REMOVE:
+                int removed = reader.readLow();
+                words[removed >>> 6] &= ~(1L << removed);
+                break;
+            case ARRAY:
+                int count = reader.readVarInt();
+                int value = 0;
+                for ( int i = 0; i < count; i++ )
+                {
+                    value += reader.readVarInt();
+                    words[value >>> 6] |= 1L << value;
+                }
+                break;
+            case BITMAP:
+                for ( int i = 0; i < CHUNK_SIZE / 8; i++ )
+                {
+                    int b = reader.readByte() & 0xFF;
+                    while ( b != 0 )
+                    {
+                        int bit = Integer.numberOfLeadingZeros( b ) - 24;
+                        int v = i * 8 + bit;
+                        words[v >>> 6] |= 1L << v;
+                        b &= ~(0x80 >>> bit);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException( "Unknown record type " + type );
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Encodes the low bits in {@code words} as a single array or bitmap
+     * container, whichever is appropriate.
+     */
+    static byte[] encode( long[] words )
+    {
+        int cardinality = cardinality( words );
+        if ( cardinality > ARRAY_MAX_SIZE )
+        {
+            byte[] data = new byte[1 + CHUNK_SIZE / 8];
+            data[0] = BITMAP;
+            for ( int v = nextSetBit( words, 0 ); v != -1; v = nextSetBit( words, v + 1 ) )
+            {
+                data[1 + (v >>> 3)] |= 0x80 >>> (v & 7);
+            }
+            return data;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 4 + cardinality * 2 );
+        out.write( ARRAY );
+        Bytes.writeVarLong( out, cardinality );
+        int previous = 0;
+        for ( int v = nextSetBit( words, 0 ); v != -1; v = nextSetBit( words, v + 1 ) )
+        {
+            Bytes.writeVarLong( out, v - previous );
+            previous = v;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A chunk is worth rewriting when it's at least twice the size of, and
+     * some records longer than, its compact encoding.
+     */
+    static boolean shouldCompact( int length, long[] words )
+    {
+        int cardinality = cardinality( words );
+        int compactLength = cardinality > ARRAY_MAX_SIZE ? 1 + CHUNK_SIZE / 8 : 4 + cardinality * 2;
+        return length > compactLength * 2 + 64;
+    }
+
+    /**
+     * Rewrites a chunk in its compact form, unless it has been written to
+     * since it was read. Empty chunks are removed from the posting.
+     */
+    private static void compact( Jedis resource, byte[] posting, byte[] chunkMember,
+            byte[] chunkKey, byte[] data, long[] words )
+    {
+        resource.watch( chunkKey );
+        if ( !Arrays.equals( data, resource.get( chunkKey ) ) )
+        {
+            resource.unwatch();
+            return;
+        }
+        Transaction transaction = resource.multi();
+        if ( cardinality( words ) == 0 )
+        {
+            transaction.del( chunkKey );
+            transaction.srem( posting, chunkMember );
+        }
+        else
+        {
+            transaction.set( chunkKey, encode( words ) );
+        }
+        // A null result means that a concurrent write won, the next read retries
+        transaction.exec();
+    }
+
+    private static long[] and( long[] words, long[] other )
+    {
+        for ( int i = 0; i < words.length; i++ )
+        {
+            words[i] &= other[i];
+        }
+        return words;
+    }
+
+    static int cardinality( long[] words )
+    {
+        int cardinality = 0;
+        for ( long word : words )
+        {
+            cardinality += Long.bitCount( word );
+        }
+        return cardinality;
+    }
+
+    private static int addIds( long base, long[] words, long[] target, int size )
+    {
+        for ( int v = nextSetBit( words, 0 ); v != -1; v = nextSetBit( words, v + 1 ) )
+        {
+            target[size++] = base | v;
+        }
+        return size;
+    }
+
+    private static int nextSetBit( long[] words, int from )
+    {
+        int index = from >>> 6;
+        if ( index >= words.length )
+        {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while ( true )
+        {
+            if ( word != 0 )
+            {
+                return index * 64 + Long.numberOfTrailingZeros( word );
+            }
+            if ( ++index == words.length )
+            {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    private static class RecordReader
+    {
+        private final byte[] data;
+        private int pos;
+
+        RecordReader( byte[] data )
+        {
+            this.data = data;
+        }
+
+        boolean hasMore()
+        {
+            return pos < data.length;
+        }
+
+        byte readByte()
+        {
+            return data[pos++];
+        }
+
+        int readLow()
+        {
+            int low = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            return low;
+        }
+
+        int readVarInt()
+        {
+            int value = 0;
+            for ( int shift = 0; ; shift += 7 )
+            {
+                byte b = data[pos++];
+                value |= (b & 0x7F) << shift;
+                if ( (b & 0x80) == 0 )
+                {
+                    return value;
+                }
+            }
+        }
+    }
+}
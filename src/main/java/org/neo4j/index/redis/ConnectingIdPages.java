@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+/**
+ * {@link IdPages} which acquire a connection from the data source only when
+ * they read from redis themselves, f.ex. so that threads waiting for an
+ * identical read in flight, see {@link ReadCoalescer}, don't hold one.
+ */
+interface ConnectingIdPages
+{
+    /**
+     * @return the ids of the next page, possibly empty, or {@code null} if
+     * there are no more pages.
+     */
+    long[] next( RedisDataSource dataSource );
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Reads of indexes with {@link RedisIndexImplementation#CONFIG_KEY_DEFERRED_READS}
+ * set, which are asked for but not sent to redis until the hits of one of
+ * them are first iterated or sized. At that point all reads deferred by the
+ * same thread so far are sent together, plain set postings in one pipeline
+ * per index, so that a loop of lookups costs one round trip instead of one
+ * per lookup.
+ */
+class DeferredReads
+{
+    // Bounds what a thread which never looks at its hits can hold on to
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private final ThreadLocal<Batch> current = new ThreadLocal<Batch>();
+
+    /**
+     * Computes the postings of a read once its batch is sent.
+     */
+    interface Postings
+    {
+        /**
+         * @return the postings to intersect, or {@code null} if there can't
+         * be any hits.
+         */
+        byte[][] get( Jedis resource, RedisKeys keys );
+    }
+
+    /**
+     * @return pages which send the batch of the current thread, including
+     * this read, when first read from.
+     */
+    IdPages defer( RegisteredIndex index, Postings postings )
+    {
+        final Entry entry = new Entry( index, postings );
+        Batch batch = current.get();
+        if ( batch == null || !batch.add( entry ) )
+        {
+            batch = new Batch();
+            batch.add( entry );
+            current.set( batch );
+        }
+        final Batch entryBatch = batch;
+        return new IdPages()
+        {
+            public long[] next( Jedis resource )
+            {
+                entryBatch.send( resource );
+                return entry.pages != null ? entry.pages.next( resource ) : null;
+            }
+        };
+    }
+
+    private static class Entry
+    {
+        private final RegisteredIndex index;
+        private final Postings postings;
+        private IdPages pages;
+
+        Entry( RegisteredIndex index, Postings postings )
+        {
+            this.index = index;
+            this.postings = postings;
+        }
+    }
+
+    private static class Batch
+    {
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private boolean sent;
+        private RuntimeException failure;
+
+        /**
+         * @return {@code false} if the batch has already been sent or is full.
+         */
+        synchronized boolean add( Entry entry )
+        {
+            if ( sent || entries.size() >= MAX_BATCH_SIZE )
+            {
+                return false;
+            }
+            entries.add( entry );
+            return true;
+        }
+
+        synchronized void send( Jedis resource )
+        {
+            if ( failure != null )
+            {
+                throw failure;
+            }
+            if ( sent )
+            {
+                return;
+            }
+            sent = true;
+            try
+            {
+                Map<RegisteredIndex, List<Entry>> byIndex = new LinkedHashMap<RegisteredIndex, List<Entry>>();
+                for ( Entry entry : entries )
+                {
+                    List<Entry> indexEntries = byIndex.get( entry.index );
+                    if ( indexEntries == null )
+                    {
+                        indexEntries = new ArrayList<Entry>();
+                        byIndex.put( entry.index, indexEntries );
+                    }
+                    indexEntries.add( entry );
+                }
+                for ( Map.Entry<RegisteredIndex, List<Entry>> indexEntries : byIndex.entrySet() )
+                {
+                    send( resource, indexEntries.getKey(), indexEntries.getValue() );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        private void send( Jedis resource, RegisteredIndex index, List<Entry> indexEntries )
+        {
+            RedisKeys keys = index.getKeys();
+            byte[][][] postings = new byte[indexEntries.size()][][];
+            for ( int i = 0; i < postings.length; i++ )
+            {
+                postings[i] = indexEntries.get( i ).postings.get( resource, keys );
+            }
+            IdPages[] pages = index.getType().pagesOfEach( resource, keys, postings, index.getPageSize() );
+            for ( int i = 0; i < pages.length; i++ )
+            {
+                indexEntries.get( i ).pages = pages[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.kernel.impl.index.IndexStore;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Keeps the resolved metadata of each index, i.e. its {@link IndexType},
+ * {@link RedisKeys} and index handle, so that the {@link IndexStore} doesn't
+ * have to be consulted for every command and every read. Entries are
+ * invalidated when an index is created or deleted and replaced when an
+ * index is looked up with a config different from the registered one, or
+ * when its stored config has changed, e.g. by
+ * {@link org.neo4j.graphdb.index.IndexManager#setConfiguration}. The
+ * {@link IndexStore} replaces the config map of an index whenever it's set,
+ * so noticing that only takes a map lookup and a reference comparison.
+ */
+class IndexRegistry
+{
+    private final RedisDataSource dataSource;
+    private final ConcurrentMap<IndexIdentifier, RegisteredIndex> indexes =
+            new ConcurrentHashMap<IndexIdentifier, RegisteredIndex>();
+
+    IndexRegistry( RedisDataSource dataSource )
+    {
+        this.dataSource = dataSource;
+    }
+
+    RegisteredIndex get( IndexIdentifier identifier )
+    {
+        RegisteredIndex index = indexes.get( identifier );
+        Map<String, String> storedConfig = storedConfig( identifier );
+        if ( index == null || index.storedConfig != storedConfig )
+        {
+            if ( storedConfig == null )
+            {
+                throw new IllegalArgumentException( "No index " + identifier );
+            }
+            index = register( identifier, storedConfig, storedConfig );
+        }
+        return index;
+    }
+
+    /**
+     * Returns the registered index for {@code identifier}, re-registering it
+     * if {@code config} differs from the config it was registered with or
+     * if its stored config has changed, i.e. if the index has been
+     * reconfigured or re-created.
+     */
+    RegisteredIndex get( IndexIdentifier identifier, Map<String, String> config )
+    {
+        RegisteredIndex index = indexes.get( identifier );
+        Map<String, String> storedConfig = storedConfig( identifier );
+        if ( index == null || index.storedConfig != storedConfig ||
+                !index.config.equals( withIndexId( config, index.config ) ) )
+        {
+            index = register( identifier, withIndexId( config, storedConfig ), storedConfig );
+        }
+        return index;
+    }
+
+    private Map<String, String> storedConfig( IndexIdentifier identifier )
+    {
+        return dataSource.getIndexStore().get( identifier.getEntityType(), identifier.getIndexName() );
+    }
+
+    /**
+     * @return {@code config} with the index id of {@code storedConfig}, if
+     * it has none of its own. Ids are only ever allocated when an index is
+     * created, see {@link RedisTransaction}, never when looking one up.
+     */
+    private static Map<String, String> withIndexId( Map<String, String> config,
+            Map<String, String> storedConfig )
+    {
+        String indexId = storedConfig != null ?
+                storedConfig.get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) : null;
+        if ( indexId == null || config.get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) != null )
+        {
+            return config;
+        }
+        Map<String, String> result = new HashMap<String, String>( config );
+        result.put( RedisIndexImplementation.CONFIG_KEY_INDEX_ID, indexId );
+        return result;
+    }
+
+    void invalidate( IndexIdentifier identifier )
+    {
+        indexes.remove( identifier );
+    }
+
+    private RegisteredIndex register( IndexIdentifier identifier, Map<String, String> config,
+            Map<String, String> storedConfig )
+    {
+        RegisteredIndex index = new RegisteredIndex( identifier, config, storedConfig,
+                dataSource.getSweeper() != null );
+        indexes.put( identifier, index );
+        return index;
+    }
+
+    static class RegisteredIndex
+    {
+        private final Map<String, String> config;
+        // The instance in the index store when registered, if any
+        private final Map<String, String> storedConfig;
+        private final IndexType type;
+        private final IndexIdentifier identifier;
+        private volatile RedisKeys keys;
+        private final int pageSize;
+        private final boolean deferredReads;
+        private final boolean sweeping;
+        private volatile Index<?> handle;
+
+        RegisteredIndex( IndexIdentifier identifier, Map<String, String> config,
+                Map<String, String> storedConfig, boolean sweeping )
+        {
+            this.config = new HashMap<String, String>( config );
+            this.storedConfig = storedConfig;
+            this.type = RedisDataSource.getIndexType( config );
+            this.identifier = identifier;
+            this.pageSize = RedisDataSource.getPageSize( config );
+            this.deferredReads = RedisDataSource.defersReads( config );
+            this.sweeping = sweeping;
+        }
+
+        Map<String, String> getConfig()
+        {
+            return config;
+        }
+
+        IndexType getType()
+        {
+            return type;
+        }
+
+        RedisKeys getKeys()
+        {
+            // Not until needed, an index about to be created has no id yet
+            if ( keys == null )
+            {
+                keys = new RedisKeys( identifier, config, sweeping );
+            }
+            return keys;
+        }
+
+        /**
+         * @return roughly how many ids to read from redis at a time when
+         * iterating over hits.
+         */
+        int getPageSize()
+        {
+            return pageSize;
+        }
+
+        /**
+         * @return whether reads are deferred and sent in batches, see
+         * {@link DeferredReads}.
+         */
+        boolean defersReads()
+        {
+            return deferredReads;
+        }
+
+        /**
+         * @return whether {@link #queryPages(Jedis, String, Object)} can
+         * take {@code query}, which is either a {@link NumericRange} or a
+         * "prefix*" string.
+         */
+        static boolean isQuery( Object query )
+        {
+            return query instanceof NumericRange || SortedValues.prefix( query ) != null;
+        }
+
+        /**
+         * @return the ids of the entities matching {@code query} for
+         * {@code key}, or {@code null} if nothing has been stored with that key.
+         */
+        IdPages queryPages( Jedis resource, String key, Object query )
+        {
+            RedisKeys keys = getKeys();
+            String storedKey = keys.lookupStoredKey( resource, key );
+            if ( storedKey == null )
+            {
+                return null;
+            }
+            if ( query instanceof NumericRange )
+            {
+                return type.rangePages( keys, storedKey, (NumericRange) query, pageSize );
+            }
+            return type.prefixPages( keys, key, storedKey, SortedValues.prefix( query ), pageSize );
+        }
+
+        /**
+         * @return the index handle handed out for this index, or {@code null}
+         * if none has been created yet. Handles are stateless and can be
+         * shared between threads.
+         */
+        Index<?> getHandle()
+        {
+            return handle;
+        }
+
+        void setHandle( Index<?> handle )
+        {
+            this.handle = handle;
+        }
+    }
+}
@@ -19,126 +19,944 @@
  */
 package org.neo4j.index.redis;
 
-import static org.neo4j.index.redis.RedisDataSource.formRedisEndNodeKey;
-import static org.neo4j.index.redis.RedisDataSource.formRedisKeyForEntityAndKeyRemoval;
-import static org.neo4j.index.redis.RedisDataSource.formRedisKeyForEntityRemoval;
-import static org.neo4j.index.redis.RedisDataSource.formRedisKeyForKeyValue;
-import static org.neo4j.index.redis.RedisDataSource.formRedisStartNodeKey;
-
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.index.base.IndexIdentifier;
 
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 
+/**
+ * How the entries of an index are stored in redis. {@link #multiple_values},
+ * {@link #bitmap}, {@link #compressed}, {@link #id_ordered} and
+ * {@link #numeric} can have any number of entities per
+ * key/value and keep reverse information per entity so that it can be removed
+ * without knowing its values. {@link #single_value} maps each key/value to
+ * one entity.
+ */
 public enum IndexType
 {
-    multiple_values
+    /**
+     * Stores each key/value (and start/end node of relationships) as a redis
+     * set of entity ids, split by id range if
+     * {@link RedisIndexImplementation#CONFIG_KEY_POSTING_RANGE_SIZE} is set,
+     * see {@link RangePostings}.
+     */
+    multiple_values,
+    /**
+     * Stores each key/value (and start/end node of relationships) as a redis
+     * bitmap indexed by entity id, which costs one bit per id in the id
+     * space. Suitable for low-cardinality values over dense id spaces.
+     */
+    bitmap
     {
         @Override
-        public void add( Pipeline pipeline, IndexIdentifier identifier, String key, String value,
-                long id, long startNode, long endNode )
+        protected void addToPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
         {
-            String keyValueKey = formRedisKeyForKeyValue( identifier, key, value );
-            String entityAndKeyRemovalKey = formRedisKeyForEntityAndKeyRemoval(
-                    identifier, key, id );
-            String entityRemovalKey = formRedisKeyForEntityRemoval( identifier, id );
-            
-            pipeline.sadd( keyValueKey, "" + id );
-            pipeline.sadd( entityAndKeyRemovalKey, value );
-            pipeline.sadd( entityRemovalKey, key );
-            
-            // For relationship queries
-            if ( identifier.getEntityType() == Relationship.class )
-            {
-                pipeline.sadd( formRedisStartNodeKey( identifier, startNode ), "" + id );
-                pipeline.sadd( formRedisEndNodeKey( identifier, endNode ), "" + id );
-            }
+            Bitmaps.set( pipeline, posting, id, true );
         }
 
         @Override
-        public void removeEntity( Pipeline pipeline, RedisTransaction neo4jTransaction,
-                IndexIdentifier identifier, long id )
+        protected void removeFromPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
         {
-            String entityRemovalKey = formRedisKeyForEntityRemoval( identifier, id );
-            Set<String> keys = neo4jTransaction.getMembersFromOutsideTransaction( entityRemovalKey );
-            for ( String key : keys )
+            if ( id <= Bitmaps.MAX_ID )
             {
-                removeEntityKey( pipeline, neo4jTransaction, identifier, key, id );
+                Bitmaps.set( pipeline, posting, id, false );
             }
-            pipeline.del( entityRemovalKey );
         }
 
         @Override
-        public void removeEntityKey( Pipeline pipeline, RedisTransaction neo4jTransaction,
-                IndexIdentifier identifier, String key, long id )
+        public void checkId( long id )
+        {
+            Bitmaps.checkId( id );
+        }
+
+        @Override
+        public IdPages pages( RedisKeys keys, byte[][] postings, int pageSize )
+        {
+            return Bitmaps.pages( postings, pageSize );
+        }
+
+        @Override
+        public boolean hasSetPostings( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public boolean readsAtOnce( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public long count( Jedis resource, RedisKeys keys, byte[][] postings, long[] added,
+                long[] removed )
+        {
+            return -1;
+        }
+
+        @Override
+        public IdPages[] pagesOfEach( Jedis resource, RedisKeys keys, byte[][][] postings, int pageSize )
+        {
+            return separatePages( keys, postings, pageSize );
+        }
+    },
+    /**
+     * Stores each posting as chunks of compressed ids, see
+     * {@link CompressedPostings}. Suitable for values with very many
+     * entities, since they're stored and transferred in a few bits per id
+     * and decoded straight into primitive arrays.
+     */
+    compressed
+    {
+        @Override
+        protected void addToPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+        {
+            long chunk = CompressedPostings.chunk( id );
+            pipeline.append( keys.part( posting, chunk ), CompressedPostings.add( id ) );
+            pipeline.sadd( posting, keys.id( chunk ) );
+        }
+
+        @Override
+        protected void removeFromPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+        {
+            // Also registers the chunk so that an all-removals chunk gets compacted away
+            long chunk = CompressedPostings.chunk( id );
+            pipeline.append( keys.part( posting, chunk ), CompressedPostings.remove( id ) );
+            pipeline.sadd( posting, keys.id( chunk ) );
+        }
+
+        @Override
+        public IdPages pages( RedisKeys keys, byte[][] postings, int pageSize )
+        {
+            return CompressedPostings.pages( keys, postings, pageSize );
+        }
+
+        @Override
+        public boolean hasSetPostings( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public boolean readsAtOnce( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public long count( Jedis resource, RedisKeys keys, byte[][] postings, long[] added,
+                long[] removed )
+        {
+            return -1;
+        }
+
+        @Override
+        public IdPages[] pagesOfEach( Jedis resource, RedisKeys keys, byte[][][] postings, int pageSize )
+        {
+            return separatePages( keys, postings, pageSize );
+        }
+    },
+    /**
+     * Stores each posting as a redis sorted set scored by entity id, see
+     * {@link SortedPostings}. Costs more memory than a set, but postings
+     * can be read in id order from any id and are intersected here rather
+     * than in redis.
+     */
+    id_ordered
+    {
+        @Override
+        protected void addToPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+        {
+            pipeline.zadd( posting, id, keys.id( id ) );
+        }
+
+        @Override
+        protected void removeFromPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+        {
+            pipeline.zrem( posting, keys.id( id ) );
+        }
+
+        @Override
+        public IdPages pages( RedisKeys keys, byte[][] postings, int pageSize )
+        {
+            return SortedPostings.pages( keys, postings, pageSize );
+        }
+
+        @Override
+        public long[] page( Jedis resource, RedisKeys keys, byte[] posting, long afterId, int limit )
+        {
+            return SortedPostings.page( resource, keys, posting, afterId, limit );
+        }
+
+        @Override
+        public IdPages[] pagesOfEach( Jedis resource, RedisKeys keys, byte[][][] postings, int pageSize )
+        {
+            return separatePages( keys, postings, pageSize );
+        }
+
+        @Override
+        public boolean hasSetPostings( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public boolean readsAtOnce( RedisKeys keys )
+        {
+            return false;
+        }
+
+        /**
+         * Like the sets, with ZCARD and a ZSCORE per transaction id. An
+         * intersection can't be counted without reading it.
+         */
+        @Override
+        public long count( Jedis resource, RedisKeys keys, byte[][] postings, long[] added,
+                long[] removed )
         {
-            String entityAndKeyRemovalKey = formRedisKeyForEntityAndKeyRemoval( identifier, key, id );
-            for ( String value : neo4jTransaction.getMembersFromOutsideTransaction( entityAndKeyRemovalKey ) )
+            if ( postings.length != 1 )
+            {
+                return -1;
+            }
+            Pipeline pipeline = resource.pipelined();
+            pipeline.zcard( postings[0] );
+            for ( long[] ids : new long[][] { added, removed } )
+            {
+                for ( long id : ids )
+                {
+                    pipeline.zscore( postings[0], keys.id( id ) );
+                }
+            }
+            List<Object> replies = pipeline.execute();
+            List<Object> memberships = new ArrayList<Object>( replies.size() - 1 );
+            for ( Object score : replies.subList( 1, replies.size() ) )
             {
-                String keyToRemove = formRedisKeyForKeyValue( identifier, key, value );
-                pipeline.srem( keyToRemove, "" + id );
+                memberships.add( score != null ? 1L : 0L );
             }
-            pipeline.del( entityAndKeyRemovalKey );
+            return correctedCount( Replies.integer( replies.get( 0 ) ), memberships, added.length );
+        }
+    },
+    /**
+     * Stores postings like {@link #multiple_values} and also the numeric
+     * values of each key in a sorted set scored by value, see
+     * {@link NumericValues}, so that the index can be queried for ranges of
+     * values with a {@link NumericRange}.
+     */
+    numeric
+    {
+        @Override
+        public void add( Pipeline pipeline, RedisKeys keys, String key, String value,
+                long id, long startNode, long endNode )
+        {
+            super.add( pipeline, keys, key, value, id, startNode, endNode );
+            NumericValues.add( pipeline, keys, key, value, id );
         }
 
         @Override
-        public void removeEntityKeyValue( Pipeline pipeline,
-                IndexIdentifier identifier, String key, String value, long id )
+        protected void removeKeyValue( Pipeline pipeline, RedisTransaction neo4jTransaction,
+                RedisKeys keys, String key, String value, long id )
         {
-            String keyValueKey = formRedisKeyForKeyValue( identifier, key, value );
-            String entityAndKeyRemovalKey = formRedisKeyForEntityAndKeyRemoval( identifier, key, id );
-            pipeline.srem( keyValueKey, "" + id );
-            pipeline.srem( entityAndKeyRemovalKey, value );
+            super.removeKeyValue( pipeline, neo4jTransaction, keys, key, value, id );
+            NumericValues.remove( pipeline, keys, key, value, id );
+        }
 
-            // TODO We cannot remove the key from the key set since we don't know
-            // if there are more values. Fix later somehow.
-            // transaction.srem( entityRemovalKey, commandKey );
+        @Override
+        public IdPages rangePages( RedisKeys keys, String key, NumericRange range, int pageSize )
+        {
+            return NumericValues.pages( keys, key, range, pageSize );
         }
     },
+    /**
+     * Maps each key/value to one entity, stored as a string key per pair or,
+     * if {@link RedisIndexImplementation#CONFIG_KEY_BUCKETS} is set, as a
+     * field in one of that many hashes. Small hashes are stored compactly by
+     * redis which saves a lot of memory over one top-level key per pair.
+     */
     single_value
     {
         @Override
-        public void add( Pipeline pipeline, IndexIdentifier identifier, String key, String value,
+        public void add( Pipeline pipeline, RedisKeys keys, String key, String value,
                 long id, long startNode, long endNode )
         {
-            String keyValueKey = formRedisKeyForKeyValue( identifier, key, value );
-            pipeline.set( keyValueKey, "" + id );
+            if ( keys.isBucketed() )
+            {
+                byte[] field = RedisKeys.field( key, value );
+                pipeline.hset( keys.bucket( field ), field, keys.id( id ) );
+            }
+            else
+            {
+                pipeline.set( keys.keyValue( key, value ), keys.id( id ) );
+            }
+            if ( keys.sortsValues() )
+            {
+                SortedValues.add( pipeline, keys, key, value );
+            }
+            SortKeys.add( pipeline, keys, key, value, id );
         }
 
         @Override
         public void removeEntity( Pipeline pipeline, RedisTransaction neo4jTransaction,
-                IndexIdentifier identifier, long id )
+                RedisKeys keys, long id )
         {
             throw new UnsupportedOperationException( "Not supported for one-to-one index type" );
         }
 
         @Override
         public void removeEntityKey( Pipeline pipeline, RedisTransaction neo4jTransaction,
-                IndexIdentifier identifier, String key, long id )
+                RedisKeys keys, String key, long id )
         {
             throw new UnsupportedOperationException( "Not supported for one-to-one index type" );
         }
 
         @Override
-        public void removeEntityKeyValue( Pipeline pipeline, IndexIdentifier identifier,
-                String key, String value, long id )
+        public void removeEntityKeyValue( Pipeline pipeline, RedisTransaction neo4jTransaction,
+                RedisKeys keys, String key, String value, long id )
+        {
+            if ( keys.isBucketed() )
+            {
+                byte[] field = RedisKeys.field( key, value );
+                pipeline.hdel( keys.bucket( field ), field );
+            }
+            else
+            {
+                pipeline.del( keys.keyValue( key, value ) );
+            }
+            if ( keys.sortsValues() )
+            {
+                // There's only ever one entity per value
+                SortedValues.remove( pipeline, keys, key, value );
+            }
+            removeSortValue( pipeline, neo4jTransaction, keys, key, value, id );
+            releaseDigest( pipeline, neo4jTransaction, keys, key, value, id );
+        }
+
+        /**
+         * There's no reverse information, an entity is taken to have only
+         * the values of a key it's got in the transaction.
+         */
+        @Override
+        Collection<String> values( RedisTransaction neo4jTransaction, RedisKeys keys,
+                String key, long id )
         {
-            String keyValueKey = formRedisKeyForKeyValue( identifier, key, value );
-            pipeline.del( keyValueKey, "" + id );
+            return Collections.emptyList();
+        }
+
+        /**
+         * Only the key, the entity indexed with a value is replaced by the next.
+         */
+        @Override
+        protected byte[] digestUser( String key, long id )
+        {
+            return RedisKeys.field( key, "" );
+        }
+
+        @Override
+        public Long readId( Jedis resource, RedisKeys keys, String key, String value )
+        {
+            key = keys.lookupStoredKey( resource, key );
+            value = keys.lookupStoredValue( resource, value );
+            if ( key == null || value == null )
+            {
+                return null;
+            }
+            byte[] member;
+            if ( keys.isBucketed() )
+            {
+                byte[] field = RedisKeys.field( key, value );
+                member = resource.hget( keys.bucket( field ), field );
+            }
+            else
+            {
+                member = resource.get( keys.keyValue( key, value ) );
+            }
+            return member != null ? Long.valueOf( keys.id( member ) ) : null;
+        }
+
+        @Override
+        public Long[] readIds( Jedis resource, RedisKeys keys, String key, List<String> values )
+        {
+            Long[] ids = new Long[values.size()];
+            key = keys.lookupStoredKey( resource, key );
+            if ( key == null )
+            {
+                return ids;
+            }
+            List<Integer> looked = new ArrayList<Integer>( ids.length );
+            List<byte[]> redisKeys = new ArrayList<byte[]>( ids.length );
+            for ( int i = 0; i < ids.length; i++ )
+            {
+                String value = keys.lookupStoredValue( resource, values.get( i ) );
+                if ( value != null )
+                {
+                    looked.add( i );
+                    redisKeys.add( keys.isBucketed() ? RedisKeys.field( key, value ) :
+                            keys.keyValue( key, value ) );
+                }
+            }
+            if ( redisKeys.isEmpty() )
+            {
+                return ids;
+            }
+
+            List<byte[]> members;
+            if ( keys.isBucketed() )
+            {
+                Pipeline pipeline = resource.pipelined();
+                for ( byte[] field : redisKeys )
+                {
+                    pipeline.hget( keys.bucket( field ), field );
+                }
+                members = new ArrayList<byte[]>( redisKeys.size() );
+                for ( Object reply : pipeline.execute() )
+                {
+                    members.add( Replies.bulk( reply ) );
+                }
+            }
+            else
+            {
+                members = resource.mget( redisKeys.toArray( new byte[redisKeys.size()][] ) );
+            }
+            for ( int i = 0; i < members.size(); i++ )
+            {
+                byte[] member = members.get( i );
+                if ( member != null )
+                {
+                    ids[looked.get( i )] = keys.id( member );
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public boolean hasSetPostings( RedisKeys keys )
+        {
+            return false;
+        }
+
+        @Override
+        public IdPages unionPages( final RedisKeys keys, final String key, String storedKey,
+                final List<String> values, int pageSize )
+        {
+            return new IdPages()
+            {
+                private boolean done;
+
+                public long[] next( Jedis resource )
+                {
+                    if ( done )
+                    {
+                        return null;
+                    }
+                    done = true;
+                    Long[] ids = readIds( resource, keys, key, values );
+                    long[] page = new long[ids.length];
+                    int size = 0;
+                    for ( Long id : ids )
+                    {
+                        if ( id != null )
+                        {
+                            page[size++] = id;
+                        }
+                    }
+                    return Arrays.copyOf( page, size );
+                }
+            };
+        }
+
+        @Override
+        public IdPages pages( RedisKeys keys, byte[][] postings, int pageSize )
+        {
+            throw new UnsupportedOperationException( "Not supported for one-to-one index type" );
+        }
+
+        @Override
+        public IdPages[] pagesOfEach( Jedis resource, RedisKeys keys, byte[][][] postings, int pageSize )
+        {
+            throw new UnsupportedOperationException( "Not supported for one-to-one index type" );
+        }
+
+        @Override
+        public long count( Jedis resource, RedisKeys keys, byte[][] postings, long[] added,
+                long[] removed )
+        {
+            throw new UnsupportedOperationException( "Not supported for one-to-one index type" );
         }
     };
     
-    public abstract void add( Pipeline pipeline, IndexIdentifier identifier, String key, String value,
-            long id, long startNode, long endNode );
+    public void add( Pipeline pipeline, RedisKeys keys, String key, String value,
+            long id, long startNode, long endNode )
+    {
+        addToPosting( pipeline, keys, keys.keyValue( key, value ), id );
+        keys.getReverseLayout().add( pipeline, keys, key, value, id );
+        if ( keys.sortsValues() )
+        {
+            SortedValues.add( pipeline, keys, key, value );
+        }
+        SortKeys.add( pipeline, keys, key, value, id );
+        
+        // For relationship queries
+        if ( keys.getIdentifier().getEntityType() == Relationship.class )
+        {
+            addToPosting( pipeline, keys, keys.startNode( startNode ), id );
+            addToPosting( pipeline, keys, keys.endNode( endNode ), id );
+        }
+    }
     
-    public abstract void removeEntity( Pipeline pipeline, RedisTransaction neo4jTransaction,
-            IndexIdentifier identifier, long id );
+    public void removeEntity( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, long id )
+    {
+        ReverseLayout layout = keys.getReverseLayout();
+        Map<String, Collection<String>> entries = layout.entries( neo4jTransaction, keys, id );
+        for ( Map.Entry<String, Collection<String>> entry : entries.entrySet() )
+        {
+            for ( String value : entry.getValue() )
+            {
+                removeKeyValue( pipeline, neo4jTransaction, keys, entry.getKey(), value, id );
+            }
+        }
+        layout.removeEntity( pipeline, keys, id, entries );
+    }
+
+    public void removeEntityKey( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, String key, long id )
+    {
+        ReverseLayout layout = keys.getReverseLayout();
+        Collection<String> values = layout.values( neo4jTransaction, keys, key, id );
+        for ( String value : values )
+        {
+            removeKeyValue( pipeline, neo4jTransaction, keys, key, value, id );
+        }
+        layout.removeEntityKey( pipeline, keys, key, id, values );
+    }
+
+    public void removeEntityKeyValue( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, String key, String value, long id )
+    {
+        removeKeyValue( pipeline, neo4jTransaction, keys, key, value, id );
+        keys.getReverseLayout().removeEntityKeyValue( pipeline, keys, key, value, id );
+    }
+
+    /**
+     * Removes the entity from what's stored for one of its key/values,
+     * leaving the reverse information to the caller.
+     */
+    protected void removeKeyValue( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, String key, String value, long id )
+    {
+        removeFromPosting( pipeline, keys, keys.keyValue( key, value ), id );
+        removeSortValue( pipeline, neo4jTransaction, keys, key, value, id );
+        releaseDigest( pipeline, neo4jTransaction, keys, key, value, id );
+    }
 
-    public abstract void removeEntityKey( Pipeline pipeline, RedisTransaction neo4jTransaction,
-            IndexIdentifier identifier, String key, long id );
+    /**
+     * Rescores the entity by the values it has left of {@code key} if it's
+     * a sort key, or removes it from its sort order if it has none left.
+     */
+    protected void removeSortValue( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, String key, String value, long id )
+    {
+        if ( keys.maySortBy( key ) )
+        {
+            SortKeys.remove( pipeline, keys, key,
+                    neo4jTransaction.sortValueRemoved( this, keys, key, value, id ), id );
+        }
+    }
+
+    /**
+     * @return the values the entity was indexed with for {@code key} before
+     * the transaction.
+     */
+    Collection<String> values( RedisTransaction neo4jTransaction, RedisKeys keys, String key, long id )
+    {
+        return keys.getReverseLayout().values( neo4jTransaction, keys, key, id );
+    }
 
-    public abstract void removeEntityKeyValue( Pipeline pipeline,
-            IndexIdentifier identifier, String key, String value, long id );
+    /**
+     * Records the entity as indexed with {@code storedValue} for {@code key}
+     * if it's a {@link ValueDigests digest} of {@code value}, so that the
+     * digest is kept for as long as anything is indexed with it.
+     */
+    public void useDigest( Pipeline pipeline, RedisKeys keys, String key, String storedValue,
+            String value, long id )
+    {
+        if ( keys.isDigest( storedValue ) )
+        {
+            keys.useDigest( pipeline, storedValue, value, digestUser( key, id ) );
+        }
+    }
+
+    /**
+     * Undoes {@link #useDigest(Pipeline, RedisKeys, String, String, String, long)}
+     * and has the transaction prune the digest after it if it's unused.
+     */
+    protected void releaseDigest( Pipeline pipeline, RedisTransaction neo4jTransaction,
+            RedisKeys keys, String key, String storedValue, long id )
+    {
+        if ( keys.isDigest( storedValue ) )
+        {
+            keys.releaseDigest( pipeline, storedValue, digestUser( key, id ) );
+            neo4jTransaction.digestReleased( keys, storedValue );
+        }
+    }
+
+    /**
+     * @return what tells apart the entries for a digested value, the key and
+     * the entity.
+     */
+    protected byte[] digestUser( String key, long id )
+    {
+        return RedisKeys.field( key, "" + id );
+    }
+
+    /**
+     * @return the ids of the entities found in all of the given postings,
+     * i.e. their intersection, to be read a page at a time of roughly
+     * {@code pageSize} ids.
+     */
+    public IdPages pages( RedisKeys keys, byte[][] postings, int pageSize )
+    {
+        if ( keys.getPostingRangeSize() > 0 )
+        {
+            return RangePostings.pages( keys, postings, pageSize );
+        }
+        // Redis has no SSCAN in the versions supported, so a plain set is one page
+        return new SetPages( keys, postings );
+    }
+
+    /**
+     * Counts the ids in {@code postings} without reading them, corrected by
+     * the ids {@code added} and {@code removed} in the transaction, with one
+     * SCARD and a SISMEMBER per transaction id. Only a single posting can be
+     * counted, there's no way to count an intersection without computing it.
+     *
+     * @return the corrected count, or -1 if it can't be counted cheaply.
+     */
+    public long count( Jedis resource, RedisKeys keys, byte[][] postings, long[] added,
+            long[] removed )
+    {
+        if ( postings.length != 1 )
+        {
+            return -1;
+        }
+        if ( keys.getPostingRangeSize() > 0 )
+        {
+            return RangePostings.count( resource, keys, postings[0], added, removed );
+        }
+        Pipeline pipeline = resource.pipelined();
+        pipeline.scard( postings[0] );
+        for ( long[] ids : new long[][] { added, removed } )
+        {
+            for ( long id : ids )
+            {
+                pipeline.sismember( postings[0], keys.id( id ) );
+            }
+        }
+        List<Object> replies = pipeline.execute();
+        return correctedCount( Replies.integer( replies.get( 0 ) ),
+                replies.subList( 1, replies.size() ), added.length );
+    }
+
+    /**
+     * @param memberships the SISMEMBER replies of the added ids followed by
+     * those of the removed ids.
+     */
+    static long correctedCount( long count, List<Object> memberships, int added )
+    {
+        for ( int i = 0; i < memberships.size(); i++ )
+        {
+            boolean member = Replies.integer( memberships.get( i ) ) == 1;
+            if ( i < added )
+            {
+                count += member ? 0 : 1;
+            }
+            else
+            {
+                count -= member ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code id} can't be stored in a
+     * posting of this type. Any id can, unless overridden.
+     */
+    public void checkId( long id )
+    {
+    }
+
+    /**
+     * @return whether each posting is a plain redis set, which set operations
+     * such as SINTERSTORE can be done on, see {@link CompoundQueries}.
+     */
+    public boolean hasSetPostings( RedisKeys keys )
+    {
+        return keys.getPostingRangeSize() == 0;
+    }
+
+    /**
+     * @return whether {@link #pages(RedisKeys, byte[][], int)} reads all
+     * the ids in one go, i.e. in the first page.
+     */
+    public boolean readsAtOnce( RedisKeys keys )
+    {
+        return keys.getPostingRangeSize() == 0;
+    }
+
+    /**
+     * Like {@link #pages(RedisKeys, byte[][], int)} for many reads at once,
+     * each of them an intersection of postings. Plain sets are all read up
+     * front in one pipeline, the other layouts page as usual.
+     *
+     * @return the pages of each read, or {@code null} where its postings are.
+     */
+    public IdPages[] pagesOfEach( Jedis resource, RedisKeys keys, byte[][][] postings, int pageSize )
+    {
+        if ( keys.getPostingRangeSize() > 0 )
+        {
+            return separatePages( keys, postings, pageSize );
+        }
+        Pipeline pipeline = resource.pipelined();
+        for ( byte[][] read : postings )
+        {
+            if ( read == null )
+            {
+                continue;
+            }
+            if ( read.length == 1 )
+            {
+                pipeline.smembers( read[0] );
+            }
+            else
+            {
+                pipeline.sinter( read );
+            }
+        }
+        List<Object> replies = pipeline.execute();
+        IdPages[] pages = new IdPages[postings.length];
+        for ( int i = 0, r = 0; i < postings.length; i++ )
+        {
+            if ( postings[i] != null )
+            {
+                pages[i] = new ReadPage( ids( keys, replies.get( r++ ) ) );
+            }
+        }
+        return pages;
+    }
+
+    protected IdPages[] separatePages( RedisKeys keys, byte[][][] postings, int pageSize )
+    {
+        IdPages[] pages = new IdPages[postings.length];
+        for ( int i = 0; i < postings.length; i++ )
+        {
+            if ( postings[i] != null )
+            {
+                pages[i] = pages( keys, postings[i], pageSize );
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * @return the id of the one entity indexed with the key/value, or
+     * {@code null} if there is none.
+     */
+    public Long readId( Jedis resource, RedisKeys keys, String key, String value )
+    {
+        throw new UnsupportedOperationException( "Only supported for one-to-one index type" );
+    }
+
+    /**
+     * Like {@link #readId(Jedis, RedisKeys, String, String)} for many values
+     * of the same key, in one round trip.
+     *
+     * @return the ids, or {@code null}s, in the order of {@code values}.
+     */
+    public Long[] readIds( Jedis resource, RedisKeys keys, String key, List<String> values )
+    {
+        throw new UnsupportedOperationException( "Only supported for one-to-one index type" );
+    }
+
+    /**
+     * @return up to {@code limit} ids of {@code posting} greater than
+     * {@code afterId}, in id order.
+     */
+    public long[] page( Jedis resource, RedisKeys keys, byte[] posting, long afterId, int limit )
+    {
+        throw new UnsupportedOperationException( "Only supported for id_ordered index type" );
+    }
+
+    /**
+     * @return the ids of the entities with a value of {@code key} within
+     * {@code range}, in value order, to be read a page at a time.
+     */
+    public IdPages rangePages( RedisKeys keys, String key, NumericRange range, int pageSize )
+    {
+        throw new UnsupportedOperationException( "Only supported for numeric index type" );
+    }
+
+    /**
+     * @return the ids of the entities with a value of {@code key} starting
+     * with {@code prefix}, see {@link SortedValues}.
+     */
+    public IdPages prefixPages( RedisKeys keys, String key, String storedKey, String prefix,
+            int pageSize )
+    {
+        if ( !keys.sortsValues() )
+        {
+            throw new UnsupportedOperationException( "Prefix queries need " +
+                    RedisIndexImplementation.CONFIG_KEY_PREFIX_QUERIES + "=true in the index config" );
+        }
+        return SortedValues.pages( this, keys, key, storedKey, prefix, pageSize );
+    }
+
+    /**
+     * @return the ids of the entities indexed with any of the (stored)
+     * {@code values} of {@code key}, to be read a page at a time. Plain sets
+     * are unioned in redis with SUNION, the other layouts are read one
+     * posting after the other.
+     */
+    public IdPages unionPages( final RedisKeys keys, String key, String storedKey,
+            List<String> values, final int pageSize )
+    {
+        final byte[][] postings = new byte[values.size()][];
+        for ( int i = 0; i < postings.length; i++ )
+        {
+            postings[i] = keys.keyValue( storedKey, values.get( i ) );
+        }
+        if ( readsAtOnce( keys ) )
+        {
+            return new IdPages()
+            {
+                private boolean done;
+
+                public long[] next( Jedis resource )
+                {
+                    if ( done )
+                    {
+                        return null;
+                    }
+                    done = true;
+                    Pipeline pipeline = resource.pipelined();
+                    pipeline.sunion( postings );
+                    return ids( keys, pipeline.execute().get( 0 ) );
+                }
+            };
+        }
+        return new IdPages()
+        {
+            private int posting;
+            private IdPages current;
+
+            public long[] next( Jedis resource )
+            {
+                while ( posting < postings.length || current != null )
+                {
+                    if ( current == null )
+                    {
+                        current = pages( keys, new byte[][] { postings[posting++] }, pageSize );
+                    }
+                    long[] page = current.next( resource );
+                    if ( page != null )
+                    {
+                        return page;
+                    }
+                    current = null;
+                }
+                return null;
+            }
+        };
+    }
+
+    protected void addToPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+    {
+        if ( keys.getPostingRangeSize() > 0 )
+        {
+            RangePostings.add( pipeline, keys, posting, id );
+            return;
+        }
+        pipeline.sadd( posting, keys.id( id ) );
+    }
+
+    protected void removeFromPosting( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+    {
+        if ( keys.getPostingRangeSize() > 0 )
+        {
+            RangePostings.remove( pipeline, keys, posting, id );
+            return;
+        }
+        pipeline.srem( posting, keys.id( id ) );
+    }
+
+    private static class SetPages implements IdPages
+    {
+        private final RedisKeys keys;
+        private final byte[][] postings;
+        private boolean done;
+
+        SetPages( RedisKeys keys, byte[][] postings )
+        {
+            this.keys = keys;
+            this.postings = postings;
+        }
+
+        public long[] next( Jedis resource )
+        {
+            if ( done )
+            {
+                return null;
+            }
+            done = true;
+            // Pipelined to get the raw reply, not copied into a set of byte[]s
+            Pipeline pipeline = resource.pipelined();
+            if ( postings.length == 1 )
+            {
+                pipeline.smembers( postings[0] );
+            }
+            else
+            {
+                pipeline.sinter( postings );
+            }
+            return ids( keys, pipeline.execute().get( 0 ) );
+        }
+    }
+
+    /**
+     * A single page of ids which have already been read.
+     */
+    static class ReadPage implements IdPages
+    {
+        private long[] ids;
+
+        ReadPage( long[] ids )
+        {
+            this.ids = ids;
+        }
+
+        public long[] next( Jedis resource )
+        {
+            long[] page = ids;
+            ids = null;
+            return page;
+        }
+    }
+
+    static long[] ids( RedisKeys keys, Object multiBulkReply )
+    {
+        List<byte[]> members = Replies.multiBulk( multiBulkReply );
+        long[] ids = new long[members.size()];
+        int i = 0;
+        for ( byte[] member : members )
+        {
+            ids[i++] = keys.id( member );
+        }
+        return ids;
+    }
 }
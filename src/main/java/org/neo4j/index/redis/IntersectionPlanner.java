@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Picks how to intersect the plain set postings of a lookup, f.ex. a
+ * relationship lookup by key/value and start node, from their sizes:
+ * <ul>
+ * <li>{@link Plan#sinter}: a single SINTER in redis, good for most cases.</li>
+ * <li>{@link Plan#probe}: read the smallest set and check its ids against
+ * the others with SISMEMBER, when it's tiny compared to the others.</li>
+ * <li>{@link Plan#streamed}: the sorted postings of {@link IndexType#id_ordered}
+ * are read in id order a chunk at a time and intersected on the client, see
+ * {@link SortedPostings}, a page of hits at a time.</li>
+ * </ul>
+ * Big sets are intersected by SINTER as well. Doing it here would mean
+ * transferring all of them in full, plain sets can't be read in ordered
+ * chunks without SSCAN, and that costs more than the SINTER it replaces.
+ * The sizes are kept for {@link #CARDINALITY_TTL} ms per posting and may
+ * be stale by then. Both set plans read the sets as they are, even one
+ * cached as empty, so a stale size can pick the slower plan but never
+ * changes the result. When any of them isn't known the SCARDs are sent in
+ * the same pipeline as a SINTER, so planning never costs a round trip of
+ * its own. How many times each plan has been picked is kept for
+ * diagnostics.
+ */
+class IntersectionPlanner
+{
+    enum Plan
+    {
+        sinter,
+        probe,
+        streamed
+    }
+
+    // Probing costs a command per id and other set, a SINTER walks the smallest
+    // set anyway, so probing only pays off when the smallest set is tiny
+    static final long PROBE_MAX_SIZE = 64;
+    static final long PROBE_MIN_RATIO = 16;
+
+    static final long CARDINALITY_TTL = 1000;
+    static final int MAX_CACHED_CARDINALITIES = 10000;
+
+    private final AtomicLong[] planned = new AtomicLong[Plan.values().length];
+    private final ConcurrentMap<ByteBuffer, Cardinality> cardinalities =
+            new ConcurrentHashMap<ByteBuffer, Cardinality>();
+
+    IntersectionPlanner()
+    {
+        for ( int i = 0; i < planned.length; i++ )
+        {
+            planned[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @return the plan for intersecting sets of the given sizes.
+     */
+    static Plan plan( long[] sizes )
+    {
+        long smallest = Long.MAX_VALUE;
+        long nextSmallest = Long.MAX_VALUE;
+        for ( long size : sizes )
+        {
+            if ( size < smallest )
+            {
+                nextSmallest = smallest;
+                smallest = size;
+            }
+            else if ( size < nextSmallest )
+            {
+                nextSmallest = size;
+            }
+        }
+        if ( smallest <= PROBE_MAX_SIZE && (smallest == 0 || nextSmallest / smallest >= PROBE_MIN_RATIO) )
+        {
+            return Plan.probe;
+        }
+        return Plan.sinter;
+    }
+
+    /**
+     * @return the ids found in all of {@code postings}, read with the planned
+     * strategy if there's more than one posting to intersect, otherwise
+     * paged by {@code type} as usual.
+     */
+    IdPages pages( IndexType type, RedisKeys keys, byte[][] postings, int pageSize )
+    {
+        if ( postings.length > 1 && type == IndexType.id_ordered )
+        {
+            planned[Plan.streamed.ordinal()].incrementAndGet();
+            return type.pages( keys, postings, pageSize );
+        }
+        if ( postings.length > 1 && type.readsAtOnce( keys ) )
+        {
+            return pages( keys, postings );
+        }
+        return type.pages( keys, postings, pageSize );
+    }
+
+    /**
+     * @return the intersection of plain sets, more than one, as a single
+     * page read with the planned strategy.
+     */
+    private IdPages pages( final RedisKeys keys, final byte[][] postings )
+    {
+        return new IdPages()
+        {
+            private boolean done;
+
+            public long[] next( Jedis resource )
+            {
+                if ( done )
+                {
+                    return null;
+                }
+                done = true;
+                return intersect( resource, keys, postings );
+            }
+        };
+    }
+
+    private long[] intersect( Jedis resource, RedisKeys keys, byte[][] postings )
+    {
+        long now = System.currentTimeMillis();
+        long[] sizes = cachedSizes( postings, now );
+        if ( sizes == null )
+        {
+            Pipeline pipeline = resource.pipelined();
+            for ( byte[] posting : postings )
+            {
+                pipeline.scard( posting );
+            }
+            pipeline.sinter( postings );
+            List<Object> replies = pipeline.execute();
+            sizes = new long[postings.length];
+            for ( int i = 0; i < sizes.length; i++ )
+            {
+                sizes[i] = Replies.integer( replies.get( i ) );
+            }
+            cacheSizes( postings, sizes, now );
+            planned[Plan.sinter.ordinal()].incrementAndGet();
+            return ids( keys, Replies.multiBulk( replies.get( postings.length ) ) );
+        }
+
+        Plan plan = plan( sizes );
+        planned[plan.ordinal()].incrementAndGet();
+        switch ( plan )
+        {
+        case probe: return probe( resource, keys, postings, sizes );
+        default:
+            Pipeline pipeline = resource.pipelined();
+            pipeline.sinter( postings );
+            return ids( keys, Replies.multiBulk( pipeline.execute().get( 0 ) ) );
+        }
+    }
+
+    /**
+     * @return the sizes of {@code postings} as of at most
+     * {@link #CARDINALITY_TTL} ms before {@code now}, or {@code null} if
+     * any of them isn't known.
+     */
+    long[] cachedSizes( byte[][] postings, long now )
+    {
+        long[] sizes = new long[postings.length];
+        for ( int i = 0; i < postings.length; i++ )
+        {
+            Cardinality cardinality = cardinalities.get( ByteBuffer.wrap( postings[i] ) );
+            if ( cardinality == null || now - cardinality.readAt > CARDINALITY_TTL )
+            {
+                return null;
+            }
+            sizes[i] = cardinality.size;
+        }
+        return sizes;
+    }
+
+    void cacheSizes( byte[][] postings, long[] sizes, long now )
+    {
+        if ( cardinalities.size() >= MAX_CACHED_CARDINALITIES )
+        {
+            // Simpler than evicting, they're all cheap to read again
+            cardinalities.clear();
+        }
+        for ( int i = 0; i < postings.length; i++ )
+        {
+            cardinalities.put( ByteBuffer.wrap( postings[i] ), new Cardinality( sizes[i], now ) );
+        }
+    }
+
+    private static long[] probe( Jedis resource, RedisKeys keys, byte[][] postings, long[] sizes )
+    {
+        // Read even if cached as empty, it may have been added to since
+        int smallest = smallest( sizes );
+        byte[][] members = resource.smembers( postings[smallest] ).toArray( new byte[0][] );
+        Pipeline pipeline = resource.pipelined();
+        for ( byte[] member : members )
+        {
+            for ( int i = 0; i < postings.length; i++ )
+            {
+                if ( i != smallest )
+                {
+                    pipeline.sismember( postings[i], member );
+                }
+            }
+        }
+        List<Object> replies = pipeline.execute();
+        long[] ids = new long[members.length];
+        int size = 0;
+        int reply = 0;
+        for ( byte[] member : members )
+        {
+            boolean inAll = true;
+            for ( int i = 1; i < postings.length; i++ )
+            {
+                inAll &= Replies.integer( replies.get( reply++ ) ) == 1;
+            }
+            if ( inAll )
+            {
+                ids[size++] = keys.id( member );
+            }
+        }
+        return Arrays.copyOf( ids, size );
+    }
+
+    private static int smallest( long[] sizes )
+    {
+        int smallest = 0;
+        for ( int i = 1; i < sizes.length; i++ )
+        {
+            if ( sizes[i] < sizes[smallest] )
+            {
+                smallest = i;
+            }
+        }
+        return smallest;
+    }
+
+    private static long[] ids( RedisKeys keys, List<byte[]> members )
+    {
+        long[] ids = new long[members.size()];
+        int i = 0;
+        for ( byte[] member : members )
+        {
+            ids[i++] = keys.id( member );
+        }
+        return ids;
+    }
+
+    private static class Cardinality
+    {
+        private final long size;
+        private final long readAt;
+
+        Cardinality( long size, long readAt )
+        {
+            this.size = size;
+            this.readAt = readAt;
+        }
+    }
+
+    /**
+     * @return how many times {@code plan} has been picked so far.
+     */
+    long getPlanned( Plan plan )
+    {
+        return planned[plan.ordinal()].get();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.decode;
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * A persistent per-index dictionary of property keys to short codes, used
+ * in place of the keys in the redis keys and reverse information of an index
+ * with {@link RedisIndexImplementation#CONFIG_KEY_KEY_DICTIONARY} set.
+ *
+ * The codes are stored in a redis hash under the index prefix, so they go
+ * away with the index, and allocated from a counter next to it. Once read,
+ * a code never changes and is cached here for the lifetime of the index.
+ *
+ * Codes are allocated when a transaction is prepared, outside of its MULTI
+ * since the code has to be known to write the keys, so a code is left
+ * behind if the transaction then rolls back. That's harmless: lookups with
+ * the key find nothing stored under its code, the next add with the key
+ * uses it, and there's at most one code per key ever used in the index.
+ */
+class KeyDictionary
+{
+    private final byte[] codesKey;
+    private final byte[] counterKey;
+    private final ConcurrentMap<String, String> codes = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    KeyDictionary( byte[] codesKey, byte[] counterKey )
+    {
+        this.codesKey = codesKey;
+        this.counterKey = counterKey;
+    }
+
+    /**
+     * @return the code for {@code key}, allocating one if it has none yet.
+     */
+    String code( Jedis resource, String key )
+    {
+        String code = lookup( resource, key );
+        if ( code == null )
+        {
+            String candidate = Long.toString( resource.incr( counterKey ), 36 );
+            byte[] field = encode( key );
+            long set = resource.hsetnx( codesKey, field, encode( candidate ) );
+            // Someone else may have allocated one for it in the meantime
+            code = set == 1 ? candidate : decode( resource.hget( codesKey, field ) );
+            cache( key, code );
+        }
+        return code;
+    }
+
+    /**
+     * @return the code for {@code key} or {@code null} if it has none, i.e.
+     * if nothing has ever been indexed with that key.
+     */
+    String lookup( Jedis resource, String key )
+    {
+        String code = codes.get( key );
+        if ( code == null )
+        {
+            byte[] stored = resource.hget( codesKey, encode( key ) );
+            if ( stored != null )
+            {
+                code = decode( stored );
+                cache( key, code );
+            }
+        }
+        return code;
+    }
+
+    /**
+     * @return the key which has {@code code}, if it has been allocated or
+     * looked up here, otherwise {@code null}.
+     */
+    String cachedKey( String code )
+    {
+        return keys.get( code );
+    }
+
+    private void cache( String key, String code )
+    {
+        codes.putIfAbsent( key, code );
+        keys.putIfAbsent( code, key );
+    }
+}
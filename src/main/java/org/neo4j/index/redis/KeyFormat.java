@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.encode;
+import static org.neo4j.index.redis.RedisDataSource.ID_DELIMITER;
+import static org.neo4j.index.redis.RedisDataSource.KEY_DELIMITER;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.index.base.IndexIdentifier;
+
+/**
+ * How redis keys and set members are laid out for an index. Chosen per index
+ * with the {@link RedisIndexImplementation#CONFIG_KEY_KEY_FORMAT} config key.
+ *
+ * The {@link #text} format is the human readable one, f.ex "n:index:key:value",
+ * with entity ids as decimal strings. The binary formats start every key with
+ * a short numeric index id instead of the index name, length-prefix the
+ * key/value parts and encode entity ids as varints ({@link #binary}) or as
+ * fixed-width 8 byte numbers ({@link #binary_fixed}).
+ */
+public enum KeyFormat
+{
+    text
+    {
+        @Override
+        boolean usesIndexId()
+        {
+            return false;
+        }
+
+        @Override
+        byte[] prefix( IndexIdentifier identifier, Map<String, String> config )
+        {
+            String entityType = identifier.getEntityType().equals( Node.class ) ? "n" : "r";
+            return encode( entityType + KEY_DELIMITER + identifier.getIndexName() );
+        }
+
+        @Override
+        byte[] keyValue( byte[] prefix, String key, String value )
+        {
+            return textKey( prefix, KEY_DELIMITER + key + KEY_DELIMITER + value );
+        }
+
+        @Override
+        byte[] entityAndKey( byte[] prefix, String key, long id )
+        {
+            return textKey( prefix, KEY_DELIMITER + key + ID_DELIMITER + id );
+        }
+
+        @Override
+        byte[] entity( byte[] prefix, long id )
+        {
+            return textKey( prefix, ID_DELIMITER + "" + id );
+        }
+
+        @Override
+        byte[] startNode( byte[] prefix, long id )
+        {
+            return textKey( prefix, KEY_DELIMITER + "start" + ID_DELIMITER + id );
+        }
+
+        @Override
+        byte[] endNode( byte[] prefix, long id )
+        {
+            return textKey( prefix, KEY_DELIMITER + "end" + ID_DELIMITER + id );
+        }
+
+        @Override
+        byte[] bucket( byte[] prefix, int bucket )
+        {
+            return textKey( prefix, ID_DELIMITER + "b" + ID_DELIMITER + bucket );
+        }
+
+        @Override
+        byte[] dictionary( byte[] prefix )
+        {
+            return textKey( prefix, ID_DELIMITER + "dict" );
+        }
+
+        @Override
+        byte[] digests( byte[] prefix )
+        {
+            return textKey( prefix, ID_DELIMITER + "digests" );
+        }
+
+        @Override
+        byte[] digestUsers( byte[] prefix, String digest )
+        {
+            return textKey( prefix, ID_DELIMITER + "users" + ID_DELIMITER + digest );
+        }
+
+        @Override
+        byte[] sweepCandidates( byte[] prefix )
+        {
+            return textKey( prefix, ID_DELIMITER + "sweep" );
+        }
+
+        @Override
+        byte[] numeric( byte[] prefix, String key )
+        {
+            return textKey( prefix, ID_DELIMITER + "num" + ID_DELIMITER + key );
+        }
+
+        @Override
+        byte[] sortedValues( byte[] prefix, String key )
+        {
+            return textKey( prefix, ID_DELIMITER + "vals" + ID_DELIMITER + key );
+        }
+
+        @Override
+        byte[] sortValues( byte[] prefix, String key )
+        {
+            return textKey( prefix, ID_DELIMITER + "sort" + ID_DELIMITER + key );
+        }
+
+        @Override
+        byte[] temp( byte[] prefix, String name )
+        {
+            return textKey( prefix, ID_DELIMITER + "tmp" + ID_DELIMITER + name );
+        }
+
+        @Override
+        byte[] pattern( byte[] prefix )
+        {
+            return textKey( prefix, "[" + KEY_DELIMITER + ID_DELIMITER + "]*" );
+        }
+
+        /**
+         * Values can contain anything, so the part number can't just be
+         * appended to the key. It goes in a segment of its own right after
+         * the index prefix, like other keys which aren't key/values.
+         */
+        @Override
+        byte[] part( byte[] prefix, byte[] key, long part )
+        {
+            byte[] partPrefix = textKey( prefix, ID_DELIMITER + "part" + ID_DELIMITER + part + ID_DELIMITER );
+            byte[] result = new byte[partPrefix.length + key.length - prefix.length];
+            System.arraycopy( partPrefix, 0, result, 0, partPrefix.length );
+            System.arraycopy( key, prefix.length, result, partPrefix.length, key.length - prefix.length );
+            return result;
+        }
+
+        @Override
+        byte[] id( long id )
+        {
+            return encode( "" + id );
+        }
+
+        @Override
+        long id( byte[] member )
+        {
+            return Bytes.parseDecimal( member );
+        }
+
+        @Override
+        void writeId( ByteArrayOutputStream out, long id )
+        {
+            Bytes.write( out, id( id ) );
+        }
+    },
+    binary
+    {
+        @Override
+        void writeId( ByteArrayOutputStream out, long id )
+        {
+            Bytes.writeVarLong( out, id );
+        }
+
+        @Override
+        long id( byte[] member )
+        {
+            return Bytes.readVarLong( member, 0 );
+        }
+    },
+    binary_fixed
+    {
+        @Override
+        void writeId( ByteArrayOutputStream out, long id )
+        {
+            Bytes.writeFixedLong( out, id );
+        }
+
+        @Override
+        long id( byte[] member )
+        {
+            return Bytes.readFixedLong( member, 0 );
+        }
+    };
+
+    /**
+     * First byte of all keys in the binary formats. Text keys always start
+     * with 'n' or 'r' so the two never collide.
+     */
+    static final byte BINARY_TAG = 0x01;
+
+    // Kinds of keys in the binary formats, written right after the prefix
+    static final byte KIND_KEY_VALUE = 1;
+    static final byte KIND_ENTITY_AND_KEY = 2;
+    static final byte KIND_ENTITY = 3;
+    static final byte KIND_START_NODE = 4;
+    static final byte KIND_END_NODE = 5;
+    static final byte KIND_BUCKET = 6;
+    static final byte KIND_DICTIONARY = 7;
+    static final byte KIND_DIGESTS = 8;
+    static final byte KIND_SWEEP_CANDIDATES = 9;
+    static final byte KIND_NUMERIC = 10;
+    static final byte KIND_SORTED_VALUES = 11;
+    static final byte KIND_TEMP = 12;
+    static final byte KIND_SORT_VALUES = 13;
+    static final byte KIND_DIGEST_USERS = 14;
+
+    /**
+     * @return whether or not this format needs a numeric index id, stored
+     * in the index config under {@link RedisIndexImplementation#CONFIG_KEY_INDEX_ID}.
+     */
+    boolean usesIndexId()
+    {
+        return true;
+    }
+
+    byte[] prefix( IndexIdentifier identifier, Map<String, String> config )
+    {
+        String indexId = config.get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID );
+        if ( indexId == null )
+        {
+            throw new IllegalArgumentException( "No " + RedisIndexImplementation.CONFIG_KEY_INDEX_ID +
+                    " in config for " + identifier + " using key format " + name() );
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 6 );
+        out.write( BINARY_TAG );
+        Bytes.writeVarLong( out, Long.parseLong( indexId ) );
+        return out.toByteArray();
+    }
+
+    byte[] keyValue( byte[] prefix, String key, String value )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_KEY_VALUE );
+        Bytes.writeSegment( out, encode( key ) );
+        Bytes.writeSegment( out, encode( value ) );
+        return out.toByteArray();
+    }
+
+    byte[] entityAndKey( byte[] prefix, String key, long id )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_ENTITY_AND_KEY );
+        Bytes.writeSegment( out, encode( key ) );
+        writeId( out, id );
+        return out.toByteArray();
+    }
+
+    byte[] entity( byte[] prefix, long id )
+    {
+        return binaryIdKey( prefix, KIND_ENTITY, id );
+    }
+
+    byte[] startNode( byte[] prefix, long id )
+    {
+        return binaryIdKey( prefix, KIND_START_NODE, id );
+    }
+
+    byte[] endNode( byte[] prefix, long id )
+    {
+        return binaryIdKey( prefix, KIND_END_NODE, id );
+    }
+
+    byte[] bucket( byte[] prefix, int bucket )
+    {
+        return binaryIdKey( prefix, KIND_BUCKET, bucket );
+    }
+
+    byte[] dictionary( byte[] prefix )
+    {
+        return binaryKey( prefix, KIND_DICTIONARY ).toByteArray();
+    }
+
+    byte[] digests( byte[] prefix )
+    {
+        return binaryKey( prefix, KIND_DIGESTS ).toByteArray();
+    }
+
+    /**
+     * @return the key of the set of what's indexed with {@code digest}, see
+     * {@link ValueDigests}.
+     */
+    byte[] digestUsers( byte[] prefix, String digest )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_DIGEST_USERS );
+        Bytes.write( out, encode( digest ) );
+        return out.toByteArray();
+    }
+
+    byte[] sweepCandidates( byte[] prefix )
+    {
+        return binaryKey( prefix, KIND_SWEEP_CANDIDATES ).toByteArray();
+    }
+
+    /**
+     * @return the key of the sorted set of all numeric values of {@code key},
+     * see {@link IndexType#numeric}.
+     */
+    byte[] numeric( byte[] prefix, String key )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_NUMERIC );
+        Bytes.write( out, encode( key ) );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the key of the sorted set of all values of {@code key}, see
+     * {@link SortedValues}.
+     */
+    byte[] sortedValues( byte[] prefix, String key )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_SORTED_VALUES );
+        Bytes.write( out, encode( key ) );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the key of the sorted set of entities scored by their value of
+     * {@code key}, see {@link SortKeys}.
+     */
+    byte[] sortValues( byte[] prefix, String key )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_SORT_VALUES );
+        Bytes.write( out, encode( key ) );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the key of a short-lived result of a query, see
+     * {@link CompoundQueries}.
+     */
+    byte[] temp( byte[] prefix, String name )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, KIND_TEMP );
+        Bytes.write( out, encode( name ) );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the key of a numbered part of what's stored under {@code key},
+     * f.ex. a chunk of a posting. {@code key} is one of the keys of the index
+     * with the given prefix. In the binary formats all variable length parts
+     * of a key are length-prefixed, so the part number is appended to it.
+     */
+    byte[] part( byte[] prefix, byte[] key, long part )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( key.length + 9 );
+        Bytes.write( out, key );
+        writeId( out, part );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a redis KEYS pattern matching all keys of the index with
+     * the given prefix.
+     */
+    byte[] pattern( byte[] prefix )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( prefix.length + 4 );
+        Bytes.writeGlobEscaped( out, prefix );
+        out.write( '*' );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the set member (or string value) representing the entity id.
+     */
+    byte[] id( long id )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 9 );
+        writeId( out, id );
+        return out.toByteArray();
+    }
+
+    abstract long id( byte[] member );
+
+    abstract void writeId( ByteArrayOutputStream out, long id );
+
+    private ByteArrayOutputStream binaryKey( byte[] prefix, byte kind )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( prefix.length + 24 );
+        Bytes.write( out, prefix );
+        out.write( kind );
+        return out;
+    }
+
+    private byte[] binaryIdKey( byte[] prefix, byte kind, long id )
+    {
+        ByteArrayOutputStream out = binaryKey( prefix, kind );
+        writeId( out, id );
+        return out.toByteArray();
+    }
+
+    private static byte[] textKey( byte[] prefix, String suffix )
+    {
+        byte[] suffixBytes = encode( suffix );
+        byte[] result = new byte[prefix.length + suffixBytes.length];
+        System.arraycopy( prefix, 0, result, 0, prefix.length );
+        System.arraycopy( suffixBytes, 0, result, prefix.length, suffixBytes.length );
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.Arrays;
+
+/**
+ * A page of ids from {@link RedisIndex#page(String, Object, long, int)},
+ * in id order, along with the token to read the next page with.
+ */
+public final class KeysetPage
+{
+    /**
+     * The token to read the first page with.
+     */
+    public static final long START = -1;
+
+    private final long[] ids;
+    private final long resumeToken;
+    private final boolean more;
+
+    KeysetPage( long[] ids, long resumeToken, boolean more )
+    {
+        this.ids = ids;
+        this.resumeToken = resumeToken;
+        this.more = more;
+    }
+
+    public long[] getIds()
+    {
+        return ids;
+    }
+
+    /**
+     * @return the token to read the next page with, i.e. the last id of
+     * this page, or the token this page was read with if it's empty.
+     */
+    public long getResumeToken()
+    {
+        return resumeToken;
+    }
+
+    /**
+     * @return whether or not there were more ids after this page when it
+     * was read.
+     */
+    public boolean hasMore()
+    {
+        return more;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString( ids ) + (more ? " resume after " + resumeToken : "");
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A set of primitive longs using open addressing, so that looking up ids
+ * read from redis doesn't box them. Only non-negative values, i.e. entity
+ * ids, can be stored.
+ */
+final class LongSet
+{
+    private static final long FREE = -1;
+
+    private long[] table;
+    private int size;
+
+    LongSet()
+    {
+        this( 4 );
+    }
+
+    LongSet( int expectedSize )
+    {
+        int capacity = 8;
+        while ( capacity < expectedSize * 2 )
+        {
+            capacity <<= 1;
+        }
+        table = newTable( capacity );
+    }
+
+    static LongSet of( Collection<Long> ids )
+    {
+        LongSet set = new LongSet( ids.size() );
+        for ( Long id : ids )
+        {
+            set.add( id );
+        }
+        return set;
+    }
+
+    /**
+     * @return {@code true} if {@code value} wasn't already in the set.
+     */
+    boolean add( long value )
+    {
+        if ( value < 0 )
+        {
+            throw new IllegalArgumentException( "Negative value " + value );
+        }
+        if ( (size + 1) * 2 > table.length )
+        {
+            grow();
+        }
+        int slot = slot( table, value );
+        if ( table[slot] == value )
+        {
+            return false;
+        }
+        table[slot] = value;
+        size++;
+        return true;
+    }
+
+    boolean contains( long value )
+    {
+        return value >= 0 && table[slot( table, value )] == value;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private void grow()
+    {
+        long[] old = table;
+        table = newTable( old.length * 2 );
+        for ( long value : old )
+        {
+            if ( value != FREE )
+            {
+                table[slot( table, value )] = value;
+            }
+        }
+    }
+
+    /**
+     * @return the slot holding {@code value}, or the free slot where it
+     * would go.
+     */
+    private static int slot( long[] table, long value )
+    {
+        int mask = table.length - 1;
+        int slot = hash( value ) & mask;
+        while ( table[slot] != FREE && table[slot] != value )
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash( long value )
+    {
+        // Spreads sequential ids over the table
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long[] newTable( int capacity )
+    {
+        long[] table = new long[capacity];
+        Arrays.fill( table, FREE );
+        return table;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+/**
+ * A query object for {@link RedisIndex#query(String, Object)} on an index of
+ * type {@link IndexType#numeric}, matching the entities with a value for the
+ * key within a range of numbers. The bounds are inclusive unless created
+ * with {@link #greaterThan(double)}, {@link #lessThan(double)} or
+ * {@link #between(double, boolean, double, boolean)}.
+ *
+ * The range can be limited to a window of the matching entities in value
+ * order with {@link #limit(int, int)}. Nothing after the window is ever
+ * transferred, the entries before it are read to find where it starts.
+ */
+public final class NumericRange
+{
+    private final double min;
+    private final double max;
+    private final int offset;
+    private final int count;
+
+    private NumericRange( double min, double max, int offset, int count )
+    {
+        this.min = min;
+        this.max = max;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    public static NumericRange between( double min, double max )
+    {
+        return new NumericRange( min, max, 0, -1 );
+    }
+
+    public static NumericRange between( double min, boolean minInclusive, double max,
+            boolean maxInclusive )
+    {
+        return new NumericRange( minInclusive ? min : Math.nextUp( min ),
+                maxInclusive ? max : Math.nextAfter( max, Double.NEGATIVE_INFINITY ), 0, -1 );
+    }
+
+    public static NumericRange atLeast( double min )
+    {
+        return between( min, Double.MAX_VALUE );
+    }
+
+    public static NumericRange greaterThan( double min )
+    {
+        return between( min, false, Double.MAX_VALUE, true );
+    }
+
+    public static NumericRange atMost( double max )
+    {
+        return between( -Double.MAX_VALUE, max );
+    }
+
+    public static NumericRange lessThan( double max )
+    {
+        return between( -Double.MAX_VALUE, true, max, false );
+    }
+
+    /**
+     * @return this range limited to its first {@code count} entities.
+     */
+    public NumericRange limit( int count )
+    {
+        return limit( 0, count );
+    }
+
+    /**
+     * @return this range limited to {@code count} entities, skipping the
+     * first {@code offset} of them in value order. An entity indexed with
+     * more than one value in the range counts once, at its lowest value.
+     */
+    public NumericRange limit( int offset, int count )
+    {
+        if ( offset < 0 || count < 0 )
+        {
+            throw new IllegalArgumentException( "Negative offset " + offset + " or count " + count );
+        }
+        return new NumericRange( min, max, offset, count );
+    }
+
+    double getMin()
+    {
+        return min;
+    }
+
+    double getMax()
+    {
+        return max;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return the max number of entities to return, or -1 for all of them.
+     */
+    int getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[" + min + " TO " + max + "]" + (count != -1 ? " LIMIT " + offset + "," + count : "");
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * The sorted sets of numeric values kept next to the postings by
+ * {@link IndexType#numeric}, one per key and scored by value. A member is
+ * the entity id as a length-prefixed segment followed by the value as it's
+ * stored, so that an entity can have more than one value for a key.
+ *
+ * Only values which parse as finite doubles are kept. Longs beyond 2^53
+ * lose precision in the score, same as in redis itself.
+ */
+final class NumericValues
+{
+    private NumericValues()
+    {
+    }
+
+    /**
+     * @return the score of {@code value}, or {@code null} if it isn't a number.
+     */
+    static Double score( String value )
+    {
+        double score;
+        try
+        {
+            score = Double.parseDouble( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+        return Double.isNaN( score ) || Double.isInfinite( score ) ? null : Double.valueOf( score );
+    }
+
+    static void add( Pipeline pipeline, RedisKeys keys, String key, String value, long id )
+    {
+        Double score = score( value );
+        if ( score != null )
+        {
+            pipeline.zadd( keys.numeric( key ), score, member( keys, id, value ) );
+        }
+    }
+
+    static void remove( Pipeline pipeline, RedisKeys keys, String key, String value, long id )
+    {
+        if ( score( value ) != null )
+        {
+            pipeline.zrem( keys.numeric( key ), member( keys, id, value ) );
+        }
+    }
+
+    static byte[] member( RedisKeys keys, long id, String value )
+    {
+        byte[] valueBytes = encode( value );
+        ByteArrayOutputStream out = new ByteArrayOutputStream( valueBytes.length + 10 );
+        Bytes.writeSegment( out, keys.id( id ) );
+        Bytes.write( out, valueBytes );
+        return out.toByteArray();
+    }
+
+    static long id( RedisKeys keys, byte[] member )
+    {
+        int length = (int) Bytes.readVarLong( member, 0 );
+        int start = Bytes.varLongSize( length );
+        return keys.id( Arrays.copyOfRange( member, start, start + length ) );
+    }
+
+    /**
+     * @return the score of the value in {@code member}, the same as it was
+     * added with.
+     */
+    static double score( byte[] member )
+    {
+        int length = (int) Bytes.readVarLong( member, 0 );
+        int start = Bytes.varLongSize( length ) + length;
+        return Double.parseDouble( Bytes.decode( Arrays.copyOfRange( member, start, member.length ) ) );
+    }
+
+    /**
+     * Reads the entities with a value of {@code key} in {@code range}, in
+     * value order, with ZRANGEBYSCORE ... LIMIT a page of entries at a time.
+     * Entities with more than one value in the range are returned once, and
+     * the offset and count of the range are of those distinct entities.
+     *
+     * Each page continues from the score and member of the last entry read
+     * rather than from an offset into the whole range, so entries written
+     * while the range is read don't shift it. Only the entries sharing the
+     * last score are skipped by offset. The page starts one entry early to
+     * check that the last entry is still in place. If it isn't, all the
+     * entries with that score are read again and those up to the last
+     * member are skipped.
+     */
+    static IdPages pages( final RedisKeys keys, final String key, final NumericRange range,
+            final int pageSize )
+    {
+        final byte[] valuesKey = keys.numeric( key );
+        return new IdPages()
+        {
+            private final LongSet returned = new LongSet();
+            private int skip = range.getOffset();
+            private int remaining = range.getCount();
+            private double lastScore = range.getMin();
+            private byte[] lastMember;
+            // Entries read with lastScore, up to and including lastMember
+            private int ties;
+            private boolean done;
+
+            public long[] next( Jedis resource )
+            {
+                while ( !done && remaining != 0 )
+                {
+                    // Each entry is at most one more entity, so don't read past the window
+                    int chunk = remaining == -1 ? pageSize : (int) Math.min( pageSize, (long) skip + remaining );
+                    int overlap = lastMember != null ? 1 : 0;
+                    List<byte[]> members = read( resource, ties - overlap, chunk + overlap );
+                    done = members.size() < chunk + overlap;
+                    int start = overlap;
+                    if ( overlap == 1 && (members.isEmpty() || !Arrays.equals( members.get( 0 ), lastMember )) )
+                    {
+                        // Entries with the last score were added or removed since
+                        members = read( resource, 0, ties + chunk );
+                        done = members.size() < ties + chunk;
+                        start = 0;
+                        ties = 0;
+                    }
+
+                    long[] page = new long[members.size()];
+                    int size = 0;
+                    for ( byte[] member : members.subList( start, members.size() ) )
+                    {
+                        double score = score( member );
+                        if ( score == lastScore && lastMember != null && start == 0 &&
+                                Bytes.compare( member, lastMember ) <= 0 )
+                        {
+                            ties++;
+                            continue;
+                        }
+                        ties = score == lastScore ? ties + 1 : 1;
+                        lastScore = score;
+                        lastMember = member;
+
+                        long id = id( keys, member );
+                        if ( !returned.add( id ) )
+                        {
+                            continue;
+                        }
+                        if ( skip > 0 )
+                        {
+                            skip--;
+                            continue;
+                        }
+                        page[size++] = id;
+                        if ( remaining != -1 && --remaining == 0 )
+                        {
+                            done = true;
+                            break;
+                        }
+                    }
+                    if ( size > 0 )
+                    {
+                        return size == page.length ? page : Arrays.copyOf( page, size );
+                    }
+                }
+                done = true;
+                return null;
+            }
+
+            private List<byte[]> read( Jedis resource, int offset, int count )
+            {
+                Pipeline pipeline = resource.pipelined();
+                pipeline.zrangeByScore( valuesKey, lastScore, range.getMax(), offset, count );
+                return Replies.multiBulk( pipeline.execute().get( 0 ) );
+            }
+        };
+    }
+}
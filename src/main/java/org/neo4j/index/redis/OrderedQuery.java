@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+/**
+ * A query object for {@link RedisIndex#query(Object)} which returns the hits
+ * of a {@link CompoundQuery} ordered by one of the
+ * {@link RedisIndexImplementation#CONFIG_KEY_SORT_KEYS sort keys} of the
+ * index, optionally limited to a window of them with {@link #limit(int, int)}.
+ *
+ * The hits are intersected with the sorted set of the sort key and the
+ * window read with ZRANGE, all in redis, so only the ids in the window are
+ * ever transferred. Entities without a value for the sort key aren't hits.
+ * Unlike unordered queries, changes made in the current transaction aren't
+ * reflected in the hits.
+ */
+public final class OrderedQuery
+{
+    private final CompoundQuery query;
+    private final String sortKey;
+    private final boolean descending;
+    private final int offset;
+    private final int count;
+
+    private OrderedQuery( CompoundQuery query, String sortKey, boolean descending, int offset,
+            int count )
+    {
+        this.query = query;
+        this.sortKey = sortKey;
+        this.descending = descending;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    /**
+     * @return the hits of {@code query} in ascending order of their value
+     * of {@code sortKey}.
+     */
+    public static OrderedQuery orderBy( CompoundQuery query, String sortKey )
+    {
+        if ( query == null || sortKey == null )
+        {
+            throw new IllegalArgumentException( "Null query or sort key" );
+        }
+        return new OrderedQuery( query, sortKey, false, 0, -1 );
+    }
+
+    /**
+     * @return the hits of {@code query}, parsed with
+     * {@link CompoundQuery#parse(String)}, in ascending order of their value
+     * of {@code sortKey}.
+     */
+    public static OrderedQuery orderBy( String query, String sortKey )
+    {
+        return orderBy( CompoundQuery.parse( query ), sortKey );
+    }
+
+    /**
+     * @return this query in descending order.
+     */
+    public OrderedQuery descending()
+    {
+        return new OrderedQuery( query, sortKey, true, offset, count );
+    }
+
+    /**
+     * @return this query limited to its first {@code count} hits.
+     */
+    public OrderedQuery limit( int count )
+    {
+        return limit( 0, count );
+    }
+
+    /**
+     * @return this query limited to {@code count} hits, skipping the first
+     * {@code offset} of them.
+     */
+    public OrderedQuery limit( int offset, int count )
+    {
+        if ( offset < 0 || count < 0 )
+        {
+            throw new IllegalArgumentException( "Negative offset " + offset + " or count " + count );
+        }
+        return new OrderedQuery( query, sortKey, descending, offset, count );
+    }
+
+    CompoundQuery getQuery()
+    {
+        return query;
+    }
+
+    String getSortKey()
+    {
+        return sortKey;
+    }
+
+    boolean isDescending()
+    {
+        return descending;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return the max number of hits, or -1 for all of them.
+     */
+    int getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return query + " ORDER BY " + sortKey + (descending ? " DESC" : "") +
+                (count != -1 ? " LIMIT " + offset + "," + count : "");
+    }
+}
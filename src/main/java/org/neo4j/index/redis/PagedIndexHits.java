@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.index.IndexHits;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * {@link IndexHits} which returns the hits added in the current transaction
+ * first and then reads the ids in redis a page at a time from {@link IdPages},
+ * skipping those removed in, or already returned from, the transaction. The
+ * first two pages are read on the caller's thread, most reads have only the
+ * one, after that the next page is fetched in the background while the
+ * current one is iterated.
+ *
+ * If created lazy nothing is read, not even the first page, until the
+ * hits are first iterated or sized.
+ *
+ * Ids are resolved into hits with {@link #resolve(long)} only as the
+ * iterator advances, so callers looking at the first few hits never pay
+ * for the rest. Ids which don't resolve, f.ex. of entities deleted from the
+ * graph but still in the index, are skipped.
+ */
+abstract class PagedIndexHits<T> implements IndexHits<T>
+{
+    private final long[] txIds;
+    private final LongSet txAdded;
+    private final LongSet txRemoved;
+    private final ConnectingIdPages pages;
+    private final RedisDataSource dataSource;
+    private final LinkedList<long[]> buffered = new LinkedList<long[]>();
+    private Future<long[]> prefetch;
+    private int pagesRead;
+    private boolean started;
+    private boolean exhausted;
+    private int txPosition;
+    private long[] page = new long[0];
+    private int position;
+    private int returnedFromPages;
+    private T next;
+
+    /**
+     * @param pages the pages to read, or {@code null} if there's nothing in
+     * redis to read.
+     * @param lazy whether to wait with reading the first page until needed.
+     */
+    PagedIndexHits( long[] txIds, LongSet txAdded, LongSet txRemoved,
+            IdPages pages, RedisDataSource dataSource, boolean lazy )
+    {
+        this( txIds, txAdded, txRemoved, connecting( pages ), dataSource, lazy );
+    }
+
+    PagedIndexHits( long[] txIds, LongSet txAdded, LongSet txRemoved,
+            ConnectingIdPages pages, RedisDataSource dataSource, boolean lazy )
+    {
+        this.txIds = txIds;
+        this.txAdded = txAdded;
+        this.txRemoved = txRemoved;
+        this.pages = pages;
+        this.dataSource = dataSource;
+        this.exhausted = pages == null;
+        if ( !lazy )
+        {
+            start();
+        }
+    }
+
+    private void start()
+    {
+        if ( !started )
+        {
+            started = true;
+            long[] first = fetch();
+            if ( first != null )
+            {
+                buffered.add( first );
+            }
+        }
+    }
+
+    /**
+     * @return the hit for {@code id} or {@code null} if it should be skipped.
+     */
+    protected abstract T resolve( long id );
+
+    /**
+     * @return the number of hits counted without reading them, or -1 if
+     * they can't be counted that way.
+     */
+    protected long count()
+    {
+        return -1;
+    }
+
+    public boolean hasNext()
+    {
+        while ( next == null )
+        {
+            long id;
+            if ( txPosition < txIds.length )
+            {
+                id = txIds[txPosition++];
+            }
+            else
+            {
+                start();
+                id = nextId();
+                if ( id == -1 )
+                {
+                    return false;
+                }
+                returnedFromPages++;
+            }
+            next = resolve( id );
+        }
+        return true;
+    }
+
+    public T next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    private long nextId()
+    {
+        while ( true )
+        {
+            while ( position < page.length )
+            {
+                long id = page[position++];
+                if ( !skip( id ) )
+                {
+                    return id;
+                }
+            }
+            page = nextPage();
+            position = 0;
+            if ( page == null )
+            {
+                page = new long[0];
+                return -1;
+            }
+        }
+    }
+
+    private boolean skip( long id )
+    {
+        return txRemoved.contains( id ) || txAdded.contains( id );
+    }
+
+    private long[] nextPage()
+    {
+        if ( !buffered.isEmpty() )
+        {
+            return buffered.removeFirst();
+        }
+        return fetch();
+    }
+
+    /**
+     * @return the next page from redis, prefetched if more than one page has
+     * been read, or {@code null} if there are no more pages.
+     */
+    private long[] fetch()
+    {
+        if ( exhausted )
+        {
+            return null;
+        }
+        long[] result = prefetch != null ? await( prefetch ) : read();
+        prefetch = null;
+        pagesRead++;
+        if ( result == null )
+        {
+            exhausted = true;
+        }
+        else if ( pagesRead > 1 )
+        {
+            prefetch();
+        }
+        return result;
+    }
+
+    private long[] read()
+    {
+        return pages.next( dataSource );
+    }
+
+    private void prefetch()
+    {
+        prefetch = dataSource.getReadExecutor().submit( new Callable<long[]>()
+        {
+            public long[] call()
+            {
+                return read();
+            }
+        } );
+    }
+
+    /**
+     * @return {@code pages} read with a connection held for each page, or
+     * {@code null} if {@code pages} is.
+     */
+    static ConnectingIdPages connecting( final IdPages pages )
+    {
+        if ( pages == null )
+        {
+            return null;
+        }
+        return new ConnectingIdPages()
+        {
+            public long[] next( RedisDataSource dataSource )
+            {
+                Jedis resource = dataSource.acquireResource();
+                try
+                {
+                    return pages.next( resource );
+                }
+                finally
+                {
+                    dataSource.releaseResource( resource );
+                }
+            }
+        };
+    }
+
+    static <V> V await( Future<V> future )
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Iterator<T> iterator()
+    {
+        return this;
+    }
+
+    /**
+     * Counts the hits with {@link #count()} if nothing has been read yet,
+     * otherwise reads all the remaining pages, if not already read, to count
+     * them. Ids which wouldn't resolve are counted too.
+     */
+    public int size()
+    {
+        if ( !started && pages != null )
+        {
+            long count = count();
+            if ( count != -1 )
+            {
+                return (int) count;
+            }
+        }
+        start();
+        for ( long[] result = fetch(); result != null; result = fetch() )
+        {
+            buffered.add( result );
+        }
+        int remaining = 0;
+        for ( int i = position; i < page.length; i++ )
+        {
+            remaining += skip( page[i] ) ? 0 : 1;
+        }
+        for ( long[] bufferedPage : buffered )
+        {
+            for ( long id : bufferedPage )
+            {
+                remaining += skip( id ) ? 0 : 1;
+            }
+        }
+        return txIds.length + returnedFromPages + remaining;
+    }
+
+    public void close()
+    {
+        started = true;
+        txPosition = txIds.length;
+        if ( prefetch != null )
+        {
+            prefetch.cancel( false );
+            prefetch = null;
+        }
+        exhausted = true;
+        buffered.clear();
+        page = new long[0];
+    }
+
+    public T getSingle()
+    {
+        try
+        {
+            T single = hasNext() ? next() : null;
+            if ( hasNext() )
+            {
+                throw new NoSuchElementException( "More than one hit, " + single + " and " + next() );
+            }
+            return single;
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    public float currentScore()
+    {
+        return Float.NaN;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Postings split into sets by id range, used by {@link IndexType#multiple_values}
+ * indexes with {@link RedisIndexImplementation#CONFIG_KEY_POSTING_RANGE_SIZE} set.
+ *
+ * The posting key itself is a directory set of the range numbers in use and
+ * the ids of each range are in a set at {@link RedisKeys#part(byte[], long)}.
+ * No single command then touches more than one range of a posting, however
+ * many entities a popular value has, so redis can serve other clients in
+ * between. Sets of ranges whose ids all have been removed disappear, and
+ * reads which find a range of a single posting empty remove it from the
+ * directory, guarded by WATCH so that a concurrent add always wins.
+ */
+final class RangePostings
+{
+    private RangePostings()
+    {
+    }
+
+    static void add( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+    {
+        long range = id / keys.getPostingRangeSize();
+        pipeline.sadd( keys.part( posting, range ), keys.id( id ) );
+        pipeline.sadd( posting, keys.id( range ) );
+    }
+
+    static void remove( Pipeline pipeline, RedisKeys keys, byte[] posting, long id )
+    {
+        long range = id / keys.getPostingRangeSize();
+        pipeline.srem( keys.part( posting, range ), keys.id( id ) );
+    }
+
+    /**
+     * Reads the ids found in all of {@code postings}, a few ranges per page.
+     * The first page also reads the directories in one round trip, then
+     * every page reads its ranges in another, one command per range.
+     */
+    static IdPages pages( final RedisKeys keys, final byte[][] postings, int pageSize )
+    {
+        final int rangesPerPage = (int) Math.max( 1, pageSize / keys.getPostingRangeSize() );
+        return new IdPages()
+        {
+            private List<Long> ranges;
+            private int position;
+
+            public long[] next( Jedis resource )
+            {
+                if ( ranges == null )
+                {
+                    ranges = readRanges( resource, keys, postings );
+                }
+                if ( position >= ranges.size() )
+                {
+                    return null;
+                }
+                List<Long> pageRanges = ranges.subList( position,
+                        Math.min( position + rangesPerPage, ranges.size() ) );
+                position += pageRanges.size();
+                return readPage( resource, keys, postings, pageRanges );
+            }
+        };
+    }
+
+    /**
+     * Counts the ids in {@code posting} like
+     * {@link IndexType#count(Jedis, RedisKeys, byte[][], long[], long[])},
+     * reading the directory in one round trip and counting the ranges in
+     * another.
+     */
+    static long count( Jedis resource, RedisKeys keys, byte[] posting, long[] added, long[] removed )
+    {
+        Pipeline pipeline = resource.pipelined();
+        List<Long> ranges = new ArrayList<Long>();
+        for ( byte[] range : resource.smembers( posting ) )
+        {
+            ranges.add( keys.id( range ) );
+            pipeline.scard( keys.part( posting, ranges.get( ranges.size() - 1 ) ) );
+        }
+        long count = 0;
+        List<Long> empty = new ArrayList<Long>();
+        int r = 0;
+        for ( Object reply : pipeline.execute() )
+        {
+            long rangeCount = Replies.integer( reply );
+            if ( rangeCount == 0 )
+            {
+                empty.add( ranges.get( r ) );
+            }
+            count += rangeCount;
+            r++;
+        }
+        prune( resource, keys, posting, empty );
+        if ( added.length + removed.length == 0 )
+        {
+            return count;
+        }
+        
+        pipeline = resource.pipelined();
+        for ( long[] ids : new long[][] { added, removed } )
+        {
+            for ( long id : ids )
+            {
+                pipeline.sismember( keys.part( posting, id / keys.getPostingRangeSize() ), keys.id( id ) );
+            }
+        }
+        return IndexType.correctedCount( count, pipeline.execute(), added.length );
+    }
+
+    private static List<Long> readRanges( Jedis resource, RedisKeys keys, byte[][] postings )
+    {
+        Pipeline pipeline = resource.pipelined();
+        for ( byte[] posting : postings )
+        {
+            pipeline.smembers( posting );
+        }
+        Set<Long> ranges = null;
+        for ( Object reply : pipeline.execute() )
+        {
+            Set<Long> postingRanges = new HashSet<Long>();
+            for ( byte[] member : Replies.multiBulk( reply ) )
+            {
+                postingRanges.add( keys.id( member ) );
+            }
+            if ( ranges == null )
+            {
+                ranges = postingRanges;
+            }
+            else
+            {
+                ranges.retainAll( postingRanges );
+            }
+        }
+        List<Long> sortedRanges = new ArrayList<Long>( ranges );
+        Collections.sort( sortedRanges );
+        return sortedRanges;
+    }
+
+    private static long[] readPage( Jedis resource, RedisKeys keys, byte[][] postings, List<Long> ranges )
+    {
+        Pipeline pipeline = resource.pipelined();
+        for ( Long range : ranges )
+        {
+            byte[][] rangeKeys = new byte[postings.length][];
+            for ( int i = 0; i < postings.length; i++ )
+            {
+                rangeKeys[i] = keys.part( postings[i], range );
+            }
+            if ( rangeKeys.length == 1 )
+            {
+                pipeline.smembers( rangeKeys[0] );
+            }
+            else
+            {
+                pipeline.sinter( rangeKeys );
+            }
+        }
+        List<List<byte[]>> members = new ArrayList<List<byte[]>>();
+        List<Long> empty = new ArrayList<Long>();
+        int size = 0;
+        int r = 0;
+        for ( Object reply : pipeline.execute() )
+        {
+            List<byte[]> rangeMembers = Replies.multiBulk( reply );
+            members.add( rangeMembers );
+            size += rangeMembers.size();
+            if ( rangeMembers.isEmpty() )
+            {
+                empty.add( ranges.get( r ) );
+            }
+            r++;
+        }
+        if ( postings.length == 1 )
+        {
+            // An empty intersection doesn't tell which of the ranges is gone
+            prune( resource, keys, postings[0], empty );
+        }
+        long[] ids = new long[size];
+        int i = 0;
+        for ( List<byte[]> rangeMembers : members )
+        {
+            for ( byte[] member : rangeMembers )
+            {
+                ids[i++] = keys.id( member );
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Removes {@code ranges} from the directory of {@code posting}, each
+     * unless its set has been added to since it was found empty.
+     */
+    private static void prune( Jedis resource, RedisKeys keys, byte[] posting, List<Long> ranges )
+    {
+        for ( Long range : ranges )
+        {
+            byte[] rangeKey = keys.part( posting, range );
+            resource.watch( rangeKey );
+            if ( resource.exists( rangeKey ) )
+            {
+                // Added since we looked
+                resource.unwatch();
+                continue;
+            }
+            Transaction transaction = resource.multi();
+            transaction.srem( posting, keys.id( range ) );
+            // A null result means that a concurrent add won, the range stays
+            transaction.exec();
+        }
+    }
+}
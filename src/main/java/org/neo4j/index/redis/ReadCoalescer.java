@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical reads share one call to redis. The first thread
+ * asking for a key runs the read and any other thread asking for the same
+ * key while it's in flight waits for, and gets, its result instead of
+ * issuing a read of its own. Results aren't kept after the read completes.
+ * Reads are only shared between callers which asked after the same number
+ * of commits, see {@link #committed()}, so a caller never gets a read that
+ * started before its own last commit. Shared results must not be modified.
+ */
+class ReadCoalescer
+{
+    private final ConcurrentMap<Object, FutureTask<?>> inFlight =
+            new ConcurrentHashMap<Object, FutureTask<?>>();
+    private final AtomicLong coalescedReads = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    @SuppressWarnings( "unchecked" )
+    <V> V read( Object readKey, Callable<V> reader )
+    {
+        List<Object> key = new ArrayList<Object>( 2 );
+        key.add( commits.get() );
+        key.add( readKey );
+        FutureTask<V> task = new FutureTask<V>( reader );
+        FutureTask<V> existing = (FutureTask<V>) inFlight.putIfAbsent( key, task );
+        if ( existing != null )
+        {
+            coalescedReads.incrementAndGet();
+            return PagedIndexHits.await( existing );
+        }
+        try
+        {
+            task.run();
+            return PagedIndexHits.await( task );
+        }
+        finally
+        {
+            inFlight.remove( key, task );
+        }
+    }
+
+    /**
+     * Called once a transaction has written to redis, or may have. Reads
+     * already in flight may not see its writes and aren't shared with
+     * reads asked for after this.
+     */
+    void committed()
+    {
+        commits.incrementAndGet();
+    }
+
+    /**
+     * @return a key for reading the given redis keys, equal to that of any
+     * other read of the same keys.
+     */
+    static Object key( byte[]... redisKeys )
+    {
+        List<ByteBuffer> key = new ArrayList<ByteBuffer>( redisKeys.length );
+        for ( byte[] redisKey : redisKeys )
+        {
+            key.add( ByteBuffer.wrap( redisKey ) );
+        }
+        return key;
+    }
+
+    /**
+     * @return the number of reads which were served by another read in flight.
+     */
+    long getCoalescedReads()
+    {
+        return coalescedReads.get();
+    }
+}
@@ -19,7 +19,6 @@
  */
 package org.neo4j.index.redis;
 
-import static org.neo4j.index.redis.RedisDataSource.formRedisKeyForKeyValue;
 import static org.neo4j.index.redis.RedisDataSource.getIndexType;
 
 import java.util.Map;
@@ -44,6 +43,7 @@ public class RedisBatchInserterIndex implements BatchInserterIndex
     private final IndexIdentifier identifier;
     private final Map<String, String> config;
     private final IndexType indexType;
+    private final RedisKeys keys;
     private final boolean includeRelationshipInformation;
     
     private Jedis writeResource;
@@ -59,8 +59,9 @@ public class RedisBatchInserterIndex implements BatchInserterIndex
         this.identifier = identifier;
         this.config = config;
         this.indexType = getIndexType( config );
+        this.keys = new RedisKeys( identifier, config );
         this.includeRelationshipInformation = identifier.getEntityType().equals( Relationship.class ) &&
-                indexType == IndexType.multiple_values;
+                indexType != IndexType.single_value;
         
         writeResource = provider.newResource();
         newPipeline();
@@ -69,7 +70,7 @@ public class RedisBatchInserterIndex implements BatchInserterIndex
 
     private void newPipeline()
     {
-        pipeline = writeResource.pipelined();
+        pipeline = new RedisPipeline( writeResource );
         pipeline.multi();
     }
     
@@ -86,9 +87,15 @@ public class RedisBatchInserterIndex implements BatchInserterIndex
                 SimpleRelationship rel = inserter.getRelationshipById( entityId );
                 startNode = rel.getStartNode();
                 endNode = rel.getEndNode();
+                indexType.checkId( startNode );
+                indexType.checkId( endNode );
             }
-            indexType.add( pipeline, identifier, property.getKey(), property.getValue().toString(),
-                    entityId, startNode, endNode );
+            indexType.checkId( entityId );
+            String value = property.getValue().toString();
+            String storedKey = keys.storedKey( readResource, property.getKey() );
+            String storedValue = keys.storedValue( readResource, value );
+            indexType.add( pipeline, keys, storedKey, storedValue, entityId, startNode, endNode );
+            indexType.useDigest( pipeline, keys, storedKey, storedValue, value, entityId );
             pipelineSize++;
         }
         checkPipelineThreshold();
@@ -112,10 +119,10 @@ public class RedisBatchInserterIndex implements BatchInserterIndex
     @Override
     public IndexHits<Long> get( String key, Object value )
     {
-        String idString = readResource.get( formRedisKeyForKeyValue( identifier, key, value.toString() ) );
-        if ( idString != null && !idString.equals( "nil" ) )
+        Long id = indexType.readId( readResource, keys, key, value.toString() );
+        if ( id != null )
         {
-            return new SingleIndexHit<Long>( Long.valueOf( idString ) );
+            return new SingleIndexHit<Long>( id );
         }
         return NoIndexHits.instance();
     }
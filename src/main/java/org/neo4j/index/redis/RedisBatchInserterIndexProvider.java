@@ -73,6 +73,19 @@ public class RedisBatchInserterIndexProvider implements BatchInserterIndexProvid
         return db.getResource();
     }
 
+    private long allocateIndexId()
+    {
+        Jedis resource = newResource();
+        try
+        {
+            return RedisDataSource.allocateIndexId( resource );
+        }
+        finally
+        {
+            db.returnResource( resource );
+        }
+    }
+
     @Override
     public void shutdown()
     {
@@ -96,8 +109,14 @@ public class RedisBatchInserterIndexProvider implements BatchInserterIndexProvid
         if ( config != null )
         {
             config = stringMap( new HashMap<String, String>( config ), PROVIDER, SERVICE_NAME );
+            if ( indexStore.get( cls, indexName ) == null &&
+                    RedisDataSource.getKeyFormat( config ).usesIndexId() &&
+                    config.get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) == null )
+            {
+                config.put( RedisIndexImplementation.CONFIG_KEY_INDEX_ID, "" + allocateIndexId() );
+            }
             indexStore.setIfNecessary( cls, indexName, config );
-            return config;
+            return indexStore.get( cls, indexName );
         }
         else
         {
@@ -20,6 +20,13 @@
 package org.neo4j.index.redis;
 
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.neo4j.graphdb.Node;
@@ -30,6 +37,7 @@ import org.neo4j.index.base.ParamsUtil;
 import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 import org.neo4j.kernel.impl.transaction.xaframework.XaLogicalLog;
 import org.neo4j.kernel.impl.transaction.xaframework.XaTransaction;
+import org.neo4j.kernel.impl.util.StringLogger;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -62,7 +70,26 @@ public class RedisDataSource extends IndexDataSource
     static final int DEFAULT_TIMEOUT = 2000;
     static final int DEFAULT_DATABASE = 0;
 
+    /**
+     * Counter which hands out the index ids used by the binary key formats.
+     */
+    static final String INDEX_ID_COUNTER_KEY = "index.redis.ids";
+
+    static final int DEFAULT_PREFETCH_THREADS = 8;
+
+    static final String SWEEPER_PREFIX = REDIS_PREFIX + "sweeper.";
+    static final int DEFAULT_SWEEPER_BATCH_SIZE = 100;
+    static final int DEFAULT_SWEEPER_INTERVAL = 1000;
+    static final int DEFAULT_SWEEPER_MAX_LATENCY = 5;
+
     private JedisPool db;
+    private StringLogger msgLog;
+    private IndexRegistry registry;
+    private Sweeper sweeper;
+    private ExecutorService readExecutor;
+    private final DeferredReads deferredReads = new DeferredReads();
+    private final ReadCoalescer readCoalescer = new ReadCoalescer();
+    private final IntersectionPlanner intersectionPlanner = new IntersectionPlanner();
 
     // the target Redis database numeric index
     // needs to be static because newJedisPool is called from a static context in the batch inserter
@@ -85,9 +112,57 @@ public class RedisDataSource extends IndexDataSource
     protected void initializeBeforeLogicalLog( Map<?, ?> params ) {
 
         db = newJedisPool( params );
+        msgLog = (StringLogger) params.get( StringLogger.class );
+        if ( msgLog == null )
+        {
+            msgLog = StringLogger.SYSTEM;
+        }
+        registry = new IndexRegistry( this );
+        readExecutor = newReadExecutor(
+                ParamsUtil.getInt( params, REDIS_PREFIX + "prefetch_threads", DEFAULT_PREFETCH_THREADS ) );
         //TODO check that redis is accessible. For the moment tests through NPE if it's not
+        
+        if ( "true".equals( ParamsUtil.getString( params, SWEEPER_PREFIX + "enabled" ) ) )
+        {
+            sweeper = new Sweeper( this,
+                    ParamsUtil.getInt( params, SWEEPER_PREFIX + "batch_size", DEFAULT_SWEEPER_BATCH_SIZE ),
+                    ParamsUtil.getInt( params, SWEEPER_PREFIX + "interval", DEFAULT_SWEEPER_INTERVAL ),
+                    ParamsUtil.getInt( params, SWEEPER_PREFIX + "max_latency", DEFAULT_SWEEPER_MAX_LATENCY ) );
+            sweeper.start();
+        }
     }
     
+    /**
+     * @return an executor of at most {@code threads} threads, each holding a
+     * pooled connection while it reads. Pages which find them all busy are
+     * read on the caller's thread instead of waiting in a queue.
+     */
+    static ThreadPoolExecutor newReadExecutor( int threads )
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( 0, Math.max( threads, 1 ),
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "Redis index prefetch" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        executor.setRejectedExecutionHandler( new RejectedExecutionHandler()
+        {
+            public void rejectedExecution( Runnable task, ThreadPoolExecutor executor )
+            {
+                if ( executor.isShutdown() )
+                {
+                    throw new RejectedExecutionException( "Redis index data source closed" );
+                }
+                task.run();
+            }
+        } );
+        return executor;
+    }
+
     static JedisPool newJedisPool( Map<?, ?> params )
     {
         // jedis parameters
@@ -125,6 +200,11 @@ public class RedisDataSource extends IndexDataSource
     @Override
     protected void actualClose()
     {
+        if ( sweeper != null )
+        {
+            sweeper.stop();
+        }
+        readExecutor.shutdownNow();
         db.destroy();
     }
 
@@ -155,62 +235,126 @@ public class RedisDataSource extends IndexDataSource
         return targetDatabase;
     }
 
-    private static StringBuilder redisKeyStart( IndexIdentifier identifier )
+    StringLogger getMsgLog()
+    {
+        return msgLog;
+    }
+
+    /**
+     * @return the sweeper pruning orphaned reverse index entries, or
+     * {@code null} unless it has been enabled with "index.redis.sweeper.enabled".
+     */
+    public Sweeper getSweeper()
     {
-        String entityType = identifier.getEntityType().equals( Node.class ) ? "n" : "r";
-        return new StringBuilder( entityType ).append(KEY_DELIMITER).append(identifier.getIndexName());
+        return sweeper;
     }
 
-    public static String formRedisKeyForIndex( IndexIdentifier identifier )
+    /**
+     * @return the executor which index hits prefetch their next page with.
+     */
+    ExecutorService getReadExecutor()
     {
-        return redisKeyStart(identifier).toString();
+        return readExecutor;
     }
-    
-    public static String formRedisKeyForKeyValue( IndexIdentifier identifier, String key, String value )
+
+    DeferredReads getDeferredReads()
     {
-        return redisKeyStart( identifier ).append( KEY_DELIMITER ).append( key ).append( KEY_DELIMITER )
-                .append( value ).toString();
+        return deferredReads;
     }
 
-    public static String formRedisKeyForEntityAndKeyRemoval( IndexIdentifier identifier, String key, long id )
+    ReadCoalescer getReadCoalescer()
     {
-        return redisKeyStart( identifier ).append( KEY_DELIMITER )
-                .append(key).append( ID_DELIMITER ).append( id ).toString();
+        return readCoalescer;
     }
 
-    public static String formRedisKeyForEntityRemoval( IndexIdentifier identifier, long id )
+    IntersectionPlanner getIntersectionPlanner()
     {
-        return redisKeyStart(identifier).append( ID_DELIMITER ).append( id ).toString();
+        return intersectionPlanner;
     }
 
-    public static String formRedisStartNodeKey( IndexIdentifier identifier, long id)
+    IndexRegistry getRegistry()
     {
-        return redisKeyStart( identifier ).append(KEY_DELIMITER)
-                .append("start").append(ID_DELIMITER).append(id).toString();
+        return registry;
     }
 
-    public static String formRedisEndNodeKey(IndexIdentifier identifier, long id)
+    public RedisKeys getKeys( IndexIdentifier identifier )
     {
-        return redisKeyStart( identifier ).append(KEY_DELIMITER)
-                .append("end").append(ID_DELIMITER).append(id).toString();
+        return registry.get( identifier ).getKeys();
     }
 
-    // pattern to look up all the keys related to an index using the Redis "key" command
-    public String formRedisIndexPattern ( IndexIdentifier identifier )
+    /**
+     * Allocates a new numeric index id, used as key prefix by the
+     * binary {@link KeyFormat}s.
+     */
+    static long allocateIndexId( Jedis resource )
     {
-        return redisKeyStart( identifier ).append('[')
-                .append(KEY_DELIMITER).append(ID_DELIMITER).append("]*").toString() ;
+        return resource.incr( INDEX_ID_COUNTER_KEY );
     }
-    
+
     public IndexType getIndexType( IndexIdentifier identifier )
     {
-        // TODO optimize... by a cache maybe?
-        Map<String, String> config = getIndexStore().get( identifier.getEntityType(), identifier.getIndexName() );
-        return getIndexType(config);
+        return registry.get( identifier ).getType();
     }
     
     public static IndexType getIndexType( Map<String, String> config )
     {
         return IndexType.valueOf( config.get( "type" ) );
     }
+
+    public static KeyFormat getKeyFormat( Map<String, String> config )
+    {
+        String format = config.get( RedisIndexImplementation.CONFIG_KEY_KEY_FORMAT );
+        return format != null ? KeyFormat.valueOf( format ) : KeyFormat.text;
+    }
+
+    public static ReverseLayout getReverseLayout( Map<String, String> config )
+    {
+        String layout = config.get( RedisIndexImplementation.CONFIG_KEY_REVERSE_LAYOUT );
+        return layout != null ? ReverseLayout.valueOf( layout ) : ReverseLayout.sets;
+    }
+
+    public static int getBuckets( Map<String, String> config )
+    {
+        String buckets = config.get( RedisIndexImplementation.CONFIG_KEY_BUCKETS );
+        return Integer.parseInt( buckets != null ? buckets : RedisIndexImplementation.DEFAULT_BUCKETS );
+    }
+
+    public static int getValueDigestThreshold( Map<String, String> config )
+    {
+        String threshold = config.get( RedisIndexImplementation.CONFIG_KEY_VALUE_DIGEST_THRESHOLD );
+        return Integer.parseInt( threshold != null ? threshold :
+                RedisIndexImplementation.DEFAULT_VALUE_DIGEST_THRESHOLD );
+    }
+
+    public static long getPostingRangeSize( Map<String, String> config )
+    {
+        String size = config.get( RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE );
+        return Long.parseLong( size != null ? size : RedisIndexImplementation.DEFAULT_POSTING_RANGE_SIZE );
+    }
+
+    public static int getPageSize( Map<String, String> config )
+    {
+        String size = config.get( RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE );
+        return Integer.parseInt( size != null ? size : RedisIndexImplementation.DEFAULT_PAGE_SIZE );
+    }
+
+    public static boolean usesKeyDictionary( Map<String, String> config )
+    {
+        return Boolean.parseBoolean( config.get( RedisIndexImplementation.CONFIG_KEY_KEY_DICTIONARY ) );
+    }
+
+    public static boolean supportsPrefixQueries( Map<String, String> config )
+    {
+        return Boolean.parseBoolean( config.get( RedisIndexImplementation.CONFIG_KEY_PREFIX_QUERIES ) );
+    }
+
+    static SortKeys getSortKeys( Map<String, String> config )
+    {
+        return SortKeys.parse( config.get( RedisIndexImplementation.CONFIG_KEY_SORT_KEYS ) );
+    }
+
+    public static boolean defersReads( Map<String, String> config )
+    {
+        return Boolean.parseBoolean( config.get( RedisIndexImplementation.CONFIG_KEY_DEFERRED_READS ) );
+    }
 }
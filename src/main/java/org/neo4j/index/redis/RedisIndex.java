@@ -20,17 +20,22 @@
 package org.neo4j.index.redis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.index.base.IndexBaseXaConnection;
 import org.neo4j.index.base.IndexIdentifier;
 import org.neo4j.index.base.keyvalue.KeyValueIndex;
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
 
 import redis.clients.jedis.Jedis;
 
@@ -47,22 +52,473 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
         return (RedisIndexImplementation) super.getProvider();
     }
     
+    @Override
+    public void add( T entity, String key, Object value )
+    {
+        checkIds( getProvider().dataSource().getIndexType( getIdentifier() ), entity );
+        forgetReads( key );
+        super.add( entity, key, value );
+    }
+    
+    /**
+     * Checks the ids which {@code entity} would be stored under with
+     * {@link IndexType#checkId(long)}, so that they're rejected here rather
+     * than when committing.
+     */
+    protected abstract void checkIds( IndexType type, T entity );
+    
+    @Override
+    public void remove( T entity, String key, Object value )
+    {
+        forgetReads( key );
+        super.remove( entity, key, value );
+    }
+    
     public void remove( T entity, String key )
     {
+        forgetReads( key );
         IndexBaseXaConnection connection = getConnection();
         connection.remove( this, entity, key, null );
     }
     
     public void remove( T entity )
     {
+        forgetReads( null );
         IndexBaseXaConnection connection = getConnection();
         connection.remove( this, entity, null, null );
     }
     
+    private void forgetReads( String key )
+    {
+        TransactionReads reads = getProvider().transactionReads( false );
+        if ( reads != null )
+        {
+            reads.invalidate( getIdentifier(), key );
+        }
+    }
+    
     @Override
     public IndexHits<T> get( String key, Object value )
     {
-        return read( new EntityGetCallback( key, value ) );
+        return new EntityGetCallback( key, value ).execute( false );
+    }
+
+    /**
+     * Returns the ids of the entities indexed with {@code key} and
+     * {@code value}, like {@link #get(String, Object)} but without looking
+     * them up in the graph.
+     */
+    public IndexHits<Long> getIds( String key, Object value )
+    {
+        return new EntityGetCallback( key, value ).execute( true );
+    }
+
+    /**
+     * Looks up the entities indexed with {@code key} and each of
+     * {@code values}, reading the postings of all of them in one round trip
+     * where the index type allows it.
+     *
+     * @return the hits for each value, in the order of {@code values}.
+     */
+    public Map<Object, IndexHits<T>> getMany( String key, Collection<?> values )
+    {
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        List<EntityGetCallback> callbacks = new ArrayList<EntityGetCallback>( values.size() );
+        byte[][][] postings = new byte[values.size()][][];
+        IdPages[] pages;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            for ( Object value : values )
+            {
+                EntityGetCallback callback = new EntityGetCallback( key, value );
+                read( callback ).close();
+                postings[callbacks.size()] = callback.getPostings( resource, index.getKeys() );
+                callbacks.add( callback );
+            }
+            pages = index.getType().pagesOfEach( resource, index.getKeys(), postings, index.getPageSize() );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        
+        Map<Object, IndexHits<T>> result = new LinkedHashMap<Object, IndexHits<T>>();
+        int i = 0;
+        for ( Object value : values )
+        {
+            result.put( value, callbacks.get( i ).<T>hits( pages[i], false, false ) );
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Counts the entities indexed with {@code key} and {@code value},
+     * including the changes of the current transaction, with SCARD rather
+     * than reading them where the index type allows it.
+     */
+    public long count( String key, Object value )
+    {
+        return new EntityGetCallback( key, value ).count();
+    }
+
+    /**
+     * Returns the next {@code limit} ids, in id order, of the entities
+     * indexed with {@code key} and {@code value} after {@code afterId}, on an
+     * index of type {@link IndexType#id_ordered}. Start with
+     * {@link KeysetPage#START} and pass the {@link KeysetPage#getResumeToken()
+     * resume token} of each page to get the next one.
+     *
+     * Each page is read with a ZRANGEBYSCORE from the token, so it costs the
+     * same however deep into the posting it is, and pages never skip or
+     * repeat ids because of writes to the posting in between them: an id
+     * removed in between just isn't there, and one added in between is
+     * seen if it comes after the token. The changes of the current
+     * transaction are included.
+     */
+    public KeysetPage page( String key, Object value, long afterId, int limit )
+    {
+        if ( limit < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid limit " + limit );
+        }
+        AbstractReadCallback callback = new EntityGetCallback( key, value );
+        read( callback ).close();
+        long[] added = new long[callback.txIds.length];
+        int addedSize = 0;
+        for ( long id : callback.txIds )
+        {
+            if ( id > afterId )
+            {
+                added[addedSize++] = id;
+            }
+        }
+        Arrays.sort( added, 0, addedSize );
+        
+        // One more than the limit is read to tell whether there are more
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        long[] committed = new long[limit + 1];
+        int committedSize = 0;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            byte[][] postings = callback.getPostings( resource, index.getKeys() );
+            for ( long from = afterId; postings != null && committedSize < committed.length; )
+            {
+                int wanted = committed.length - committedSize;
+                long[] ids = index.getType().page( resource, index.getKeys(), postings[0], from, wanted );
+                for ( long id : ids )
+                {
+                    if ( !callback.txRemoved.contains( id ) )
+                    {
+                        committed[committedSize++] = id;
+                    }
+                }
+                if ( ids.length < wanted )
+                {
+                    break;
+                }
+                from = ids[ids.length - 1];
+            }
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        
+        long[] merged = new long[limit + 1];
+        int size = 0;
+        for ( int a = 0, c = 0; size < merged.length && (a < addedSize || c < committedSize); )
+        {
+            long id = c == committedSize || (a < addedSize && added[a] < committed[c]) ?
+                    added[a++] : committed[c++];
+            if ( size == 0 || merged[size - 1] != id )
+            {
+                merged[size++] = id;
+            }
+        }
+        boolean more = size > limit;
+        long[] ids = Arrays.copyOf( merged, more ? limit : size );
+        return new KeysetPage( ids, ids.length > 0 ? ids[ids.length - 1] : afterId, more );
+    }
+
+    /**
+     * Supports {@link NumericRange} query objects on indexes of type
+     * {@link IndexType#numeric} and "prefix*" queries on indexes with
+     * {@link RedisIndexImplementation#CONFIG_KEY_PREFIX_QUERIES} set, see
+     * {@link #queryIds(String, Object)}.
+     */
+    @Override
+    public IndexHits<T> query( String key, Object queryOrQueryObject )
+    {
+        if ( RegisteredIndex.isQuery( queryOrQueryObject ) )
+        {
+            return query( key, queryOrQueryObject, false );
+        }
+        return super.query( key, queryOrQueryObject );
+    }
+
+    /**
+     * Returns the ids of the entities with a value of {@code key} matching
+     * {@code queryOrQueryObject}, either within a {@link NumericRange}, in
+     * value order, or starting with the prefix of a "prefix*" query. The ids
+     * are read a page at a time, only within the limits of a range if it has
+     * any. The changes of the current transaction aren't included, since
+     * they aren't ordered by value.
+     */
+    public IndexHits<Long> queryIds( String key, Object queryOrQueryObject )
+    {
+        if ( !RegisteredIndex.isQuery( queryOrQueryObject ) )
+        {
+            throw new UnsupportedOperationException( "Unsupported query " + queryOrQueryObject );
+        }
+        return query( key, queryOrQueryObject, true );
+    }
+
+    private <H> IndexHits<H> query( String key, Object query, final boolean idsOnly )
+    {
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        IdPages pages;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            pages = index.queryPages( resource, key, query );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        return new PagedIndexHits<H>( new long[0], new LongSet(), new LongSet(), pages, dataSource, true )
+        {
+            @Override
+            protected H resolve( long id )
+            {
+                return RedisIndex.this.<H>resolve( id, idsOnly );
+            }
+        };
+    }
+
+    /**
+     * Supports {@link CompoundQuery} query objects, or strings which are
+     * parsed into one, on index types with
+     * {@link IndexType#hasSetPostings(RedisKeys) set postings}, see
+     * {@link CompoundQueries}. The changes of the current transaction are
+     * included. Also supports {@link OrderedQuery} query objects, which
+     * don't include them.
+     */
+    @Override
+    public IndexHits<T> query( Object queryOrQueryObject )
+    {
+        if ( queryOrQueryObject instanceof OrderedQuery )
+        {
+            return orderedQuery( (OrderedQuery) queryOrQueryObject, false );
+        }
+        return compoundQuery( compoundQuery( queryOrQueryObject ), false );
+    }
+
+    /**
+     * Returns the ids of the entities matching a {@link CompoundQuery} or an
+     * {@link OrderedQuery}, like {@link #query(Object)} but without looking
+     * them up in the graph.
+     */
+    public IndexHits<Long> queryIds( Object queryOrQueryObject )
+    {
+        if ( queryOrQueryObject instanceof OrderedQuery )
+        {
+            return orderedQuery( (OrderedQuery) queryOrQueryObject, true );
+        }
+        return compoundQuery( compoundQuery( queryOrQueryObject ), true );
+    }
+
+    private static CompoundQuery compoundQuery( Object queryOrQueryObject )
+    {
+        if ( queryOrQueryObject instanceof CompoundQuery )
+        {
+            return (CompoundQuery) queryOrQueryObject;
+        }
+        if ( queryOrQueryObject instanceof String )
+        {
+            return CompoundQuery.parse( (String) queryOrQueryObject );
+        }
+        throw new UnsupportedOperationException( "Unsupported query " + queryOrQueryObject );
+    }
+
+    private <H> IndexHits<H> compoundQuery( CompoundQuery query, final boolean idsOnly )
+    {
+        if ( query.getOperator() == CompoundQuery.Operator.NOT )
+        {
+            throw new IllegalArgumentException( "NOT must be combined with AND in " + query );
+        }
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        if ( !index.getType().hasSetPostings( index.getKeys() ) )
+        {
+            throw new UnsupportedOperationException( "Compound queries aren't supported by " +
+                    index.getType() + " postings" );
+        }
+        
+        // Picks up the transaction state of each term and the ids it changed
+        List<CompoundQuery> terms = query.terms();
+        List<AbstractReadCallback> callbacks = new ArrayList<AbstractReadCallback>( terms.size() );
+        LongSet touchedIds = new LongSet();
+        List<Long> touched = new ArrayList<Long>();
+        for ( CompoundQuery term : terms )
+        {
+            AbstractReadCallback callback = new EntityGetCallback( term.getKey(), term.getValue() );
+            read( callback ).close();
+            callbacks.add( callback );
+            for ( long[] ids : new long[][] { callback.txIds, callback.txRemovedIds } )
+            {
+                for ( long id : ids )
+                {
+                    if ( touchedIds.add( id ) )
+                    {
+                        touched.add( id );
+                    }
+                }
+            }
+        }
+        long[] touchedArray = new long[touched.size()];
+        for ( int i = 0; i < touchedArray.length; i++ )
+        {
+            touchedArray[i] = touched.get( i );
+        }
+        
+        CompoundQueries.Evaluation evaluation;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            byte[][] postings = new byte[terms.size()][];
+            for ( int t = 0; t < postings.length; t++ )
+            {
+                byte[][] termPostings = callbacks.get( t ).getPostings( resource, index.getKeys() );
+                postings[t] = termPostings != null ? termPostings[0] : null;
+            }
+            evaluation = CompoundQueries.evaluate( resource, index.getKeys(), query, postings, touchedArray );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        
+        // Ids changed in the transaction are evaluated here instead
+        List<Long> txIds = new ArrayList<Long>();
+        LongSet txRemoved = new LongSet();
+        boolean[] matches = new boolean[terms.size()];
+        for ( int i = 0; i < touchedArray.length; i++ )
+        {
+            long id = touchedArray[i];
+            for ( int t = 0; t < matches.length; t++ )
+            {
+                AbstractReadCallback callback = callbacks.get( t );
+                matches[t] = callback.txAdded.contains( id ) ||
+                        (evaluation.isMember( i, t ) && !callback.txRemoved.contains( id ));
+            }
+            if ( query.matches( matches ) )
+            {
+                txIds.add( id );
+            }
+            else
+            {
+                txRemoved.add( id );
+            }
+        }
+        long[] txIdsArray = new long[txIds.size()];
+        for ( int i = 0; i < txIdsArray.length; i++ )
+        {
+            txIdsArray[i] = txIds.get( i );
+        }
+        return new PagedIndexHits<H>( txIdsArray, LongSet.of( txIds ), txRemoved,
+                new IndexType.ReadPage( evaluation.getIds() ), dataSource, true )
+        {
+            @Override
+            protected H resolve( long id )
+            {
+                return RedisIndex.this.<H>resolve( id, idsOnly );
+            }
+        };
+    }
+
+    private <H> IndexHits<H> orderedQuery( OrderedQuery query, final boolean idsOnly )
+    {
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        if ( !index.getType().hasSetPostings( index.getKeys() ) )
+        {
+            throw new UnsupportedOperationException( "Ordered queries aren't supported by " +
+                    index.getType() + " postings" );
+        }
+        if ( !index.getKeys().isSortKey( query.getSortKey() ) )
+        {
+            throw new IllegalArgumentException( "'" + query.getSortKey() + "' isn't a sort key of " +
+                    getIdentifier() );
+        }
+        if ( query.getQuery().getOperator() == CompoundQuery.Operator.NOT )
+        {
+            throw new IllegalArgumentException( "NOT must be combined with AND in " + query );
+        }
+        
+        long[] ids;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            String storedSortKey = index.getKeys().lookupStoredKey( resource, query.getSortKey() );
+            if ( storedSortKey == null )
+            {
+                ids = new long[0];
+            }
+            else
+            {
+                List<CompoundQuery> terms = query.getQuery().terms();
+                byte[][] postings = new byte[terms.size()][];
+                for ( int t = 0; t < postings.length; t++ )
+                {
+                    CompoundQuery term = terms.get( t );
+                    byte[][] termPostings = new EntityGetCallback( term.getKey(), term.getValue() )
+                            .getPostings( resource, index.getKeys() );
+                    postings[t] = termPostings != null ? termPostings[0] : null;
+                }
+                ids = CompoundQueries.order( resource, index.getKeys(), query, postings, storedSortKey );
+            }
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        return new PagedIndexHits<H>( new long[0], new LongSet(), new LongSet(),
+                new IndexType.ReadPage( ids ), dataSource, true )
+        {
+            @Override
+            protected H resolve( long id )
+            {
+                return RedisIndex.this.<H>resolve( id, idsOnly );
+            }
+        };
+    }
+
+    /**
+     * @return the id itself, or the entity with that id or {@code null} if
+     * it has been deleted from the graph, but not (yet) from the index.
+     */
+    @SuppressWarnings( "unchecked" )
+    <H> H resolve( long id, boolean idsOnly )
+    {
+        if ( idsOnly )
+        {
+            return (H) Long.valueOf( id );
+        }
+        try
+        {
+            return (H) idToEntity( id );
+        }
+        catch ( NotFoundException e )
+        {
+            return null;
+        }
     }
 
     @Override
@@ -75,6 +531,12 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
     
     abstract class AbstractReadCallback extends ReadCallback
     {
+        private long[] txIds;
+        private long[] txRemovedIds;
+        private LongSet txAdded;
+        private LongSet txRemoved;
+        private byte[][] countablePostings;
+        
         protected AbstractReadCallback( String key, Object value )
         {
             super( key, value );
@@ -83,29 +545,238 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
         @Override
         protected void update( List<Long> ids, Collection<Long> except )
         {
+            // Only picks up the transaction state, the ids in redis are read
+            // a page at a time while iterating over the hits
+            txIds = new long[ids.size()];
+            for ( int i = 0; i < txIds.length; i++ )
+            {
+                txIds[i] = ids.get( i );
+            }
+            txRemovedIds = new long[except.size()];
+            int i = 0;
+            for ( Long id : except )
+            {
+                txRemovedIds[i++] = id;
+            }
+            txAdded = LongSet.of( ids );
+            txRemoved = LongSet.of( except );
+        }
+        
+        /**
+         * Counts the hits without reading the ids from redis, if the index
+         * type can count them, otherwise by reading just the ids.
+         */
+        long count()
+        {
+            read( this ).close();
             RedisDataSource dataSource = getProvider().dataSource();
+            RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+            byte[][] postings;
             Jedis resource = dataSource.acquireResource();
             try
             {
-                // TODO Return lazy iterator instead of converting all values
-                // here and now?
-                Set<String> idsFromRedis = getIdsFromRedis( dataSource, resource );
-                for ( String stringId : idsFromRedis )
+                postings = getPostings( resource, index.getKeys() );
+                if ( postings == null )
+                {
+                    return txIds.length;
+                }
+                long count = index.getType().count( resource, index.getKeys(), postings,
+                        txIds, txRemovedIds );
+                if ( count != -1 )
+                {
+                    return count;
+                }
+            }
+            finally
+            {
+                dataSource.releaseResource( resource );
+            }
+            IndexHits<Long> hits = hits( index.getType().pages( index.getKeys(), postings,
+                    index.getPageSize() ), true, false );
+            try
+            {
+                return hits.size();
+            }
+            finally
+            {
+                hits.close();
+            }
+        }
+        
+        <H> IndexHits<H> execute( boolean idsOnly )
+        {
+            read( this ).close();
+            RedisDataSource dataSource = getProvider().dataSource();
+            RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+            if ( index.defersReads() )
+            {
+                IdPages pages = dataSource.getDeferredReads().defer( index, new DeferredReads.Postings()
                 {
-                    Long id = Long.valueOf( stringId );
-                    if ( !except.contains( id ) )
+                    public byte[][] get( Jedis resource, RedisKeys keys )
                     {
-                        ids.add( id );
+                        return getPostings( resource, keys );
                     }
+                } );
+                return hits( pages, idsOnly, true );
+            }
+            
+            // Reads which fit in a page are kept for the rest of the transaction
+            boolean atOnce = index.getType().readsAtOnce( index.getKeys() );
+            TransactionReads txReads = atOnce ? getProvider().transactionReads( true ) : null;
+            Object readKey = readKey();
+            if ( txReads != null )
+            {
+                Object read = txReads.get( getIdentifier(), key, readKey );
+                if ( read != null )
+                {
+                    return hits( read == TransactionReads.NONE ? null :
+                            new IndexType.ReadPage( (long[]) read ), idsOnly, false );
                 }
             }
+            
+            byte[][] postings;
+            Jedis resource = dataSource.acquireResource();
+            try
+            {
+                postings = getPostings( resource, index.getKeys() );
+            }
             finally
             {
                 dataSource.releaseResource( resource );
             }
+            if ( postings == null )
+            {
+                if ( txReads != null )
+                {
+                    txReads.put( getIdentifier(), key, readKey, TransactionReads.NONE );
+                }
+                return hits( (IdPages) null, idsOnly, false );
+            }
+            countablePostings = postings;
+            IdPages pages = dataSource.getIntersectionPlanner().pages( index.getType(),
+                    index.getKeys(), postings, index.getPageSize() );
+            if ( !atOnce )
+            {
+                return hits( pages, idsOnly, true );
+            }
+            ConnectingIdPages shared = coalesced( dataSource.getReadCoalescer(),
+                    ReadCoalescer.key( postings ), pages );
+            if ( txReads != null )
+            {
+                shared = remembered( txReads, readKey, index.getPageSize(), shared );
+            }
+            return hits( shared, idsOnly, true );
+        }
+        
+        /**
+         * @return what tells this read apart from other reads of the same key.
+         */
+        protected Object readKey()
+        {
+            return value.toString();
+        }
+        
+        /**
+         * @return pages which keep their one page in {@code txReads}, unless
+         * it's larger than {@code pageSize}.
+         */
+        private ConnectingIdPages remembered( final TransactionReads txReads, final Object readKey,
+                final int pageSize, final ConnectingIdPages pages )
+        {
+            return new ConnectingIdPages()
+            {
+                public long[] next( RedisDataSource dataSource )
+                {
+                    long[] page = pages.next( dataSource );
+                    if ( page != null && page.length <= pageSize )
+                    {
+                        txReads.put( getIdentifier(), key, readKey, page );
+                    }
+                    return page;
+                }
+            };
+        }
+
+        /**
+         * @return pages which share the read of their one page with any
+         * identical read in flight at the same time. Only the thread doing
+         * the read acquires a connection, not those waiting for it.
+         */
+        private ConnectingIdPages coalesced( final ReadCoalescer coalescer, final Object key,
+                IdPages pages )
+        {
+            final ConnectingIdPages connecting = PagedIndexHits.connecting( pages );
+            return new ConnectingIdPages()
+            {
+                private boolean done;
+                
+                public long[] next( final RedisDataSource dataSource )
+                {
+                    if ( done )
+                    {
+                        return null;
+                    }
+                    done = true;
+                    return coalescer.read( key, new Callable<long[]>()
+                    {
+                        public long[] call()
+                        {
+                            return connecting.next( dataSource );
+                        }
+                    } );
+                }
+            };
+        }
+
+        /**
+         * @return the transaction state picked up by {@link #read(ReadCallback)}
+         * followed by {@code pages}, which may be {@code null}. Lazy hits
+         * are counted in redis if sized before iterated.
+         */
+        <H> IndexHits<H> hits( IdPages pages, boolean idsOnly, boolean lazy )
+        {
+            return hits( PagedIndexHits.connecting( pages ), idsOnly, lazy );
+        }
+        
+        <H> IndexHits<H> hits( ConnectingIdPages pages, final boolean idsOnly, boolean lazy )
+        {
+            RedisDataSource dataSource = getProvider().dataSource();
+            return new PagedIndexHits<H>( txIds, txAdded, txRemoved, pages, dataSource, lazy )
+            {
+                @Override
+                protected long count()
+                {
+                    if ( countablePostings == null )
+                    {
+                        return -1;
+                    }
+                    RedisDataSource dataSource = getProvider().dataSource();
+                    RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+                    Jedis resource = dataSource.acquireResource();
+                    try
+                    {
+                        return index.getType().count( resource, index.getKeys(), countablePostings,
+                                txIds, txRemovedIds );
+                    }
+                    finally
+                    {
+                        dataSource.releaseResource( resource );
+                    }
+                }
+                
+                @Override
+                protected H resolve( long id )
+                {
+                    return RedisIndex.this.<H>resolve( id, idsOnly );
+                }
+            };
         }
 
-        protected abstract Set<String> getIdsFromRedis( RedisDataSource dataSource, Jedis resource );
+        /**
+         * @return the redis keys of the postings to intersect to get the result,
+         * or {@code null} if there can't be any.
+         */
+        protected abstract byte[][] getPostings( Jedis resource, RedisKeys keys );
     }
 
     class EntityGetCallback extends AbstractReadCallback
@@ -116,10 +787,12 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
         }
         
         @Override
-        protected Set<String> getIdsFromRedis( RedisDataSource dataSource, Jedis resource )
+        protected byte[][] getPostings( Jedis resource, RedisKeys keys )
         {
-            String redisKey = dataSource.formRedisKeyForKeyValue( getIdentifier(), key, value.toString() );
-            return resource.smembers( redisKey );
+            String storedKey = keys.lookupStoredKey( resource, key );
+            String storedValue = keys.lookupStoredValue( resource, value.toString() );
+            return storedKey != null && storedValue != null ?
+                    new byte[][] { keys.keyValue( storedKey, storedValue ) } : null;
         }
     }
 
@@ -137,29 +810,36 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
         }
         
         @Override
-        protected Set<String> getIdsFromRedis( RedisDataSource dataSource, Jedis resource )
+        protected Object readKey()
+        {
+            return Arrays.asList( value != null ? value.toString() : null, startNode, endNode );
+        }
+        
+        @Override
+        protected byte[][] getPostings( Jedis resource, RedisKeys keys )
         {
             //TODO validate input
-            List<String> keys = new ArrayList<String>( 3 );
+            List<byte[]> redisKeys = new ArrayList<byte[]>( 3 );
             if( key != null)
             {
-                keys.add( dataSource.formRedisKeyForKeyValue( getIdentifier(), key,
-                    value.toString() ) );
+                String storedKey = keys.lookupStoredKey( resource, key );
+                String storedValue = keys.lookupStoredValue( resource, value.toString() );
+                if ( storedKey == null || storedValue == null )
+                {
+                    return null;
+                }
+                redisKeys.add( keys.keyValue( storedKey, storedValue ) );
             }
             if ( startNode != -1 )
             {
-                keys.add( dataSource.formRedisStartNodeKey( getIdentifier(),
-                        startNode ) );
+                redisKeys.add( keys.startNode( startNode ) );
             }
             if ( endNode != -1 )
             {
-                keys.add( dataSource.formRedisEndNodeKey( getIdentifier(),
-                        endNode ) );
+                redisKeys.add( keys.endNode( endNode ) );
             }
 
-            // TODO Return lazy iterator instead of converting all values
-            // here and now?
-            return resource.sinter( keys.toArray( new String[keys.size()] ) );
+            return redisKeys.toArray( new byte[redisKeys.size()][] );
         }
     }
     
@@ -175,6 +855,12 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
         {
             return getProvider().graphDb().getNodeById( id );
         }
+
+        @Override
+        protected void checkIds( IndexType type, Node entity )
+        {
+            type.checkId( entity.getId() );
+        }
     }
 
     static class RelationshipIndex extends RedisIndex<Relationship> implements org.neo4j.graphdb.index.RelationshipIndex
@@ -190,21 +876,58 @@ public abstract class RedisIndex<T extends PropertyContainer> extends KeyValueIn
             return getProvider().graphDb().getRelationshipById( id );
         }
 
+        @Override
+        protected void checkIds( IndexType type, Relationship entity )
+        {
+            type.checkId( entity.getId() );
+            type.checkId( entity.getStartNode().getId() );
+            type.checkId( entity.getEndNode().getId() );
+        }
+
         public IndexHits<Relationship> get( String key, Object valueOrNull, Node startNodeOrNull,
                 Node endNodeOrNull )
         {
-            return read(new RelationshipGetCallback(key, valueOrNull, startNodeOrNull, endNodeOrNull));
+            return new RelationshipGetCallback( key, valueOrNull, startNodeOrNull, endNodeOrNull ).execute( false );
+        }
+
+        /**
+         * Returns the ids of the matching relationships, like
+         * {@link #get(String, Object, Node, Node)} but without looking them
+         * up in the graph.
+         */
+        public IndexHits<Long> getIds( String key, Object valueOrNull, Node startNodeOrNull,
+                Node endNodeOrNull )
+        {
+            return new RelationshipGetCallback( key, valueOrNull, startNodeOrNull, endNodeOrNull ).execute( true );
+        }
+
+        /**
+         * Counts the matching relationships, like
+         * {@link #count(String, Object)}. With only a start or end node this
+         * is the degree of that node in the index.
+         */
+        public long count( String key, Object valueOrNull, Node startNodeOrNull, Node endNodeOrNull )
+        {
+            return new RelationshipGetCallback( key, valueOrNull, startNodeOrNull, endNodeOrNull ).count();
         }
 
         public IndexHits<Relationship> query( String key, Object queryOrQueryObjectOrNull,
                 Node startNodeOrNull, Node endNodeOrNull )
         {
+            if ( startNodeOrNull == null && endNodeOrNull == null )
+            {
+                return query( key, queryOrQueryObjectOrNull );
+            }
             throw new UnsupportedOperationException();
         }
 
         public IndexHits<Relationship> query( Object queryOrQueryObjectOrNull,
                 Node startNodeOrNull, Node endNodeOrNull )
         {
+            if ( startNodeOrNull == null && endNodeOrNull == null )
+            {
+                return query( queryOrQueryObjectOrNull );
+            }
             throw new UnsupportedOperationException();
         }
     }
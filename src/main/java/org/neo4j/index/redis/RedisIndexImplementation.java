@@ -20,6 +20,14 @@
 package org.neo4j.index.redis;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -31,6 +39,7 @@ import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.index.base.AbstractIndexImplementation;
 import org.neo4j.index.base.IndexDataSource;
 import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
 import org.neo4j.kernel.Config;
 
 public class RedisIndexImplementation extends AbstractIndexImplementation
@@ -38,25 +47,131 @@ public class RedisIndexImplementation extends AbstractIndexImplementation
     public static final String SERVICE_NAME = "redis";
     static final String DEFAULT_INDEX_TYPE = IndexType.single_value.name();
     static final String CONFIG_KEY_TYPE = "type";
+    static final String DEFAULT_KEY_FORMAT = KeyFormat.text.name();
+    static final String CONFIG_KEY_KEY_FORMAT = "key_format";
+    static final String CONFIG_KEY_INDEX_ID = "index_id";
+    static final String DEFAULT_REVERSE_LAYOUT = ReverseLayout.sets.name();
+    static final String CONFIG_KEY_REVERSE_LAYOUT = "reverse_layout";
+    static final String DEFAULT_BUCKETS = "0";
+    static final String CONFIG_KEY_BUCKETS = "buckets";
+    static final String DEFAULT_KEY_DICTIONARY = "false";
+    static final String CONFIG_KEY_KEY_DICTIONARY = "key_dictionary";
+    static final String DEFAULT_VALUE_DIGEST_THRESHOLD = "0";
+    static final String CONFIG_KEY_VALUE_DIGEST_THRESHOLD = "value_digest_threshold";
+    static final String DEFAULT_POSTING_RANGE_SIZE = "0";
+    static final String CONFIG_KEY_POSTING_RANGE_SIZE = "posting_range_size";
+    static final String DEFAULT_PAGE_SIZE = "10000";
+    static final String CONFIG_KEY_PAGE_SIZE = "page_size";
+    static final String DEFAULT_PREFIX_QUERIES = "false";
+    static final String CONFIG_KEY_PREFIX_QUERIES = "prefix_queries";
+    static final String DEFAULT_SORT_KEYS = "";
+    static final String CONFIG_KEY_SORT_KEYS = "sort_keys";
+    static final String DEFAULT_DEFERRED_READS = "false";
+    static final String CONFIG_KEY_DEFERRED_READS = "deferred_reads";
     
     public static final Map<String, String> SINGLE_VALUE = MapUtil.stringMap(
             IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.single_value.name() );
     public static final Map<String, String> MULTIPLE_VALUES = MapUtil.stringMap(
             IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.multiple_values.name() );
+    public static final Map<String, String> BITMAP = MapUtil.stringMap(
+            IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.bitmap.name() );
+    public static final Map<String, String> ID_ORDERED = MapUtil.stringMap(
+            IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.id_ordered.name() );
+    public static final Map<String, String> NUMERIC = MapUtil.stringMap(
+            IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.numeric.name() );
+    public static final Map<String, String> COMPRESSED = MapUtil.stringMap(
+            IndexManager.PROVIDER, SERVICE_NAME, CONFIG_KEY_TYPE, IndexType.compressed.name() );
+    
+    private final TransactionManager txManager;
+    private final ConcurrentMap<Transaction, TransactionReads> transactionReads =
+            new ConcurrentHashMap<Transaction, TransactionReads>();
     
     public RedisIndexImplementation( GraphDatabaseService db, Config config )
     {
         super( db, config );
+        this.txManager = config.getTxModule().getTxManager();
+    }
+    
+    /**
+     * @param create whether to start keeping reads for the current
+     * transaction if there are none yet.
+     * @return the reads of the current transaction, or {@code null} if
+     * there's no transaction or no reads kept for it.
+     */
+    TransactionReads transactionReads( boolean create )
+    {
+        final Transaction tx;
+        try
+        {
+            tx = txManager.getTransaction();
+        }
+        catch ( SystemException e )
+        {
+            throw new RuntimeException( e );
+        }
+        if ( tx == null )
+        {
+            return null;
+        }
+        TransactionReads reads = transactionReads.get( tx );
+        if ( reads != null || !create )
+        {
+            return reads;
+        }
+        reads = new TransactionReads();
+        transactionReads.put( tx, reads );
+        try
+        {
+            tx.registerSynchronization( new Synchronization()
+            {
+                public void beforeCompletion()
+                {
+                }
+                
+                public void afterCompletion( int status )
+                {
+                    transactionReads.remove( tx );
+                }
+            } );
+        }
+        catch ( RollbackException e )
+        {
+            // Marked for rollback, not worth keeping reads for
+            transactionReads.remove( tx );
+            return null;
+        }
+        catch ( SystemException e )
+        {
+            transactionReads.remove( tx );
+            throw new RuntimeException( e );
+        }
+        return reads;
     }
     
     @Override
+    @SuppressWarnings( "unchecked" )
     public Index<Node> nodeIndex( String indexName, Map<String, String> config )
     {
         IndexIdentifier identifier = new IndexIdentifier( Node.class, indexName );
-        IndexType type = dataSource().getIndexType( identifier );
+        RegisteredIndex registered = dataSource().getRegistry().get( identifier, config );
+        Index<Node> index = (Index<Node>) registered.getHandle();
+        if ( index == null )
+        {
+            index = newNodeIndex( identifier, registered.getType() );
+            registered.setHandle( index );
+        }
+        return index;
+    }
+
+    private Index<Node> newNodeIndex( IndexIdentifier identifier, IndexType type )
+    {
         switch ( type )
         {
-        case multiple_values: return new RedisIndex.NodeIndex( this, identifier );
+        case multiple_values:
+        case bitmap:
+        case compressed:
+        case id_ordered:
+        case numeric: return new RedisIndex.NodeIndex( this, identifier );
         case single_value: return new RedisSingleValueIndex.NodeIndex( this, identifier );
         default: throw new IllegalArgumentException( "" + type );
         }
@@ -67,10 +182,25 @@ public class RedisIndexImplementation extends AbstractIndexImplementation
             Map<String, String> config )
     {
         IndexIdentifier identifier = new IndexIdentifier( Relationship.class, indexName );
-        IndexType type = dataSource().getIndexType( identifier );
+        RegisteredIndex registered = dataSource().getRegistry().get( identifier, config );
+        RelationshipIndex index = (RelationshipIndex) registered.getHandle();
+        if ( index == null )
+        {
+            index = newRelationshipIndex( identifier, registered.getType() );
+            registered.setHandle( index );
+        }
+        return index;
+    }
+
+    private RelationshipIndex newRelationshipIndex( IndexIdentifier identifier, IndexType type )
+    {
         switch ( type )
         {
-        case multiple_values: return new RedisIndex.RelationshipIndex( this, identifier );
+        case multiple_values:
+        case bitmap:
+        case compressed:
+        case id_ordered:
+        case numeric: return new RedisIndex.RelationshipIndex( this, identifier );
         case single_value: return new RedisSingleValueIndex.RelationshipIndex( this, identifier );
         default: throw new IllegalArgumentException( "" + type );
         }
@@ -90,6 +220,8 @@ public class RedisIndexImplementation extends AbstractIndexImplementation
         {
             config.put( CONFIG_KEY_TYPE, DEFAULT_INDEX_TYPE );
         }
+        // The index id, if the key format needs one, is allocated when the
+        // index is actually created, see RedisTransaction
         return config;
     }
 
@@ -108,9 +240,25 @@ public class RedisIndexImplementation extends AbstractIndexImplementation
     @Override
     public boolean configMatches( Map<String, String> storedConfig, Map<String, String> config )
     {
-        String storedType = storedConfig.get( CONFIG_KEY_TYPE );
-        String customType = config.get( CONFIG_KEY_TYPE );
-        return storedType.equals( customType != null ? customType : DEFAULT_INDEX_TYPE );
+        return matches( storedConfig, config, CONFIG_KEY_TYPE, DEFAULT_INDEX_TYPE ) &&
+                matches( storedConfig, config, CONFIG_KEY_KEY_FORMAT, DEFAULT_KEY_FORMAT ) &&
+                matches( storedConfig, config, CONFIG_KEY_REVERSE_LAYOUT, DEFAULT_REVERSE_LAYOUT ) &&
+                matches( storedConfig, config, CONFIG_KEY_BUCKETS, DEFAULT_BUCKETS ) &&
+                matches( storedConfig, config, CONFIG_KEY_KEY_DICTIONARY, DEFAULT_KEY_DICTIONARY ) &&
+                matches( storedConfig, config, CONFIG_KEY_VALUE_DIGEST_THRESHOLD,
+                        DEFAULT_VALUE_DIGEST_THRESHOLD ) &&
+                matches( storedConfig, config, CONFIG_KEY_POSTING_RANGE_SIZE, DEFAULT_POSTING_RANGE_SIZE ) &&
+                matches( storedConfig, config, CONFIG_KEY_PREFIX_QUERIES, DEFAULT_PREFIX_QUERIES ) &&
+                matches( storedConfig, config, CONFIG_KEY_SORT_KEYS, DEFAULT_SORT_KEYS );
+    }
+
+    private boolean matches( Map<String, String> storedConfig, Map<String, String> config,
+            String key, String defaultValue )
+    {
+        String storedValue = storedConfig.get( key );
+        String customValue = config.get( key );
+        return (storedValue != null ? storedValue : defaultValue).equals(
+                customValue != null ? customValue : defaultValue );
     }
     
     @Override
@@ -0,0 +1,347 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.neo4j.index.base.IndexIdentifier;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Forms the redis keys and set members for one index, using the
+ * {@link KeyFormat} and {@link ReverseLayout} the index was configured with.
+ */
+class RedisKeys
+{
+    private final IndexIdentifier identifier;
+    private final KeyFormat format;
+    private final byte[] prefix;
+    private final ReverseLayout reverseLayout;
+    private final int buckets;
+    private final KeyDictionary dictionary;
+    private final ValueDigests digests;
+    private final long postingRangeSize;
+    private final boolean sortsValues;
+    private final SortKeys sortKeys;
+    private final boolean sweeping;
+
+    RedisKeys( IndexIdentifier identifier, Map<String, String> config )
+    {
+        this( identifier, config, false );
+    }
+
+    RedisKeys( IndexIdentifier identifier, Map<String, String> config, boolean sweeping )
+    {
+        this.identifier = identifier;
+        this.format = RedisDataSource.getKeyFormat( config );
+        this.prefix = format.prefix( identifier, config );
+        this.reverseLayout = RedisDataSource.getReverseLayout( config );
+        this.buckets = RedisDataSource.getBuckets( config );
+        if ( RedisDataSource.usesKeyDictionary( config ) )
+        {
+            byte[] dictionaryKey = format.dictionary( prefix );
+            this.dictionary = new KeyDictionary( dictionaryKey, format.part( prefix, dictionaryKey, 0 ) );
+        }
+        else
+        {
+            this.dictionary = null;
+        }
+        int digestThreshold = RedisDataSource.getValueDigestThreshold( config );
+        this.digests = digestThreshold > 0 ? new ValueDigests( format.digests( prefix ), digestThreshold ) : null;
+        this.postingRangeSize = RedisDataSource.getPostingRangeSize( config );
+        this.sortsValues = RedisDataSource.supportsPrefixQueries( config );
+        this.sortKeys = RedisDataSource.getSortKeys( config );
+        this.sweeping = sweeping;
+    }
+
+    IndexIdentifier getIdentifier()
+    {
+        return identifier;
+    }
+
+    KeyFormat getFormat()
+    {
+        return format;
+    }
+
+    byte[] getPrefix()
+    {
+        return prefix;
+    }
+
+    ReverseLayout getReverseLayout()
+    {
+        return reverseLayout;
+    }
+
+    /**
+     * @return {@code key} as it's stored in redis, i.e. its dictionary code
+     * if the index uses a {@link KeyDictionary}. A code is allocated if
+     * the key doesn't have one yet.
+     */
+    String storedKey( Jedis resource, String key )
+    {
+        return dictionary != null ? dictionary.code( resource, key ) : key;
+    }
+
+    /**
+     * @return {@code key} as it's stored in redis, or {@code null} if the
+     * index uses a {@link KeyDictionary} and nothing has been stored with
+     * that key.
+     */
+    String lookupStoredKey( Jedis resource, String key )
+    {
+        return dictionary != null ? dictionary.lookup( resource, key ) : key;
+    }
+
+    /**
+     * @return {@code value} as it's stored in redis, i.e. its digest if it's
+     * longer than the index's {@link ValueDigests} threshold. The digest is
+     * registered if the value doesn't have one yet.
+     */
+    String storedValue( Jedis resource, String value )
+    {
+        return digests != null ? digests.digest( resource, value ) : value;
+    }
+
+    /**
+     * @return {@code value} as it's stored in redis, or {@code null} if it
+     * would be stored as a digest and nothing has been stored with it.
+     */
+    String lookupStoredValue( Jedis resource, String value )
+    {
+        return digests != null ? digests.lookup( resource, value ) : value;
+    }
+
+    /**
+     * Queues recording that {@code user} is indexed with the digest
+     * {@code storedValue} of {@code value}, see {@link ValueDigests#use}.
+     */
+    void useDigest( Pipeline pipeline, String storedValue, String value, byte[] user )
+    {
+        digests.use( pipeline, format.digestUsers( prefix, storedValue ), storedValue, value, user );
+    }
+
+    /**
+     * Queues recording that {@code user} is no longer indexed with the digest
+     * {@code storedValue}.
+     */
+    void releaseDigest( Pipeline pipeline, String storedValue, byte[] user )
+    {
+        pipeline.srem( format.digestUsers( prefix, storedValue ), user );
+    }
+
+    /**
+     * Removes the digest {@code storedValue} if nothing is indexed with it.
+     */
+    void pruneDigest( Jedis resource, String storedValue )
+    {
+        digests.prune( resource, format.digestUsers( prefix, storedValue ), storedValue );
+    }
+
+    /**
+     * @return whether or not {@code storedValue} is a {@link ValueDigests digest}
+     * rather than the value itself.
+     */
+    boolean isDigest( String storedValue )
+    {
+        return digests != null && storedValue.length() > 0 && storedValue.charAt( 0 ) == ValueDigests.MARKER;
+    }
+
+    /**
+     * @return whether or not the values of each key are kept in value order
+     * for prefix queries, see {@link SortedValues}.
+     */
+    boolean sortsValues()
+    {
+        return sortsValues;
+    }
+
+    /**
+     * @return whether or not {@code key} is one of the index's {@link SortKeys}.
+     */
+    boolean isSortKey( String key )
+    {
+        return sortKeys.kind( key ) != null;
+    }
+
+    /**
+     * @return how the entities are sorted by {@code storedKey}, or
+     * {@code null} if it isn't one of the index's {@link SortKeys}.
+     */
+    SortKeys.Kind sortKind( String storedKey )
+    {
+        return sortKeys.kind( dictionary != null ? dictionary.cachedKey( storedKey ) : storedKey );
+    }
+
+    /**
+     * @return whether or not {@code storedKey} might be a sort key, i.e. if
+     * it is one or if it's a dictionary code which hasn't been seen here yet.
+     */
+    boolean maySortBy( String storedKey )
+    {
+        if ( sortKeys.isEmpty() )
+        {
+            return false;
+        }
+        String key = dictionary != null ? dictionary.cachedKey( storedKey ) : storedKey;
+        return key == null || sortKeys.kind( key ) != null;
+    }
+
+    /**
+     * @return the size of the id ranges postings are split into, see
+     * {@link RangePostings}, or 0 if they aren't split.
+     */
+    long getPostingRangeSize()
+    {
+        return postingRangeSize;
+    }
+
+    /**
+     * @return whether or not the key/value pairs of a single_value index are
+     * spread over a fixed number of hashes instead of a string key each.
+     */
+    boolean isBucketed()
+    {
+        return buckets > 0;
+    }
+
+    /**
+     * @return the key of the hash holding {@code field} in a bucketed index.
+     */
+    byte[] bucket( byte[] field )
+    {
+        CRC32 checksum = new CRC32();
+        checksum.update( field, 0, field.length );
+        return format.bucket( prefix, (int) (checksum.getValue() % buckets) );
+    }
+
+    byte[] keyValue( String key, String value )
+    {
+        return format.keyValue( prefix, key, value );
+    }
+
+    /**
+     * @return a key/value pair as a hash field, the key as a length-prefixed
+     * segment followed by the value.
+     */
+    static byte[] field( String key, String value )
+    {
+        byte[] valueBytes = encode( value );
+        ByteArrayOutputStream out = new ByteArrayOutputStream( key.length() + valueBytes.length + 2 );
+        Bytes.writeSegment( out, encode( key ) );
+        Bytes.write( out, valueBytes );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the key of the sorted set of the numeric values of {@code key}.
+     */
+    byte[] numeric( String key )
+    {
+        return format.numeric( prefix, key );
+    }
+
+    /**
+     * @return the key of the sorted set of the values of {@code key}.
+     */
+    byte[] sortedValues( String key )
+    {
+        return format.sortedValues( prefix, key );
+    }
+
+    /**
+     * @return the key of the sorted set of entities scored by their value of
+     * {@code key}, see {@link SortKeys}.
+     */
+    byte[] sortValues( String key )
+    {
+        return format.sortValues( prefix, key );
+    }
+
+    byte[] temp( String name )
+    {
+        return format.temp( prefix, name );
+    }
+
+    byte[] entityAndKeyRemoval( String key, long id )
+    {
+        return format.entityAndKey( prefix, key, id );
+    }
+
+    byte[] entityRemoval( long id )
+    {
+        return format.entity( prefix, id );
+    }
+
+    byte[] startNode( long id )
+    {
+        return format.startNode( prefix, id );
+    }
+
+    byte[] endNode( long id )
+    {
+        return format.endNode( prefix, id );
+    }
+
+    /**
+     * @return the key of the set of entities which the {@link Sweeper}
+     * should look at.
+     */
+    byte[] sweepCandidates()
+    {
+        return format.sweepCandidates( prefix );
+    }
+
+    /**
+     * @return whether a {@link Sweeper} is running which entities should be
+     * recorded as {@link #sweepCandidates() candidates} for.
+     */
+    boolean isSweeping()
+    {
+        return sweeping;
+    }
+
+    byte[] part( byte[] key, long part )
+    {
+        return format.part( prefix, key, part );
+    }
+
+    byte[] indexPattern()
+    {
+        return format.pattern( prefix );
+    }
+
+    byte[] id( long id )
+    {
+        return format.id( id );
+    }
+
+    long id( byte[] member )
+    {
+        return format.id( member );
+    }
+}
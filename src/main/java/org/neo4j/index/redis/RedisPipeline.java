@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * A {@link Pipeline} with the commands it lacks in the Jedis version used,
+ * sent on the same client so that they're queued and replied to in order
+ * with the others, inside a MULTI too.
+ */
+class RedisPipeline extends Pipeline
+{
+    private static final byte[] ONE = Bytes.encode( "1" );
+    private static final byte[] ZERO = Bytes.encode( "0" );
+
+    private final Client client;
+
+    RedisPipeline( Jedis resource )
+    {
+        super( resource.getClient() );
+        this.client = resource.getClient();
+    }
+
+    void setbit( byte[] key, long offset, boolean value )
+    {
+        client.setbit( key, offset, value ? ONE : ZERO );
+    }
+}
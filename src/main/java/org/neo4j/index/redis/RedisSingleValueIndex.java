@@ -19,13 +19,25 @@
  */
 package org.neo4j.index.redis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.index.base.AbstractIndexImplementation;
 import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.index.base.NoIndexHits;
+import org.neo4j.index.base.SingleIndexHit;
 import org.neo4j.index.base.keyvalue.OneToOneIndex;
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
 
 import redis.clients.jedis.Jedis;
 
@@ -42,35 +54,240 @@ public abstract class RedisSingleValueIndex<T extends PropertyContainer> extends
         return (RedisIndexImplementation) super.getProvider();
     }
     
+    @Override
+    public void add( T entity, String key, Object value )
+    {
+        forgetReads( key );
+        super.add( entity, key, value );
+    }
+    
+    @Override
+    public void remove( T entity, String key, Object value )
+    {
+        forgetReads( key );
+        super.remove( entity, key, value );
+    }
+    
+    @Override
+    public void remove( T entity, String key )
+    {
+        forgetReads( key );
+        super.remove( entity, key );
+    }
+    
+    @Override
+    public void remove( T entity )
+    {
+        forgetReads( null );
+        super.remove( entity );
+    }
+    
+    private void forgetReads( String key )
+    {
+        TransactionReads reads = getProvider().transactionReads( false );
+        if ( reads != null )
+        {
+            reads.invalidate( getIdentifier(), key );
+        }
+    }
+    
     @Override
     protected Long getFromDb( String key, Object value )
     {
+        // Lookups are kept for the rest of the transaction
+        TransactionReads txReads = getProvider().transactionReads( true );
+        String stringValue = value.toString();
+        if ( txReads != null )
+        {
+            Object read = txReads.get( getIdentifier(), key, stringValue );
+            if ( read != null )
+            {
+                return read == TransactionReads.NONE ? null : (Long) read;
+            }
+        }
+        Long id = readFromDb( key, stringValue );
+        if ( txReads != null )
+        {
+            txReads.put( getIdentifier(), key, stringValue, id != null ? id : TransactionReads.NONE );
+        }
+        return id;
+    }
+    
+    private Long readFromDb( final String key, final String stringValue )
+    {
+        final RedisDataSource dataSource = getProvider().dataSource();
+        // Concurrent lookups of the same key/value share one read
+        Object readKey = Arrays.asList( getIdentifier(), key, stringValue );
+        return dataSource.getReadCoalescer().read( readKey, new Callable<Long>()
+        {
+            public Long call()
+            {
+                Jedis resource = dataSource.acquireResource();
+                try
+                {
+                    RedisKeys keys = dataSource.getKeys( getIdentifier() );
+                    return IndexType.single_value.readId( resource, keys, key, stringValue );
+                }
+                finally
+                {
+                    dataSource.releaseResource( resource );
+                }
+            }
+        } );
+    }
+    
+    /**
+     * Looks up the entities indexed with {@code key} and each of
+     * {@code values} with a single MGET, or a pipeline of HGETs if the
+     * index is bucketed. Values written to in the current transaction are
+     * served from its state instead.
+     *
+     * @return the hits for each value, in the order of {@code values}.
+     */
+    public Map<Object, IndexHits<T>> getMany( String key, Collection<?> values )
+    {
+        List<TxStateCallback> callbacks = new ArrayList<TxStateCallback>( values.size() );
+        List<String> stringValues = new ArrayList<String>( values.size() );
+        for ( Object value : values )
+        {
+            TxStateCallback callback = new TxStateCallback( key, value );
+            read( callback ).close();
+            callbacks.add( callback );
+            stringValues.add( value.toString() );
+        }
+
+        Long[] ids;
         RedisDataSource dataSource = getProvider().dataSource();
         Jedis resource = dataSource.acquireResource();
         try
         {
-            // TODO Return lazy iterator instead of converting all values
-            // here and now?
-            String redisKey = dataSource.formRedisKeyForKeyValue( getIdentifier(), key, value.toString() );
-            String stringId = resource.get( redisKey );
-            if ( stringId != null && !stringId.equals( "nil" ) )
+            RedisKeys keys = dataSource.getKeys( getIdentifier() );
+            ids = IndexType.single_value.readIds( resource, keys, key, stringValues );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+
+        Map<Object, IndexHits<T>> result = new LinkedHashMap<Object, IndexHits<T>>();
+        int i = 0;
+        for ( Object value : values )
+        {
+            TxStateCallback callback = callbacks.get( i );
+            Long id = callback.added != null ? callback.added : ids[i];
+            if ( id != null && callback.removed.contains( id ) )
             {
-                return Long.valueOf( stringId );
+                id = null;
             }
-            return null;
+            result.put( value, hit( id ) );
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Supports "prefix*" queries on indexes with
+     * {@link RedisIndexImplementation#CONFIG_KEY_PREFIX_QUERIES} set, reading
+     * the matching entities a page of values at a time. The changes of the
+     * current transaction aren't included.
+     */
+    @Override
+    public IndexHits<T> query( String key, Object queryOrQueryObject )
+    {
+        if ( SortedValues.prefix( queryOrQueryObject ) == null )
+        {
+            return super.query( key, queryOrQueryObject );
+        }
+        RedisDataSource dataSource = getProvider().dataSource();
+        RegisteredIndex index = dataSource.getRegistry().get( getIdentifier() );
+        IdPages pages;
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            pages = index.queryPages( resource, key, queryOrQueryObject );
         }
         finally
         {
             dataSource.releaseResource( resource );
         }
+        return new PagedIndexHits<T>( new long[0], new LongSet(), new LongSet(), pages, dataSource, true )
+        {
+            @Override
+            protected T resolve( long id )
+            {
+                try
+                {
+                    return idToEntity( id );
+                }
+                catch ( NotFoundException e )
+                {
+                    // Deleted from the graph, but not (yet) from the index
+                    return null;
+                }
+            }
+        };
     }
-    
+
+    /**
+     * Counts the entities indexed with {@code key} and {@code value}, which
+     * for this index type is at most one.
+     */
+    public long count( String key, Object value )
+    {
+        IndexHits<T> hits = get( key, value );
+        try
+        {
+            return hits.size();
+        }
+        finally
+        {
+            hits.close();
+        }
+    }
+
+    private IndexHits<T> hit( Long id )
+    {
+        if ( id != null )
+        {
+            try
+            {
+                return new SingleIndexHit<T>( idToEntity( id ) );
+            }
+            catch ( NotFoundException e )
+            {
+                // Deleted from the graph, but not (yet) from the index
+            }
+        }
+        return NoIndexHits.instance();
+    }
+
     @Override
     public boolean isWriteable()
     {
         return true;
     }
 
+    /**
+     * Picks up the transaction state for a key/value without reading redis.
+     */
+    private class TxStateCallback extends ReadCallback
+    {
+        private Long added;
+        private Collection<Long> removed;
+
+        TxStateCallback( String key, Object value )
+        {
+            super( key, value );
+        }
+
+        @Override
+        protected void update( List<Long> ids, Collection<Long> except )
+        {
+            added = ids.isEmpty() ? null : ids.get( ids.size() - 1 );
+            removed = except;
+        }
+    }
+
     static class NodeIndex extends RedisSingleValueIndex<Node>
     {
         NodeIndex( RedisIndexImplementation provider, IndexIdentifier identifier )
@@ -20,8 +20,12 @@
 package org.neo4j.index.redis;
 
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -34,6 +38,7 @@ import org.neo4j.index.base.TxData;
 import org.neo4j.index.base.keyvalue.KeyValueTransaction;
 import org.neo4j.index.base.keyvalue.KeyValueTxData;
 import org.neo4j.index.base.keyvalue.OneToOneTxData;
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
 import org.neo4j.kernel.impl.index.IndexCommand;
 import org.neo4j.kernel.impl.index.IndexCommand.AddCommand;
 import org.neo4j.kernel.impl.index.IndexCommand.AddRelationshipCommand;
@@ -50,6 +55,15 @@ class RedisTransaction extends KeyValueTransaction
     private Jedis redisResource;
     private Pipeline pipeline;
     private Jedis readOnlyRedisResource;
+    private final Collection<IndexIdentifier> deletedIndexes = new ArrayList<IndexIdentifier>();
+    
+    // Value digests to prune if unused after commit and rollback respectively
+    private final Map<RedisKeys, Set<String>> releasedDigests = new HashMap<RedisKeys, Set<String>>();
+    private final Map<RedisKeys, Set<String>> usedDigests = new HashMap<RedisKeys, Set<String>>();
+    
+    // Values of sort keys added and removed so far, per index and entity/key
+    private final Map<RedisKeys, Map<String, SortValueChanges>> sortValueChanges =
+            new HashMap<RedisKeys, Map<String, SortValueChanges>>();
     
     RedisTransaction( int identifier, XaLogicalLog xaLog,
         RedisDataSource dataSource )
@@ -73,58 +87,98 @@ class RedisTransaction extends KeyValueTransaction
         for ( Map.Entry<IndexIdentifier, Collection<IndexCommand>> entry : getCommands().entrySet() )
         {
             IndexIdentifier identifier = entry.getKey();
-            IndexType indexType = dataSource.getIndexType(identifier);
+            for ( IndexCommand command : entry.getValue() )
+            {
+                if ( command instanceof IndexCommand.CreateCommand )
+                {
+                    createIndex( dataSource, identifier, ((IndexCommand.CreateCommand) command).getConfig() );
+                }
+            }
+            RegisteredIndex index = dataSource.getRegistry().get( identifier );
+            IndexType indexType = index.getType();
+            RedisKeys keys = index.getKeys();
             
             for ( IndexCommand command : entry.getValue() )
             {
                 String indexName = identifier.getIndexName();
                 if ( command instanceof IndexCommand.CreateCommand )
                 {
-                    dataSource.getIndexStore().setIfNecessary( identifier.getEntityType(),
-                            indexName, ((IndexCommand.CreateCommand) command).getConfig() );
                     continue;
                 }
                 else if ( command instanceof IndexCommand.DeleteCommand )
                 {
-                    Set<String> keys = getKeysFromOutsideTransaction( identifier );
-                    if ( !keys.isEmpty() )
+                    Set<byte[]> redisKeys = getKeysFromOutsideTransaction( keys );
+                    if ( !redisKeys.isEmpty() )
                     {
-                        pipeline.del( keys.toArray( new String[keys.size()] ) );
+                        pipeline.del( redisKeys.toArray( new byte[redisKeys.size()][] ) );
                     }
+                    dataSource.getRegistry().invalidate( identifier );
+                    deletedIndexes.add( identifier );
                     continue;
                 }
                 
                 IndexCommand indexCommand = (IndexCommand) command;
                 byte keyId = indexCommand.getKeyId();
                 String commandKey = keyId > 0 ? definitions.getKey( keyId ) : null;
-                Object commandValue = indexCommand.getValue();
+                Object value = indexCommand.getValue();
+                String commandValue = value != null ? value.toString() : null;
                 long id = indexCommand.getEntityId();
+                boolean removal = indexCommand instanceof RemoveCommand;
+                if ( commandKey != null )
+                {
+                    commandKey = removal ? keys.lookupStoredKey( getReadOnlyResource(), commandKey ) :
+                            keys.storedKey( getReadOnlyResource(), commandKey );
+                    if ( commandKey == null )
+                    {
+                        // Nothing has ever been stored with that key, so nothing to remove
+                        continue;
+                    }
+                }
+                if ( commandValue != null )
+                {
+                    commandValue = removal ? keys.lookupStoredValue( getReadOnlyResource(), commandValue ) :
+                            keys.storedValue( getReadOnlyResource(), commandValue );
+                    if ( commandValue == null )
+                    {
+                        continue;
+                    }
+                }
+                
+                if ( !removal )
+                {
+                    indexType.useDigest( pipeline, keys, commandKey, commandValue, value.toString(), id );
+                    if ( keys.isDigest( commandValue ) )
+                    {
+                        remember( usedDigests, keys, commandValue );
+                    }
+                }
                 
                 // TODO Make the command apply itself instead of this if-else-thingie
                 if ( indexCommand instanceof AddCommand )
                 {
-                    indexType.add( pipeline, identifier, commandKey, commandValue.toString(), id, 0, 0 );
+                    indexType.add( pipeline, keys, commandKey, commandValue, id, 0, 0 );
+                    sortValueAdded( keys, commandKey, commandValue, id );
                 }
                 else if ( indexCommand instanceof AddRelationshipCommand )
                 {
                     AddRelationshipCommand addCommand = (AddRelationshipCommand) indexCommand;
-                    indexType.add( pipeline, identifier, commandKey, commandValue.toString(), id,
+                    indexType.add( pipeline, keys, commandKey, commandValue, id,
                             addCommand.getStartNode(), addCommand.getEndNode() );
+                    sortValueAdded( keys, commandKey, commandValue, id );
                 }
                 else if ( indexCommand instanceof RemoveCommand )
                 {
                     if ( commandKey == null && commandValue == null )
                     {
-                        indexType.removeEntity( pipeline, this, identifier, id );
+                        indexType.removeEntity( pipeline, this, keys, id );
                     }
                     else if ( commandValue == null )
                     {
-                        indexType.removeEntityKey( pipeline, this, identifier, commandKey, id );
+                        indexType.removeEntityKey( pipeline, this, keys, commandKey, id );
                     }
                     else
                     {
-                        indexType.removeEntityKeyValue( pipeline, identifier, commandKey,
-                                commandValue.toString(), id );
+                        indexType.removeEntityKeyValue( pipeline, this, keys, commandKey, commandValue, id );
                     }
                 }
                 else
@@ -136,19 +190,139 @@ class RedisTransaction extends KeyValueTransaction
         closeTxData();
     }
 
-    Set<String> getKeysFromOutsideTransaction( IndexIdentifier identifier )
+    /**
+     * Stores the config of a created index, with a newly allocated index id
+     * if its key format uses one and it hasn't got one already. This is the
+     * only place ids are allocated, so an index never gets more than one.
+     */
+    private void createIndex( RedisDataSource dataSource, IndexIdentifier identifier,
+            Map<String, String> commandConfig )
+    {
+        Class<? extends PropertyContainer> entityType = identifier.getEntityType();
+        String indexName = identifier.getIndexName();
+        Map<String, String> storedConfig = dataSource.getIndexStore().get( entityType, indexName );
+        Map<String, String> config = new HashMap<String, String>(
+                storedConfig != null ? storedConfig : commandConfig );
+        if ( RedisDataSource.getKeyFormat( config ).usesIndexId() &&
+                config.get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) == null )
+        {
+            config.put( RedisIndexImplementation.CONFIG_KEY_INDEX_ID,
+                    "" + RedisDataSource.allocateIndexId( getReadOnlyResource() ) );
+            dataSource.getIndexStore().set( entityType, indexName, config );
+        }
+        else
+        {
+            dataSource.getIndexStore().setIfNecessary( entityType, indexName, config );
+        }
+        dataSource.getRegistry().invalidate( identifier );
+    }
+
+    /**
+     * Has {@code digest} pruned after commit if nothing is indexed with it
+     * anymore, see {@link ValueDigests}.
+     */
+    void digestReleased( RedisKeys keys, String digest )
+    {
+        remember( releasedDigests, keys, digest );
+    }
+
+    private void sortValueAdded( RedisKeys keys, String key, String value, long id )
+    {
+        if ( keys.maySortBy( key ) )
+        {
+            sortValueChanges( keys, key, id ).add( value );
+        }
+    }
+
+    /**
+     * Has the entity lose {@code value} of the sort key {@code key} for the
+     * rest of the transaction.
+     *
+     * @return the values the entity has left for {@code key}, the ones
+     * stored before the transaction first and the ones added in it last, in
+     * the order they were added.
+     */
+    List<String> sortValueRemoved( IndexType type, RedisKeys keys, String key, String value, long id )
+    {
+        SortValueChanges changes = sortValueChanges( keys, key, id );
+        changes.remove( value );
+        if ( changes.stored == null )
+        {
+            changes.stored = type.values( this, keys, key, id );
+        }
+        return changes.remaining();
+    }
+
+    private SortValueChanges sortValueChanges( RedisKeys keys, String key, long id )
+    {
+        Map<String, SortValueChanges> entities = sortValueChanges.get( keys );
+        if ( entities == null )
+        {
+            entities = new HashMap<String, SortValueChanges>();
+            sortValueChanges.put( keys, entities );
+        }
+        String entityAndKey = id + ":" + key;
+        SortValueChanges changes = entities.get( entityAndKey );
+        if ( changes == null )
+        {
+            changes = new SortValueChanges();
+            entities.put( entityAndKey, changes );
+        }
+        return changes;
+    }
+
+    private static void remember( Map<RedisKeys, Set<String>> digests, RedisKeys keys, String digest )
+    {
+        Set<String> set = digests.get( keys );
+        if ( set == null )
+        {
+            set = new HashSet<String>();
+            digests.put( keys, set );
+        }
+        set.add( digest );
+    }
+
+    private void pruneDigests( Map<RedisKeys, Set<String>> digests )
+    {
+        try
+        {
+            for ( Map.Entry<RedisKeys, Set<String>> entry : digests.entrySet() )
+            {
+                for ( String digest : entry.getValue() )
+                {
+                    entry.getKey().pruneDigest( redisResource, digest );
+                }
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            // Unused digests only take up memory, the transaction is done either way
+            getDataSource().getMsgLog().logMessage( "Couldn't prune unused redis index value digests", e, true );
+        }
+    }
+
+    Set<byte[]> getKeysFromOutsideTransaction( RedisKeys keys )
+    {
+        return getReadOnlyResource().keys( keys.indexPattern() );
+    }
+
+    Set<byte[]> getMembersFromOutsideTransaction( byte[] key )
+    {
+        return getReadOnlyResource().smembers( key );
+    }
+
+    Set<byte[]> getFieldsFromOutsideTransaction( byte[] key )
     {
-        readOnlyRedisResource = readOnlyRedisResource != null ?
-                readOnlyRedisResource : getDataSource().acquireResource();
-        String pattern = getDataSource().formRedisIndexPattern(identifier);
-        return readOnlyRedisResource.keys(pattern);
+        return getReadOnlyResource().hkeys( key );
     }
 
-    Set<String> getMembersFromOutsideTransaction( String indexName )
+    private Jedis getReadOnlyResource()
     {
-        readOnlyRedisResource = readOnlyRedisResource != null ?
-                readOnlyRedisResource : getDataSource().acquireResource();
-        return readOnlyRedisResource.smembers(indexName);
+        if ( readOnlyRedisResource == null )
+        {
+            readOnlyRedisResource = getDataSource().acquireResource();
+        }
+        return readOnlyRedisResource;
     }
 
     private void acquireRedisTransaction( )
@@ -162,7 +336,7 @@ class RedisTransaction extends KeyValueTransaction
             redisResource.select(targetDatabase);
         }
 
-        pipeline = redisResource.pipelined();
+        pipeline = new RedisPipeline( redisResource );
         pipeline.multi();
     }
     
@@ -179,6 +353,13 @@ class RedisTransaction extends KeyValueTransaction
         {
             pipeline.exec();
             pipeline.execute();
+            
+            // The index may have been looked up again between prepare and commit
+            for ( IndexIdentifier identifier : deletedIndexes )
+            {
+                getDataSource().getRegistry().invalidate( identifier );
+            }
+            pruneDigests( releasedDigests );
         }
         catch ( JedisConnectionException e )
         {
@@ -194,6 +375,8 @@ class RedisTransaction extends KeyValueTransaction
         }
         finally
         {
+            // Even if it failed, some of it may have been written
+            getDataSource().getReadCoalescer().committed();
             releaseResourceIfNecessary( redisResource );
             releaseResourceIfNecessary( readOnlyRedisResource );
         }
@@ -209,6 +392,7 @@ class RedisTransaction extends KeyValueTransaction
             {
                 pipeline.discard();
                 pipeline.execute();
+                pruneDigests( usedDigests );
             }
         }
         finally
@@ -246,4 +430,42 @@ class RedisTransaction extends KeyValueTransaction
             getDataSource().releaseResource( resource );
         }
     }
+
+    /**
+     * The values of a sort key an entity got and lost in a transaction, on
+     * top of what it had before, which is read the first time it's needed.
+     */
+    private static class SortValueChanges
+    {
+        private final List<String> added = new ArrayList<String>();
+        private final Set<String> removed = new HashSet<String>();
+        private Collection<String> stored;
+
+        void add( String value )
+        {
+            added.remove( value );
+            added.add( value );
+            removed.remove( value );
+        }
+
+        void remove( String value )
+        {
+            added.remove( value );
+            removed.add( value );
+        }
+
+        List<String> remaining()
+        {
+            List<String> remaining = new ArrayList<String>();
+            for ( String value : stored )
+            {
+                if ( !removed.contains( value ) && !added.contains( value ) )
+                {
+                    remaining.add( value );
+                }
+            }
+            remaining.addAll( added );
+            return remaining;
+        }
+    }
 }
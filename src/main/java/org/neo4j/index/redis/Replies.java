@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Decodes the raw replies returned by {@link Pipeline#execute()}, where a
+ * bulk reply is a {@code byte[]}, a multi-bulk reply a list of those and
+ * an integer reply a number.
+ */
+final class Replies
+{
+    private Replies()
+    {
+    }
+
+    @SuppressWarnings( "unchecked" )
+    static List<byte[]> multiBulk( Object reply )
+    {
+        return reply != null ? (List<byte[]>) reply : Collections.<byte[]>emptyList();
+    }
+
+    static byte[] bulk( Object reply )
+    {
+        return (byte[]) reply;
+    }
+
+    static long integer( Object reply )
+    {
+        return ((Number) reply).longValue();
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.decode;
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import redis.clients.jedis.Pipeline;
+
+/**
+ * How the reverse information of the multi-value index types, i.e. which
+ * key/value pairs each entity is indexed with, is stored. Chosen per index
+ * with the {@link RedisIndexImplementation#CONFIG_KEY_REVERSE_LAYOUT} config key.
+ *
+ * {@link #sets} keeps a set of keys per entity and a set of values per
+ * entity and key. {@link #hash} keeps one small hash per entity with a field
+ * per key/value pair, which redis stores compactly and which can be read
+ * back with a single HKEYS.
+ */
+public enum ReverseLayout
+{
+    sets
+    {
+        @Override
+        void add( Pipeline pipeline, RedisKeys keys, String key, String value, long id )
+        {
+            pipeline.sadd( keys.entityAndKeyRemoval( key, id ), encode( value ) );
+            pipeline.sadd( keys.entityRemoval( id ), encode( key ) );
+        }
+
+        @Override
+        Map<String, Collection<String>> entries( RedisTransaction neo4jTransaction,
+                RedisKeys keys, long id )
+        {
+            Map<String, Collection<String>> entries = new HashMap<String, Collection<String>>();
+            for ( byte[] key : neo4jTransaction.getMembersFromOutsideTransaction(
+                    keys.entityRemoval( id ) ) )
+            {
+                String decodedKey = decode( key );
+                entries.put( decodedKey, values( neo4jTransaction, keys, decodedKey, id ) );
+            }
+            return entries;
+        }
+
+        @Override
+        Collection<String> values( RedisTransaction neo4jTransaction, RedisKeys keys,
+                String key, long id )
+        {
+            Collection<String> values = new ArrayList<String>();
+            for ( byte[] value : neo4jTransaction.getMembersFromOutsideTransaction(
+                    keys.entityAndKeyRemoval( key, id ) ) )
+            {
+                values.add( decode( value ) );
+            }
+            return values;
+        }
+
+        @Override
+        void removeEntity( Pipeline pipeline, RedisKeys keys, long id,
+                Map<String, Collection<String>> entries )
+        {
+            for ( String key : entries.keySet() )
+            {
+                pipeline.del( keys.entityAndKeyRemoval( key, id ) );
+            }
+            pipeline.del( keys.entityRemoval( id ) );
+        }
+
+        @Override
+        void removeEntityKey( Pipeline pipeline, RedisKeys keys, String key, long id,
+                Collection<String> values )
+        {
+            pipeline.del( keys.entityAndKeyRemoval( key, id ) );
+            pipeline.srem( keys.entityRemoval( id ), encode( key ) );
+        }
+
+        @Override
+        void removeEntityKeyValue( Pipeline pipeline, RedisKeys keys, String key,
+                String value, long id )
+        {
+            pipeline.srem( keys.entityAndKeyRemoval( key, id ), encode( value ) );
+
+            // We cannot remove the key from the key set since we don't know
+            // if there are more values, the sweeper does that later.
+            if ( keys.isSweeping() )
+            {
+                pipeline.sadd( keys.sweepCandidates(), keys.id( id ) );
+            }
+        }
+    },
+    hash
+    {
+        @Override
+        void add( Pipeline pipeline, RedisKeys keys, String key, String value, long id )
+        {
+            // The pair is the field itself, so adding never has to read anything
+            pipeline.hset( keys.entityRemoval( id ), RedisKeys.field( key, value ), EMPTY );
+        }
+
+        @Override
+        Map<String, Collection<String>> entries( RedisTransaction neo4jTransaction,
+                RedisKeys keys, long id )
+        {
+            Map<String, Collection<String>> entries = new HashMap<String, Collection<String>>();
+            for ( byte[] field : neo4jTransaction.getFieldsFromOutsideTransaction(
+                    keys.entityRemoval( id ) ) )
+            {
+                int keyLength = (int) Bytes.readVarLong( field, 0 );
+                int keyStart = Bytes.varLongSize( keyLength );
+                String key = decode( Arrays.copyOfRange( field, keyStart, keyStart + keyLength ) );
+                Collection<String> values = entries.get( key );
+                if ( values == null )
+                {
+                    values = new ArrayList<String>();
+                    entries.put( key, values );
+                }
+                values.add( decode( Arrays.copyOfRange( field, keyStart + keyLength, field.length ) ) );
+            }
+            return entries;
+        }
+
+        @Override
+        Collection<String> values( RedisTransaction neo4jTransaction, RedisKeys keys,
+                String key, long id )
+        {
+            Collection<String> values = entries( neo4jTransaction, keys, id ).get( key );
+            return values != null ? values : new ArrayList<String>();
+        }
+
+        @Override
+        void removeEntity( Pipeline pipeline, RedisKeys keys, long id,
+                Map<String, Collection<String>> entries )
+        {
+            pipeline.del( keys.entityRemoval( id ) );
+        }
+
+        @Override
+        void removeEntityKey( Pipeline pipeline, RedisKeys keys, String key, long id,
+                Collection<String> values )
+        {
+            for ( String value : values )
+            {
+                pipeline.hdel( keys.entityRemoval( id ), RedisKeys.field( key, value ) );
+            }
+        }
+
+        @Override
+        void removeEntityKeyValue( Pipeline pipeline, RedisKeys keys, String key,
+                String value, long id )
+        {
+            // Redis removes the hash along with its last field
+            pipeline.hdel( keys.entityRemoval( id ), RedisKeys.field( key, value ) );
+        }
+    };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    abstract void add( Pipeline pipeline, RedisKeys keys, String key, String value, long id );
+
+    /**
+     * @return all keys the entity is indexed with, mapped to their values.
+     */
+    abstract Map<String, Collection<String>> entries( RedisTransaction neo4jTransaction,
+            RedisKeys keys, long id );
+
+    /**
+     * @return the values the entity is indexed with for {@code key}.
+     */
+    abstract Collection<String> values( RedisTransaction neo4jTransaction, RedisKeys keys,
+            String key, long id );
+
+    abstract void removeEntity( Pipeline pipeline, RedisKeys keys, long id,
+            Map<String, Collection<String>> entries );
+
+    abstract void removeEntityKey( Pipeline pipeline, RedisKeys keys, String key, long id,
+            Collection<String> values );
+
+    abstract void removeEntityKeyValue( Pipeline pipeline, RedisKeys keys, String key,
+            String value, long id );
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Pipeline;
+
+/**
+ * The keys an index keeps a sort order for, configured with
+ * {@link RedisIndexImplementation#CONFIG_KEY_SORT_KEYS} as a comma separated
+ * list of keys, each optionally followed by {@code :numeric} (the default)
+ * or {@code :text}.
+ *
+ * Each sort key has a sorted set with a member per entity, the entity id,
+ * scored by its value of that key. An entity with several values of a sort
+ * key is scored by the one added last. Removing one of them rescores it by
+ * one of the values it has left, preferring the ones added last in the same
+ * transaction, and removing the last one removes the entity from the sorted
+ * set. {@link OrderedQuery ordered queries} intersect them with their hits in
+ * redis.
+ */
+final class SortKeys
+{
+    enum Kind
+    {
+        /**
+         * Ordered by the value parsed as a double, values which aren't
+         * numbers aren't sorted.
+         */
+        numeric
+        {
+            @Override
+            Double score( String value )
+            {
+                return NumericValues.score( value );
+            }
+        },
+        /**
+         * Ordered by the bytes of the value, which only tells apart the first
+         * {@link SortedValues#SCORE_BYTES} bytes. Values with the same first
+         * bytes come in no particular order.
+         */
+        text
+        {
+            @Override
+            Double score( String value )
+            {
+                return Double.valueOf( SortedValues.score( encode( value ), 0 ) );
+            }
+        };
+
+        /**
+         * @return the score of {@code value}, or {@code null} if it can't be
+         * sorted.
+         */
+        abstract Double score( String value );
+    }
+
+    static final SortKeys NONE = new SortKeys( Collections.<String, Kind>emptyMap() );
+
+    private final Map<String, Kind> kinds;
+
+    private SortKeys( Map<String, Kind> kinds )
+    {
+        this.kinds = kinds;
+    }
+
+    static SortKeys parse( String spec )
+    {
+        if ( spec == null || spec.trim().length() == 0 )
+        {
+            return NONE;
+        }
+        Map<String, Kind> kinds = new HashMap<String, Kind>();
+        for ( String entry : spec.split( "," ) )
+        {
+            entry = entry.trim();
+            int colon = entry.lastIndexOf( ':' );
+            Kind kind = Kind.numeric;
+            if ( colon != -1 )
+            {
+                kind = Kind.valueOf( entry.substring( colon + 1 ).trim() );
+                entry = entry.substring( 0, colon ).trim();
+            }
+            if ( entry.length() == 0 )
+            {
+                throw new IllegalArgumentException( "Empty sort key in '" + spec + "'" );
+            }
+            kinds.put( entry, kind );
+        }
+        return new SortKeys( kinds );
+    }
+
+    boolean isEmpty()
+    {
+        return kinds.isEmpty();
+    }
+
+    /**
+     * @return how {@code key} is sorted, or {@code null} if it isn't a sort key.
+     */
+    Kind kind( String key )
+    {
+        return kinds.get( key );
+    }
+
+    /**
+     * Scores the entity by {@code value} in the sorted set of {@code key},
+     * if it's a sort key.
+     */
+    static void add( Pipeline pipeline, RedisKeys keys, String key, String value, long id )
+    {
+        Kind kind = keys.sortKind( key );
+        if ( kind == null || keys.isDigest( value ) )
+        {
+            return;
+        }
+        Double score = kind.score( value );
+        if ( score != null )
+        {
+            pipeline.zadd( keys.sortValues( key ), score, keys.id( id ) );
+        }
+    }
+
+    /**
+     * Scores the entity by the last of the {@code remaining} values of
+     * {@code key} which can be sorted, or removes it from the sorted set of
+     * {@code key} if there's none.
+     */
+    static void remove( Pipeline pipeline, RedisKeys keys, String key, List<String> remaining, long id )
+    {
+        Kind kind = keys.sortKind( key );
+        for ( int i = remaining.size() - 1; kind != null && i >= 0; i-- )
+        {
+            String value = remaining.get( i );
+            Double score = keys.isDigest( value ) ? null : kind.score( value );
+            if ( score != null )
+            {
+                pipeline.zadd( keys.sortValues( key ), score, keys.id( id ) );
+                return;
+            }
+        }
+        pipeline.zrem( keys.sortValues( key ), keys.id( id ) );
+    }
+}
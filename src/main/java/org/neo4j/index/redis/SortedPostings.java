@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Postings stored as sorted sets scored by entity id, used by
+ * {@link IndexType#id_ordered}. Since every posting can be read in id
+ * order from any id with ZRANGEBYSCORE, intersections are done here rather
+ * than with SINTER in redis: each posting is streamed a chunk at a time and
+ * the chunks are intersected by galloping, i.e. exponential then binary
+ * search, to the largest id seen so far. Jumps past the end of a chunk are
+ * done by reading the next chunk from the target id, so long stretches of
+ * ids which can't match are never transferred. Intersecting on the client
+ * keeps the CPU-heavy part off the redis server, which is shared, and
+ * hands out the result a page at a time as it's found.
+ */
+final class SortedPostings
+{
+    static final double MAX_SCORE = Long.MAX_VALUE;
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private SortedPostings()
+    {
+    }
+
+    static IdPages pages( final RedisKeys keys, final byte[][] postings, final int pageSize )
+    {
+        final int chunkSize = Math.max( MIN_CHUNK_SIZE, pageSize );
+        return new IdPages()
+        {
+            private Cursor[] cursors;
+            private long candidate;
+            private boolean done;
+
+            public long[] next( Jedis resource )
+            {
+                if ( done )
+                {
+                    return null;
+                }
+                if ( cursors == null )
+                {
+                    cursors = open( resource, keys, postings, chunkSize );
+                }
+                long[] page = new long[Math.min( pageSize, chunkSize )];
+                int size = 0;
+                while ( size < pageSize )
+                {
+                    long match = nextMatch( resource, cursors, candidate );
+                    if ( match == -1 )
+                    {
+                        done = true;
+                        break;
+                    }
+                    if ( size == page.length )
+                    {
+                        page = Arrays.copyOf( page, Math.min( pageSize, page.length * 2 ) );
+                    }
+                    page[size++] = match;
+                    candidate = match + 1;
+                }
+                if ( size == 0 )
+                {
+                    return null;
+                }
+                return size == page.length ? page : Arrays.copyOf( page, size );
+            }
+        };
+    }
+
+    /**
+     * @return up to {@code limit} ids of {@code posting} greater than
+     * {@code afterId}, in id order, read with one ZRANGEBYSCORE ... LIMIT
+     * which costs O(log n + limit) however far into the posting it is.
+     */
+    static long[] page( Jedis resource, RedisKeys keys, byte[] posting, long afterId, int limit )
+    {
+        Pipeline pipeline = resource.pipelined();
+        pipeline.zrangeByScore( posting, afterId + 1, MAX_SCORE, 0, limit );
+        return IndexType.ids( keys, pipeline.execute().get( 0 ) );
+    }
+
+    private static Cursor[] open( Jedis resource, RedisKeys keys, byte[][] postings, int chunkSize )
+    {
+        Pipeline pipeline = resource.pipelined();
+        for ( byte[] posting : postings )
+        {
+            pipeline.zrangeByScore( posting, 0, MAX_SCORE, 0, chunkSize );
+        }
+        List<Object> replies = pipeline.execute();
+        Cursor[] cursors = new Cursor[postings.length];
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            cursors[i] = new Cursor( keys, postings[i], chunkSize );
+            cursors[i].fill( Replies.multiBulk( replies.get( i ) ) );
+        }
+        return cursors;
+    }
+
+    /**
+     * @return the smallest id, from {@code candidate} and up, which is in
+     * all of the postings, or -1 if there's none.
+     */
+    private static long nextMatch( Jedis resource, Cursor[] cursors, long candidate )
+    {
+        int agreed = 0;
+        for ( int i = 0; agreed < cursors.length; i = (i + 1) % cursors.length )
+        {
+            Cursor cursor = cursors[i];
+            if ( !cursor.seek( resource, candidate ) )
+            {
+                return -1;
+            }
+            long head = cursor.head();
+            if ( head == candidate )
+            {
+                agreed++;
+            }
+            else
+            {
+                candidate = head;
+                agreed = 1;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * @return the first index, from {@code from}, of an id in the sorted
+     * {@code ids} which is at least {@code target}, or {@code ids.length}.
+     */
+    static int gallop( long[] ids, int from, long target )
+    {
+        int low = from;
+        int step = 1;
+        int high = from;
+        while ( high < ids.length && ids[high] < target )
+        {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min( high, ids.length );
+        while ( low < high )
+        {
+            int middle = (low + high) >>> 1;
+            if ( ids[middle] < target )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static class Cursor
+    {
+        private final RedisKeys keys;
+        private final byte[] posting;
+        private final int chunkSize;
+        private long[] ids;
+        private int position;
+        private boolean last;
+
+        Cursor( RedisKeys keys, byte[] posting, int chunkSize )
+        {
+            this.keys = keys;
+            this.posting = posting;
+            this.chunkSize = chunkSize;
+        }
+
+        void fill( List<byte[]> members )
+        {
+            ids = new long[members.size()];
+            int i = 0;
+            for ( byte[] member : members )
+            {
+                ids[i++] = keys.id( member );
+            }
+            position = 0;
+            last = ids.length < chunkSize;
+        }
+
+        /**
+         * Moves to the first id which is at least {@code target}.
+         *
+         * @return {@code false} if there's no such id.
+         */
+        boolean seek( Jedis resource, long target )
+        {
+            while ( true )
+            {
+                if ( ids.length > 0 && ids[ids.length - 1] >= target )
+                {
+                    position = gallop( ids, position, target );
+                    return true;
+                }
+                if ( last )
+                {
+                    return false;
+                }
+                // Skips straight to the target in redis
+                long from = Math.max( target, ids.length > 0 ? ids[ids.length - 1] + 1 : target );
+                fill( Replies.multiBulk( zrangeFrom( resource, from ) ) );
+            }
+        }
+
+        private Object zrangeFrom( Jedis resource, long from )
+        {
+            Pipeline pipeline = resource.pipelined();
+            pipeline.zrangeByScore( posting, from, MAX_SCORE, 0, chunkSize );
+            return pipeline.execute().get( 0 );
+        }
+
+        long head()
+        {
+            return ids[position];
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.decode;
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+
+/**
+ * The values of each key kept in value order, for prefix queries on indexes
+ * with {@link RedisIndexImplementation#CONFIG_KEY_PREFIX_QUERIES} set.
+ *
+ * The values are members of a sorted set per key. Redis versions supported
+ * here have no ZRANGEBYLEX, so each value is scored by its first
+ * {@link #SCORE_BYTES} bytes, which a double holds exactly. Members with the
+ * same score are ordered by their bytes, so the set is in byte order and the
+ * values with a prefix are found with one ZRANGEBYSCORE over the scores of
+ * the prefix, filtered here if the prefix is longer than the score.
+ *
+ * Digested values can't be matched by prefix and aren't kept. A value stays
+ * in the set after its last entity has been removed, since a write can't
+ * tell if it was the last one. Prefix queries drop the values whose
+ * postings are gone, guarded by WATCH so that they never race with an add.
+ */
+final class SortedValues
+{
+    static final int SCORE_BYTES = 6;
+    private static final int MAX_VALUES_PER_PAGE = 500;
+
+    private SortedValues()
+    {
+    }
+
+    static void add( Pipeline pipeline, RedisKeys keys, String key, String value )
+    {
+        if ( !keys.isDigest( value ) )
+        {
+            byte[] valueBytes = encode( value );
+            pipeline.zadd( keys.sortedValues( key ), score( valueBytes, 0 ), valueBytes );
+        }
+    }
+
+    static void remove( Pipeline pipeline, RedisKeys keys, String key, String value )
+    {
+        if ( !keys.isDigest( value ) )
+        {
+            pipeline.zrem( keys.sortedValues( key ), encode( value ) );
+        }
+    }
+
+    /**
+     * @return the first {@link #SCORE_BYTES} bytes of {@code value} as a
+     * number, padded with {@code padding} if it's shorter.
+     */
+    static double score( byte[] value, int padding )
+    {
+        long score = 0;
+        for ( int i = 0; i < SCORE_BYTES; i++ )
+        {
+            score = (score << 8) | (i < value.length ? value[i] & 0xFF : padding);
+        }
+        return score;
+    }
+
+    /**
+     * @return the prefix of a query like "prefix*", or {@code null} if the
+     * query isn't a prefix query.
+     */
+    static String prefix( Object query )
+    {
+        if ( !(query instanceof String) )
+        {
+            return null;
+        }
+        String string = (String) query;
+        int star = string.indexOf( '*' );
+        return star != -1 && star == string.length() - 1 ? string.substring( 0, star ) : null;
+    }
+
+    /**
+     * Reads the entities indexed with a value of {@code key} starting with
+     * {@code prefix}, a page of values at a time which are then read with
+     * {@link IndexType#unionPages(RedisKeys, String, String, List, int)}.
+     * Entities with more than one such value are returned once.
+     *
+     * Values are paged by offset, so values written while the query is read
+     * may shift them and be skipped or seen twice, which are then skipped.
+     */
+    static IdPages pages( final IndexType type, final RedisKeys keys, final String key,
+            final String storedKey, String prefix, final int pageSize )
+    {
+        final byte[] valuesKey = keys.sortedValues( storedKey );
+        final byte[] prefixBytes = encode( prefix );
+        final double min = score( prefixBytes, 0 );
+        final double max = score( prefixBytes, 0xFF );
+        final int valuesPerPage = Math.min( pageSize, MAX_VALUES_PER_PAGE );
+        return new IdPages()
+        {
+            private final LongSet returned = new LongSet();
+            private IdPages current;
+            private int offset;
+            private boolean done;
+
+            public long[] next( Jedis resource )
+            {
+                while ( true )
+                {
+                    if ( current != null )
+                    {
+                        long[] page = current.next( resource );
+                        if ( page == null )
+                        {
+                            current = null;
+                            continue;
+                        }
+                        int size = 0;
+                        for ( long id : page )
+                        {
+                            if ( returned.add( id ) )
+                            {
+                                page[size++] = id;
+                            }
+                        }
+                        if ( size > 0 )
+                        {
+                            return size == page.length ? page : Arrays.copyOf( page, size );
+                        }
+                        continue;
+                    }
+                    if ( done )
+                    {
+                        return null;
+                    }
+
+                    Pipeline pipeline = resource.pipelined();
+                    pipeline.zrangeByScore( valuesKey, min, max, offset, valuesPerPage );
+                    List<byte[]> members = Replies.multiBulk( pipeline.execute().get( 0 ) );
+                    offset += members.size();
+                    done = members.size() < valuesPerPage;
+                    List<String> values = new ArrayList<String>( members.size() );
+                    for ( byte[] member : members )
+                    {
+                        if ( startsWith( member, prefixBytes ) )
+                        {
+                            values.add( decode( member ) );
+                        }
+                        else if ( Bytes.compare( member, prefixBytes ) > 0 )
+                        {
+                            // In byte order, so there are no more matches
+                            done = true;
+                            break;
+                        }
+                    }
+                    if ( type != IndexType.single_value )
+                    {
+                        offset -= prune( resource, keys, valuesKey, storedKey, values );
+                    }
+                    if ( !values.isEmpty() )
+                    {
+                        current = type.unionPages( keys, key, storedKey, values, pageSize );
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Removes the values whose postings are gone, from the sorted set as well
+     * as from {@code values}.
+     *
+     * @return the number of values removed from the sorted set.
+     */
+    private static int prune( Jedis resource, RedisKeys keys, byte[] valuesKey, String storedKey,
+            List<String> values )
+    {
+        Pipeline pipeline = resource.pipelined();
+        for ( String value : values )
+        {
+            pipeline.exists( keys.keyValue( storedKey, value ) );
+        }
+        List<Object> replies = pipeline.execute();
+        int pruned = 0;
+        for ( int i = replies.size() - 1; i >= 0; i-- )
+        {
+            if ( Replies.integer( replies.get( i ) ) != 0 )
+            {
+                continue;
+            }
+            String value = values.remove( i );
+            byte[] posting = keys.keyValue( storedKey, value );
+            resource.watch( posting );
+            if ( resource.exists( posting ) )
+            {
+                // Added since we looked
+                resource.unwatch();
+                values.add( i, value );
+                continue;
+            }
+            Transaction transaction = resource.multi();
+            transaction.zrem( valuesKey, encode( value ) );
+            if ( transaction.exec() != null )
+            {
+                pruned++;
+            }
+            else
+            {
+                // A concurrent add won, the value stays
+                values.add( i, value );
+            }
+        }
+        return pruned;
+    }
+
+    static boolean startsWith( byte[] bytes, byte[] prefix )
+    {
+        if ( bytes.length < prefix.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < prefix.length; i++ )
+        {
+            if ( bytes[i] != prefix[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.decode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.index.base.IndexIdentifier;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Background task which prunes orphaned entries from the reverse information
+ * of indexes using the {@link ReverseLayout#sets} layout.
+ *
+ * Removing a single key/value from an entity can't tell whether the entity
+ * has more values for that key, so the key is left in the entity's key set
+ * and the entity is added to the index's set of sweep candidates instead.
+ * The sweeper pops a batch of candidates per index at a time and removes
+ * the keys whose value sets are gone, guarded by WATCH so that it never
+ * races with a concurrent add. It pauses between batches, backing off while
+ * redis responds slower than the configured latency.
+ *
+ * Orphaned keys only cost memory and an empty read when the entity is
+ * removed, so the sweeper is off unless "index.redis.sweeper.enabled" is
+ * set to "true". Candidates are only recorded while it's on.
+ */
+public class Sweeper implements Runnable
+{
+    private static final long MAX_PAUSE = 60000;
+
+    private final RedisDataSource dataSource;
+    private final int batchSize;
+    private final long interval;
+    private final long maxLatency;
+    private volatile long pause;
+    private volatile boolean running;
+    private Thread thread;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong sweptEntities = new AtomicLong();
+    private final AtomicLong prunedEntries = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    Sweeper( RedisDataSource dataSource, int batchSize, long interval, long maxLatency )
+    {
+        this.dataSource = dataSource;
+        this.batchSize = batchSize;
+        this.interval = Math.max( interval, 1 );
+        this.maxLatency = maxLatency;
+        this.pause = this.interval;
+    }
+
+    synchronized void start()
+    {
+        running = true;
+        thread = new Thread( this, "Redis index sweeper" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    synchronized void stop()
+    {
+        running = false;
+        if ( thread != null )
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    public void run()
+    {
+        while ( running )
+        {
+            try
+            {
+                sweep();
+            }
+            catch ( RuntimeException e )
+            {
+                // Redis may be down, try again later
+                pause = Math.min( pause * 2, MAX_PAUSE );
+                dataSource.getMsgLog().logMessage( "Redis index sweep failed, retrying in " +
+                        pause + "ms", e, true );
+            }
+            try
+            {
+                Thread.sleep( pause );
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sweeps one batch of candidates from each index.
+     *
+     * @return the number of entities swept.
+     */
+    int sweep()
+    {
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            int targetDatabase = RedisDataSource.getTargetDatabase();
+            if ( targetDatabase != RedisDataSource.DEFAULT_DATABASE )
+            {
+                resource.select( targetDatabase );
+            }
+            long start = System.currentTimeMillis();
+            int swept = sweep( resource, Node.class ) + sweep( resource, Relationship.class );
+            passes.incrementAndGet();
+            if ( swept > 0 )
+            {
+                adjustPause( (System.currentTimeMillis() - start) / swept );
+            }
+            return swept;
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+
+    private int sweep( Jedis resource, Class<? extends PropertyContainer> entityType )
+    {
+        int swept = 0;
+        for ( String name : dataSource.getIndexStore().getNames( entityType ) )
+        {
+            RedisKeys keys;
+            try
+            {
+                IndexIdentifier identifier = new IndexIdentifier( entityType, name );
+                if ( dataSource.getIndexType( identifier ) == IndexType.single_value )
+                {
+                    continue;
+                }
+                keys = dataSource.getKeys( identifier );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // Deleted while we were at it
+                continue;
+            }
+            if ( keys.getReverseLayout() != ReverseLayout.sets )
+            {
+                continue;
+            }
+            for ( int i = 0; i < batchSize && running; i++ )
+            {
+                byte[] candidate = resource.spop( keys.sweepCandidates() );
+                if ( candidate == null )
+                {
+                    break;
+                }
+                sweepEntity( resource, keys, keys.id( candidate ) );
+                swept++;
+            }
+        }
+        return swept;
+    }
+
+    void sweepEntity( Jedis resource, RedisKeys keys, long id )
+    {
+        byte[] entityRemovalKey = keys.entityRemoval( id );
+        resource.watch( entityRemovalKey );
+        List<byte[]> orphans = new ArrayList<byte[]>();
+        for ( byte[] key : resource.smembers( entityRemovalKey ) )
+        {
+            byte[] entityAndKeyRemovalKey = keys.entityAndKeyRemoval( decode( key ), id );
+            resource.watch( entityAndKeyRemovalKey );
+            long values = resource.scard( entityAndKeyRemovalKey );
+            if ( values == 0 )
+            {
+                orphans.add( key );
+            }
+        }
+        sweptEntities.incrementAndGet();
+        if ( orphans.isEmpty() )
+        {
+            resource.unwatch();
+            return;
+        }
+
+        Transaction transaction = resource.multi();
+        for ( byte[] key : orphans )
+        {
+            transaction.srem( entityRemovalKey, key );
+        }
+        if ( transaction.exec() == null )
+        {
+            // Written to since we looked, leave it for a later pass
+            conflicts.incrementAndGet();
+            resource.sadd( keys.sweepCandidates(), keys.id( id ) );
+        }
+        else
+        {
+            prunedEntries.addAndGet( orphans.size() );
+        }
+    }
+
+    void adjustPause( long latency )
+    {
+        pause = latency > maxLatency ? Math.min( pause * 2, MAX_PAUSE ) : Math.max( pause / 2, interval );
+    }
+
+    /**
+     * @return the number of sweeps over all indexes done so far.
+     */
+    public long getPasses()
+    {
+        return passes.get();
+    }
+
+    /**
+     * @return the number of candidate entities checked so far.
+     */
+    public long getSweptEntities()
+    {
+        return sweptEntities.get();
+    }
+
+    /**
+     * @return the number of orphaned reverse entries removed so far.
+     */
+    public long getPrunedEntries()
+    {
+        return prunedEntries.get();
+    }
+
+    /**
+     * @return the number of entities which were written to while being swept
+     * and were put back for a later pass.
+     */
+    public long getConflicts()
+    {
+        return conflicts.get();
+    }
+
+    /**
+     * @return the current pause between batches, in milliseconds.
+     */
+    public long getPause()
+    {
+        return pause;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.index.base.IndexIdentifier;
+
+/**
+ * What one transaction has read from redis, per index, key and read, so
+ * that repeating a lookup within the transaction doesn't go back to redis.
+ * Only the committed state read from redis is kept, the transaction state
+ * is layered on top of it for every lookup just as for an uncached read.
+ * Reads of a key are still dropped once the transaction writes to it, as
+ * are all reads of an index when the transaction removes an entity from it
+ * without saying which key.
+ */
+class TransactionReads
+{
+    static final Object NONE = new Object();
+    
+    // Bounds the memory held by a transaction doing lots of different lookups
+    private static final int MAX_READS = 10000;
+
+    private final Map<IndexIdentifier, Map<String, Map<Object, Object>>> reads =
+            new HashMap<IndexIdentifier, Map<String, Map<Object, Object>>>();
+    private int size;
+
+    /**
+     * @return what was read for {@code read} before, {@link #NONE} if that
+     * was nothing, or {@code null} if it hasn't been read.
+     */
+    synchronized Object get( IndexIdentifier index, String key, Object read )
+    {
+        Map<String, Map<Object, Object>> indexReads = reads.get( index );
+        Map<Object, Object> keyReads = indexReads != null ? indexReads.get( key ) : null;
+        return keyReads != null ? keyReads.get( read ) : null;
+    }
+
+    synchronized void put( IndexIdentifier index, String key, Object read, Object result )
+    {
+        if ( size >= MAX_READS )
+        {
+            return;
+        }
+        Map<String, Map<Object, Object>> indexReads = reads.get( index );
+        if ( indexReads == null )
+        {
+            indexReads = new HashMap<String, Map<Object, Object>>();
+            reads.put( index, indexReads );
+        }
+        Map<Object, Object> keyReads = indexReads.get( key );
+        if ( keyReads == null )
+        {
+            keyReads = new HashMap<Object, Object>();
+            indexReads.put( key, keyReads );
+        }
+        if ( keyReads.put( read, result ) == null )
+        {
+            size++;
+        }
+    }
+
+    /**
+     * Drops the reads of {@code key} in {@code index}, or of all keys if
+     * {@code key} is {@code null}.
+     */
+    synchronized void invalidate( IndexIdentifier index, String key )
+    {
+        Map<String, Map<Object, Object>> indexReads = reads.get( index );
+        if ( indexReads == null )
+        {
+            return;
+        }
+        if ( key == null )
+        {
+            for ( Map<Object, Object> keyReads : indexReads.values() )
+            {
+                size -= keyReads.size();
+            }
+            reads.remove( index );
+        }
+        else
+        {
+            for ( String removed : new String[] { key, null } )
+            {
+                // Reads without a key, i.e. by start/end node only, may
+                // include entities written with any key
+                Map<Object, Object> keyReads = indexReads.remove( removed );
+                size -= keyReads != null ? keyReads.size() : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.neo4j.index.redis.Bytes.decode;
+import static org.neo4j.index.redis.Bytes.encode;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Replaces values longer than a threshold with fixed-size digests in the
+ * keys and reverse information of an index with
+ * {@link RedisIndexImplementation#CONFIG_KEY_VALUE_DIGEST_THRESHOLD} set.
+ *
+ * A digest is {@link #MARKER}, the hex SHA-1 of the value and an ordinal
+ * telling apart values with the same SHA-1. Each digest in use is a field
+ * in a hash under the index prefix with the original value, which is
+ * compared on every lookup so that a collision can never mix up values.
+ * Short values starting with {@link #MARKER} are digested as well, so a
+ * value can never be mistaken for a digest.
+ *
+ * A digest is registered when a transaction is prepared, outside of its
+ * MULTI since the ordinal depends on what's registered already, so it's
+ * left behind if the transaction then rolls back. That's harmless, lookups
+ * with it find nothing and the next add of the value uses it. What is
+ * indexed with each digest is kept in a set, written in the transactions
+ * themselves, and a digest is {@link #prune(Jedis, byte[], String) pruned}
+ * once the set is gone, after the commit which removed its last entry or
+ * the rollback which left it unused.
+ */
+class ValueDigests
+{
+    static final char MARKER = '\u0000';
+
+    private final byte[] valuesKey;
+    private final int threshold;
+
+    ValueDigests( byte[] valuesKey, int threshold )
+    {
+        this.valuesKey = valuesKey;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the digest of {@code value}, registering it if it has none yet,
+     * or {@code value} itself if it's short enough to store as is.
+     */
+    String digest( Jedis resource, String value )
+    {
+        byte[] valueBytes = encode( value );
+        if ( !shouldDigest( value, valueBytes ) )
+        {
+            return value;
+        }
+        String base = base( valueBytes );
+        for ( int ordinal = 0; ; ordinal++ )
+        {
+            byte[] field = encode( base + ordinal );
+            byte[] stored = resource.hget( valuesKey, field );
+            if ( stored == null )
+            {
+                long set = resource.hsetnx( valuesKey, field, valueBytes );
+                if ( set == 1 )
+                {
+                    return decode( field );
+                }
+                // Someone else claimed this ordinal in the meantime
+                stored = resource.hget( valuesKey, field );
+            }
+            if ( Arrays.equals( stored, valueBytes ) )
+            {
+                return decode( field );
+            }
+        }
+    }
+
+    /**
+     * @return the digest of {@code value}, {@code value} itself if it's short
+     * enough to store as is, or {@code null} if it has no digest, i.e. if
+     * nothing has been stored with that value.
+     */
+    String lookup( Jedis resource, String value )
+    {
+        byte[] valueBytes = encode( value );
+        if ( !shouldDigest( value, valueBytes ) )
+        {
+            return value;
+        }
+        String base = base( valueBytes );
+        for ( int ordinal = 0; ; ordinal++ )
+        {
+            byte[] field = encode( base + ordinal );
+            byte[] stored = resource.hget( valuesKey, field );
+            if ( stored == null )
+            {
+                return null;
+            }
+            if ( Arrays.equals( stored, valueBytes ) )
+            {
+                return decode( field );
+            }
+        }
+    }
+
+    /**
+     * Queues recording {@code user} as indexed with {@code digest} of
+     * {@code value}. The digest is registered again in the same transaction
+     * in case it was pruned since it was looked up.
+     */
+    void use( Pipeline pipeline, byte[] usersKey, String digest, String value, byte[] user )
+    {
+        pipeline.sadd( usersKey, user );
+        pipeline.hsetnx( valuesKey, encode( digest ), encode( value ) );
+    }
+
+    /**
+     * Removes {@code digest} if nothing is indexed with it, guarded by WATCH
+     * so that it never races with a {@link #use(Pipeline, byte[], String, String, byte[]) use}.
+     */
+    void prune( Jedis resource, byte[] usersKey, String digest )
+    {
+        resource.watch( usersKey );
+        if ( resource.exists( usersKey ) )
+        {
+            resource.unwatch();
+            return;
+        }
+        Transaction transaction = resource.multi();
+        transaction.hdel( valuesKey, encode( digest ) );
+        // Null if a concurrent add won, then the digest stays
+        transaction.exec();
+    }
+
+    private boolean shouldDigest( String value, byte[] valueBytes )
+    {
+        return valueBytes.length > threshold || (value.length() > 0 && value.charAt( 0 ) == MARKER);
+    }
+
+    private static String base( byte[] value )
+    {
+        byte[] sha1;
+        try
+        {
+            sha1 = MessageDigest.getInstance( "SHA-1" ).digest( value );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new RuntimeException( e );
+        }
+        StringBuilder builder = new StringBuilder( 2 + sha1.length * 2 );
+        builder.append( MARKER );
+        for ( byte b : sha1 )
+        {
+            builder.append( Character.forDigit( (b >> 4) & 0xF, 16 ) );
+            builder.append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return builder.append( '#' ).toString();
+    }
+}
@@ -54,13 +54,19 @@ public abstract class Neo4jTestCase
     }
     
     protected static Index<Node> nodeIndex( GraphDatabaseService db, String name )
+    {
+        return nodeIndex( db, name, REDIS_CONFIG );
+    }
+    
+    protected static Index<Node> nodeIndex( GraphDatabaseService db, String name,
+            Map<String, String> config )
     {
         // Create/delete it because of the nature of redis... it's a server
         // and its indexes are there even after a test and we've cleared the db
         Transaction tx = db.beginTx();
         try
         {
-            Index<Node> index = db.index().forNodes( name, REDIS_CONFIG );
+            Index<Node> index = db.index().forNodes( name, config );
             index.delete();
             tx.success();
         }
@@ -68,10 +74,16 @@ public abstract class Neo4jTestCase
         {
             tx.finish();
         }
-        return db.index().forNodes( name, REDIS_CONFIG );
+        return db.index().forNodes( name, config );
     }
     
     protected static RelationshipIndex relIndex( GraphDatabaseService db, String name )
+    {
+        return relIndex( db, name, REDIS_CONFIG );
+    }
+    
+    protected static RelationshipIndex relIndex( GraphDatabaseService db, String name,
+            Map<String, String> config )
     {
         // Create/delete it because of the nature of redis... it's a server
         // and its indexes are there even after a test and we've cleared the db
@@ -80,7 +92,7 @@ public abstract class Neo4jTestCase
         Transaction tx = db.beginTx();
         try
         {
-            RelationshipIndex index = db.index().forRelationships( name, REDIS_CONFIG );
+            RelationshipIndex index = db.index().forRelationships( name, config );
             index.delete();
             tx.success();
         }
@@ -88,7 +100,7 @@ public abstract class Neo4jTestCase
         {
             tx.finish();
         }
-        return db.index().forRelationships( name, REDIS_CONFIG );
+        return db.index().forRelationships( name, config );
     }
     
     protected boolean manageMyOwnTxFinish()
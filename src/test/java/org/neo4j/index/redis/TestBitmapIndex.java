@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.neo4j.index.redis.Contains.contains;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.RelationshipIndex;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+public class TestBitmapIndex
+{
+    private static final String PATH = "target/var/bitmap";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.BITMAP;
+    private GraphDatabaseService db;
+    private Transaction tx;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        db.shutdown();
+    }
+    
+    private void beginTx()
+    {
+        tx = db.beginTx();
+    }
+    
+    private void finishTx( boolean success )
+    {
+        if ( success )
+        {
+            tx.success();
+        }
+        tx.finish();
+    }
+    
+    private void restartTx()
+    {
+        finishTx( true );
+        beginTx();
+    }
+    
+    @Test
+    public void addRemoveAndGet()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "bitmap-nodes", REDIS_CONFIG );
+        String key = "status";
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, "active" );
+        index.add( b, key, "active" );
+        index.add( c, key, "inactive" );
+        restartTx();
+        assertThat( index.get( key, "active" ), contains( a, b ) );
+        assertThat( index.get( key, "inactive" ), contains( c ) );
+        
+        index.remove( a, key, "active" );
+        index.remove( c );
+        assertThat( index.get( key, "active" ), contains( b ) );
+        restartTx();
+        assertThat( index.get( key, "active" ), contains( b ) );
+        assertThat( index.get( key, "inactive" ), Contains.<Node>contains() );
+        finishTx( true );
+    }
+    
+    @Test
+    public void relationshipsAreIntersectedWithStartAndEndNodes()
+    {
+        RelationshipIndex index = Neo4jTestCase.relIndex( db, "bitmap-rels", REDIS_CONFIG );
+        DynamicRelationshipType type = DynamicRelationshipType.withName( "KNOWS" );
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        Relationship ab = a.createRelationshipTo( b, type );
+        Relationship cb = c.createRelationshipTo( b, type );
+        index.add( ab, "since", "2011" );
+        index.add( cb, "since", "2011" );
+        finishTx( true );
+        
+        assertThat( index.get( "since", "2011", null, b ), contains( ab, cb ) );
+        assertEquals( ab, index.get( "since", "2011", a, b ).getSingle() );
+        assertThat( index.get( "since", "2011", b, null ), Contains.<Relationship>contains() );
+    }
+    
+    @Test
+    public void hitsAreReadAPageAtATime()
+    {
+        // One byte of bitmap per page
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "8" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "bitmap-pages", config );
+        
+        beginTx();
+        Set<Node> nodes = new HashSet<Node>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            Node node = db.createNode();
+            index.add( node, "type", "user" );
+            nodes.add( node );
+        }
+        restartTx();
+        Node removed = nodes.iterator().next();
+        index.remove( removed, "type", "user" );
+        nodes.remove( removed );
+        Node added = db.createNode();
+        index.add( added, "type", "user" );
+        nodes.add( added );
+        
+        assertEquals( nodes.size(), index.get( "type", "user" ).size() );
+        assertEquals( nodes, new HashSet<Node>( IteratorUtil.asCollection( index.get( "type", "user" ) ) ) );
+        finishTx( true );
+        assertEquals( nodes, new HashSet<Node>( IteratorUtil.asCollection( index.get( "type", "user" ) ) ) );
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestBitmaps
+{
+    @Test
+    public void setBitsAreReadInRedisBitOrder()
+    {
+        // SETBIT 0 and SETBIT 9 gives 0x80 0x40
+        byte[] bitmap = new byte[] { (byte) 0x80, 0x40 };
+        assertArrayEquals( new long[] { 0, 9 }, Bitmaps.setBits( bitmap, 0 ) );
+    }
+
+    @Test
+    public void setBitsAreOffsetByTheFirstBitOfTheSlice()
+    {
+        byte[] bitmap = new byte[] { (byte) 0xFF, 0x00, 0x01 };
+        assertArrayEquals( new long[] { 16, 17, 18, 19, 20, 21, 22, 23, 39 }, Bitmaps.setBits( bitmap, 16 ) );
+    }
+
+    @Test
+    public void andIsCutToTheShortestBitmap()
+    {
+        byte[] result = Bitmaps.and( asList( new byte[] { 0x0F, 0x01 }, new byte[] { 0x03 } ) );
+        assertEquals( 1, result.length );
+        assertEquals( 0x03, result[0] );
+    }
+
+    @Test
+    public void andWithMissingBitmapIsEmpty()
+    {
+        assertNull( Bitmaps.and( asList( new byte[] { 0x0F }, null ) ) );
+    }
+
+    @Test
+    public void idsUpToTheLargestSetbitOffsetAreAccepted()
+    {
+        Bitmaps.checkId( 0 );
+        Bitmaps.checkId( 4294967295L );
+        IndexType.bitmap.checkId( 4294967295L );
+        IndexType.multiple_values.checkId( 4294967296L );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void idsBeyondTheLargestSetbitOffsetAreRejected()
+    {
+        IndexType.bitmap.checkId( 4294967296L );
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.index.redis.CompoundQuery.and;
+import static org.neo4j.index.redis.CompoundQuery.not;
+import static org.neo4j.index.redis.CompoundQuery.or;
+import static org.neo4j.index.redis.CompoundQuery.parse;
+import static org.neo4j.index.redis.CompoundQuery.term;
+
+import org.junit.Test;
+
+public class TestCompoundQuery
+{
+    @Test
+    public void notBindsTighterThanAndWhichBindsTighterThanOr()
+    {
+        CompoundQuery query = parse( "a:1 OR b:2 AND NOT c:3" );
+        assertEquals( or( term( "a", "1" ), and( term( "b", "2" ), not( term( "c", "3" ) ) ) ).toString(),
+                query.toString() );
+        assertEquals( "((a:1 OR b:2) AND NOT c:3)", parse( "(a:1 OR b:2) AND NOT c:3" ).toString() );
+        assertEquals( 3, query.terms().size() );
+        assertEquals( "c", query.terms().get( 2 ).getKey() );
+    }
+
+    @Test
+    public void quotedValuesAndEscapesRoundTrip()
+    {
+        CompoundQuery query = parse( "city:\"New York\" AND name:O\\(Brien\\) AND \"a:b\":c" );
+        assertEquals( "New York", query.terms().get( 0 ).getValue() );
+        assertEquals( "O(Brien)", query.terms().get( 1 ).getValue() );
+        assertEquals( "a:b", query.terms().get( 2 ).getKey() );
+        assertEquals( query.toString(), parse( query.toString() ).toString() );
+    }
+
+    @Test
+    public void termsAreEvaluatedInOrder()
+    {
+        CompoundQuery query = parse( "a:1 AND (b:2 OR c:3) AND NOT d:4" );
+        assertTrue( query.matches( new boolean[] { true, false, true, false } ) );
+        assertFalse( query.matches( new boolean[] { true, false, false, false } ) );
+        assertFalse( query.matches( new boolean[] { true, true, true, true } ) );
+        assertFalse( query.matches( new boolean[] { false, true, true, false } ) );
+    }
+
+    @Test
+    public void notsNeedSomethingToBeSubtractedFrom()
+    {
+        for ( String invalid : new String[] { "NOT a:1", "a:1 OR NOT b:2", "NOT a:1 AND NOT b:2",
+                "a:1 b:2", "a:1 AND", "(a:1", "a", "a:\"1" } )
+        {
+            try
+            {
+                parse( invalid );
+                fail( invalid );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // Good
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class TestCompressedPostings
+{
+    @Test
+    public void replayAppliesAddsAndRemovesInOrder()
+    {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        Bytes.write( chunk, CompressedPostings.add( 3 ) );
+        Bytes.write( chunk, CompressedPostings.add( 70000 ) );
+        Bytes.write( chunk, CompressedPostings.remove( 3 ) );
+        Bytes.write( chunk, CompressedPostings.add( 65535 ) );
+        long[] words = CompressedPostings.replay( chunk.toByteArray() );
+        
+        // 70000 is in the next chunk, only its low bits are stored
+        assertEquals( 2, CompressedPostings.cardinality( words ) );
+        assertTrue( isSet( words, 70000 - CompressedPostings.CHUNK_SIZE ) );
+        assertTrue( isSet( words, 65535 ) );
+        assertFalse( isSet( words, 3 ) );
+    }
+    
+    @Test
+    public void sparseChunksAreEncodedAsArrays()
+    {
+        long[] words = words( 1, 5, 300, 65000 );
+        byte[] encoded = CompressedPostings.encode( words );
+        assertEquals( CompressedPostings.ARRAY, encoded[0] );
+        assertTrue( encoded.length < 12 );
+        assertArrayEquals( words, CompressedPostings.replay( encoded ) );
+    }
+    
+    @Test
+    public void denseChunksAreEncodedAsBitmaps()
+    {
+        long[] words = new long[CompressedPostings.CHUNK_SIZE / 64];
+        for ( int i = 0; i < 20000; i += 2 )
+        {
+            words[i >>> 6] |= 1L << i;
+        }
+        byte[] encoded = CompressedPostings.encode( words );
+        assertEquals( CompressedPostings.BITMAP, encoded[0] );
+        assertArrayEquals( words, CompressedPostings.replay( encoded ) );
+    }
+    
+    @Test
+    public void chunksWithManyOperationsAreCompacted()
+    {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        for ( int i = 0; i < 100; i++ )
+        {
+            Bytes.write( chunk, CompressedPostings.add( i ) );
+            Bytes.write( chunk, CompressedPostings.remove( i ) );
+        }
+        byte[] data = chunk.toByteArray();
+        assertTrue( CompressedPostings.shouldCompact( data.length, CompressedPostings.replay( data ) ) );
+        assertFalse( CompressedPostings.shouldCompact( 6, words( 1, 2 ) ) );
+    }
+    
+    private static long[] words( int... lowBits )
+    {
+        long[] words = new long[CompressedPostings.CHUNK_SIZE / 64];
+        for ( int low : lowBits )
+        {
+            words[low >>> 6] |= 1L << low;
+        }
+        return words;
+    }
+    
+    private static boolean isSet( long[] words, int low )
+    {
+        return (words[low >>> 6] & (1L << low)) != 0;
+    }
+    
+    private static void assertArrayEquals( long[] expected, long[] actual )
+    {
+        assertEquals( expected.length, actual.length );
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( "word " + i, expected[i], actual[i] );
+        }
+    }
+}
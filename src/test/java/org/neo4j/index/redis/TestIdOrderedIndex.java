@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertThat;
+import static org.neo4j.index.redis.Contains.contains;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.RelationshipIndex;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+public class TestIdOrderedIndex
+{
+    private static final String PATH = "target/var/id-ordered";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.ID_ORDERED;
+    private GraphDatabaseService db;
+    private Transaction tx;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        db.shutdown();
+    }
+    
+    private void beginTx()
+    {
+        tx = db.beginTx();
+    }
+    
+    private void finishTx( boolean success )
+    {
+        if ( success )
+        {
+            tx.success();
+        }
+        tx.finish();
+    }
+    
+    private void restartTx()
+    {
+        finishTx( true );
+        beginTx();
+    }
+    
+    @Test
+    public void addRemoveAndGet()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "id-ordered-nodes", REDIS_CONFIG );
+        String key = "status";
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, "active" );
+        index.add( b, key, "active" );
+        index.add( c, key, "inactive" );
+        restartTx();
+        assertThat( index.get( key, "active" ), contains( a, b ) );
+        assertThat( index.get( key, "inactive" ), contains( c ) );
+        
+        index.remove( a, key, "active" );
+        index.remove( c );
+        assertThat( index.get( key, "active" ), contains( b ) );
+        restartTx();
+        assertThat( index.get( key, "active" ), contains( b ) );
+        assertThat( index.get( key, "inactive" ), Contains.<Node>contains() );
+        finishTx( true );
+    }
+    
+    @Test
+    public void relationshipsAreIntersectedWithStartAndEndNodes()
+    {
+        RelationshipIndex index = Neo4jTestCase.relIndex( db, "id-ordered-rels", REDIS_CONFIG );
+        DynamicRelationshipType type = DynamicRelationshipType.withName( "KNOWS" );
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        Relationship ab = a.createRelationshipTo( b, type );
+        Relationship cb = c.createRelationshipTo( b, type );
+        index.add( ab, "since", "2011" );
+        index.add( cb, "since", "2011" );
+        finishTx( true );
+        
+        assertThat( index.get( "since", "2011", null, b ), contains( ab, cb ) );
+        assertEquals( ab, index.get( "since", "2011", a, b ).getSingle() );
+        assertThat( index.get( "since", "2011", b, null ), Contains.<Relationship>contains() );
+    }
+    
+    @Test
+    public void intersectionsAreReadAPageAtATime()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "4" );
+        RelationshipIndex index = Neo4jTestCase.relIndex( db, "id-ordered-pages", config );
+        DynamicRelationshipType type = DynamicRelationshipType.withName( "KNOWS" );
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Set<Relationship> expected = new HashSet<Relationship>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            Relationship relationship = a.createRelationshipTo( b, type );
+            index.add( relationship, "weight", i % 3 == 0 ? "heavy" : "light" );
+            if ( i % 3 == 0 )
+            {
+                expected.add( relationship );
+            }
+            // Unrelated relationships with the same value which the
+            // intersection has to skip past
+            index.add( b.createRelationshipTo( a, type ), "weight", "heavy" );
+        }
+        finishTx( true );
+        
+        assertEquals( expected, new HashSet<Relationship>( IteratorUtil.asCollection(
+                index.get( "weight", "heavy", a, null ) ) ) );
+        assertEquals( expected, new HashSet<Relationship>( IteratorUtil.asCollection(
+                index.get( "weight", "heavy", a, b ) ) ) );
+    }
+    
+    @Test
+    public void sizeIsCountedWithTheTransactionState()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "id-ordered-count", REDIS_CONFIG );
+        String key = "status";
+        
+        beginTx();
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node node = db.createNode();
+            index.add( node, key, "active" );
+            nodes.add( node );
+        }
+        restartTx();
+        assertEquals( 10, index.get( key, "active" ).size() );
+        
+        // Removed, added and added again though already there
+        index.remove( nodes.get( 0 ), key, "active" );
+        index.remove( nodes.get( 1 ), key, "active" );
+        index.add( db.createNode(), key, "active" );
+        index.add( nodes.get( 2 ), key, "active" );
+        assertEquals( 9, index.get( key, "active" ).size() );
+        assertEquals( 0, index.get( key, "inactive" ).size() );
+        finishTx( true );
+        assertEquals( 9, index.get( key, "active" ).size() );
+    }
+    
+    @Test
+    public void pagesResumeAfterTheirLastIdAcrossWrites()
+    {
+        RedisIndex<Node> index = (RedisIndex<Node>) Neo4jTestCase.nodeIndex( db, "id-ordered-keyset",
+                REDIS_CONFIG );
+        String key = "status";
+        
+        beginTx();
+        List<Long> ids = new ArrayList<Long>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            Node node = db.createNode();
+            index.add( node, key, "active" );
+            ids.add( node.getId() );
+        }
+        finishTx( true );
+        
+        KeysetPage first = index.page( key, "active", KeysetPage.START, 4 );
+        assertEquals( ids.subList( 0, 4 ), asList( first.getIds() ) );
+        assertTrue( first.hasMore() );
+        assertEquals( ids.get( 3 ).longValue(), first.getResumeToken() );
+        
+        // Writes in between pages neither shift nor repeat what comes after
+        beginTx();
+        index.remove( db.getNodeById( ids.get( 1 ) ), key, "active" );
+        index.remove( db.getNodeById( ids.get( 5 ) ), key, "active" );
+        Node added = db.createNode();
+        index.add( added, key, "active" );
+        finishTx( true );
+        ids.remove( 5 );
+        ids.add( added.getId() );
+        
+        KeysetPage second = index.page( key, "active", first.getResumeToken(), 4 );
+        assertEquals( ids.subList( 4, 8 ), asList( second.getIds() ) );
+        assertTrue( second.hasMore() );
+        KeysetPage third = index.page( key, "active", second.getResumeToken(), 4 );
+        assertEquals( ids.subList( 8, 10 ), asList( third.getIds() ) );
+        assertFalse( third.hasMore() );
+        assertEquals( 0, index.page( key, "inactive", KeysetPage.START, 4 ).getIds().length );
+        
+        // Includes the changes of the current transaction
+        beginTx();
+        index.remove( db.getNodeById( ids.get( 8 ) ), key, "active" );
+        Node uncommitted = db.createNode();
+        index.add( uncommitted, key, "active" );
+        KeysetPage last = index.page( key, "active", second.getResumeToken(), 4 );
+        assertEquals( asList( ids.get( 9 ), uncommitted.getId() ), asList( last.getIds() ) );
+        assertFalse( last.hasMore() );
+        finishTx( false );
+    }
+    
+    private static List<Long> asList( long... ids )
+    {
+        List<Long> list = new ArrayList<Long>();
+        for ( long id : ids )
+        {
+            list.add( id );
+        }
+        return list;
+    }
+}
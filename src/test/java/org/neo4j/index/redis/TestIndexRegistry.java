@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.index.redis.IndexRegistry.RegisteredIndex;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+public class TestIndexRegistry
+{
+    private static final String PATH = "target/var/registry";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.MULTIPLE_VALUES;
+    private GraphDatabaseService db;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        db.shutdown();
+    }
+    
+    private static RedisDataSource dataSource( Index<Node> index )
+    {
+        return ((RedisIndex<Node>) index).getProvider().dataSource();
+    }
+    
+    @Test
+    public void registeredIndexesAreKeptUntilTheStoredConfigChanges()
+    {
+        String name = "registry-cached";
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, name, REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        IndexIdentifier identifier = new IndexIdentifier( Node.class, name );
+        RegisteredIndex registered = dataSource.getRegistry().get( identifier );
+        assertSame( registered, dataSource.getRegistry().get( identifier ) );
+        assertSame( registered, dataSource.getRegistry().get( identifier, registered.getConfig() ) );
+        
+        // Changed behind the back of the registry
+        Map<String, String> config = new HashMap<String, String>( registered.getConfig() );
+        config.put( RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "3" );
+        dataSource.getIndexStore().set( Node.class, name, config );
+        RegisteredIndex reconfigured = dataSource.getRegistry().get( identifier );
+        assertNotSame( registered, reconfigured );
+        assertEquals( 3, reconfigured.getPageSize() );
+        assertSame( reconfigured, dataSource.getRegistry().get( identifier ) );
+    }
+    
+    @Test
+    public void creatingAndDeletingAnIndexInvalidatesIt()
+    {
+        String name = "registry-lifecycle";
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, name, REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        IndexIdentifier identifier = new IndexIdentifier( Node.class, name );
+        RegisteredIndex beforeDelete = dataSource.getRegistry().get( identifier );
+        
+        Transaction tx = db.beginTx();
+        index.delete();
+        tx.success();
+        tx.finish();
+        
+        // Registered with the same config before it's created again
+        RegisteredIndex beforeCreate = dataSource.getRegistry().get( identifier,
+                beforeDelete.getConfig() );
+        assertNotSame( beforeDelete, beforeCreate );
+        db.index().forNodes( name, REDIS_CONFIG );
+        assertNotSame( beforeCreate, dataSource.getRegistry().get( identifier ) );
+    }
+    
+    @Test
+    public void changingTheConfigThroughAnotherHandleReplacesIt()
+    {
+        String name = "registry-reconfigured";
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, name, REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        IndexIdentifier identifier = new IndexIdentifier( Node.class, name );
+        RegisteredIndex registered = dataSource.getRegistry().get( identifier );
+        
+        Transaction tx = db.beginTx();
+        db.index().setConfiguration( index, RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "3" );
+        tx.success();
+        tx.finish();
+        db.index().forNodes( name );
+        RegisteredIndex reconfigured = dataSource.getRegistry().get( identifier );
+        assertNotSame( registered, reconfigured );
+        assertEquals( 3, reconfigured.getPageSize() );
+    }
+    
+    @Test
+    public void settingAndRemovingConfigIsSeenByExistingHandles()
+    {
+        String name = "registry-set-config";
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, name, REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        IndexIdentifier identifier = new IndexIdentifier( Node.class, name );
+        
+        // Without looking the index up again
+        Transaction tx = db.beginTx();
+        db.index().setConfiguration( index, RedisIndexImplementation.CONFIG_KEY_DEFERRED_READS, "true" );
+        assertTrue( dataSource.getRegistry().get( identifier ).defersReads() );
+        db.index().removeConfiguration( index, RedisIndexImplementation.CONFIG_KEY_DEFERRED_READS );
+        assertFalse( dataSource.getRegistry().get( identifier ).defersReads() );
+        tx.success();
+        tx.finish();
+    }
+    
+    @Test
+    public void conflictingConfigIsRejected()
+    {
+        String name = "registry-conflict";
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, name, REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        IndexIdentifier identifier = new IndexIdentifier( Node.class, name );
+        RegisteredIndex registered = dataSource.getRegistry().get( identifier );
+        try
+        {
+            db.index().forNodes( name, RedisIndexImplementation.BITMAP );
+            fail( "Shouldn't be able to get a multiple_values index as a bitmap index" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // Good
+        }
+        assertSame( registered, dataSource.getRegistry().get( identifier ) );
+        assertEquals( IndexType.multiple_values, dataSource.getRegistry().get( identifier ).getType() );
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.index.redis.IntersectionPlanner.plan;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.index.redis.IntersectionPlanner.Plan;
+
+public class TestIntersectionPlanner
+{
+    @Test
+    public void probesATinySetAgainstMuchLargerOnes()
+    {
+        assertEquals( Plan.probe, plan( new long[] { 100000, 3 } ) );
+        assertEquals( Plan.probe, plan( new long[] { 3, 1000, 100000 } ) );
+        assertEquals( Plan.probe, plan( new long[] { 0, 0 } ) );
+        assertEquals( Plan.probe, plan( new long[] { 0, 100000 } ) );
+    }
+
+    @Test
+    public void intersectsBigSetsOfSimilarSizeInRedis()
+    {
+        assertEquals( Plan.sinter, plan( new long[] { 100000, 150000 } ) );
+        assertEquals( Plan.sinter, plan( new long[] { 200000, 100000, 60000 } ) );
+    }
+
+    @Test
+    public void letsRedisIntersectTheRest()
+    {
+        assertEquals( Plan.sinter, plan( new long[] { 10, 20 } ) );
+        assertEquals( Plan.sinter, plan( new long[] { 1000, 100000 } ) );
+        assertEquals( Plan.sinter, plan( new long[] { 60000, 1000000 } ) );
+    }
+
+    @Test
+    public void sizesAreCachedForAWhile()
+    {
+        IntersectionPlanner planner = new IntersectionPlanner();
+        byte[][] postings = new byte[][] { { 1 }, { 2 } };
+        assertNull( planner.cachedSizes( postings, 0 ) );
+        planner.cacheSizes( postings, new long[] { 3, 100000 }, 0 );
+        assertArrayEquals( new long[] { 3, 100000 },
+                planner.cachedSizes( new byte[][] { { 1 }, { 2 } }, IntersectionPlanner.CARDINALITY_TTL ) );
+        assertArrayEquals( new long[] { 100000 }, planner.cachedSizes( new byte[][] { { 2 } }, 0 ) );
+        assertNull( planner.cachedSizes( postings, IntersectionPlanner.CARDINALITY_TTL + 1 ) );
+        assertNull( planner.cachedSizes( new byte[][] { { 1 }, { 3 } }, 0 ) );
+    }
+
+    @Test
+    public void sortedPostingsAreStreamed()
+    {
+        IntersectionPlanner planner = new IntersectionPlanner();
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "index" ), stringMap() );
+        planner.pages( IndexType.id_ordered, keys, new byte[][] { { 1 } }, 10 );
+        assertEquals( 0, planner.getPlanned( Plan.streamed ) );
+        planner.pages( IndexType.id_ordered, keys, new byte[][] { { 1 }, { 2 } }, 10 );
+        assertEquals( 1, planner.getPlanned( Plan.streamed ) );
+        planner.pages( IndexType.multiple_values, keys, new byte[][] { { 1 }, { 2 } }, 10 );
+        assertEquals( 1, planner.getPlanned( Plan.streamed ) );
+    }
+}
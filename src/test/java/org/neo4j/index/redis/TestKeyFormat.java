@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.index.redis.Bytes.decode;
+import static org.neo4j.index.redis.RedisIndexImplementation.CONFIG_KEY_BUCKETS;
+import static org.neo4j.index.redis.RedisIndexImplementation.CONFIG_KEY_INDEX_ID;
+import static org.neo4j.index.redis.RedisIndexImplementation.CONFIG_KEY_KEY_FORMAT;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.index.base.IndexIdentifier;
+
+public class TestKeyFormat
+{
+    @Test
+    public void textFormatKeepsTheReadableLayout()
+    {
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "users" ),
+                stringMap( CONFIG_KEY_KEY_FORMAT, KeyFormat.text.name() ) );
+        assertEquals( "n:users:name:Mattias", decode( keys.keyValue( "name", "Mattias" ) ) );
+        assertEquals( "n:users:name|12", decode( keys.entityAndKeyRemoval( "name", 12 ) ) );
+        assertEquals( "n:users|12", decode( keys.entityRemoval( 12 ) ) );
+        assertEquals( "n:users[:|]*", decode( keys.indexPattern() ) );
+        assertEquals( "12", decode( keys.id( 12 ) ) );
+        assertEquals( 12, keys.id( keys.id( 12 ) ) );
+    }
+
+    @Test
+    public void partsNeverCollideWithValues()
+    {
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "users" ), stringMap() );
+        byte[] chunk = keys.part( keys.keyValue( "name", "a" ), 3 );
+        assertEquals( "n:users|part|3|:name:a", decode( chunk ) );
+        assertFalse( Arrays.equals( chunk, keys.keyValue( "name", "a|3" ) ) );
+        assertFalse( Arrays.equals( keys.part( keys.keyValue( "name", "a|3" ), 1 ),
+                keys.part( keys.keyValue( "name", "a" ), 31 ) ) );
+        
+        keys = binaryKeys( "users", 3 );
+        assertFalse( Arrays.equals( keys.part( keys.keyValue( "name", "a" ), 3 ),
+                keys.keyValue( "name", "a" + (char) 3 ) ) );
+    }
+
+    @Test
+    public void indexesWithoutKeyFormatUseTheTextFormat()
+    {
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Relationship.class, "rels" ), stringMap() );
+        assertEquals( KeyFormat.text, keys.getFormat() );
+        assertEquals( "r:rels:start|3", decode( keys.startNode( 3 ) ) );
+    }
+
+    @Test
+    public void binaryIdsRoundTrip()
+    {
+        for ( KeyFormat format : new KeyFormat[] { KeyFormat.binary, KeyFormat.binary_fixed } )
+        {
+            for ( long id : new long[] { 0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE } )
+            {
+                assertEquals( id, format.id( format.id( id ) ) );
+            }
+        }
+        assertEquals( 1, KeyFormat.binary.id( 100 ).length );
+        assertEquals( 8, KeyFormat.binary_fixed.id( 100 ).length );
+    }
+
+    @Test
+    public void binaryKeysAreShortAndUnambiguous()
+    {
+        RedisKeys keys = binaryKeys( "a-rather-long-index-name", 7 );
+        byte[] keyValue = keys.keyValue( "name", "Mattias" );
+        assertEquals( KeyFormat.BINARY_TAG, keyValue[0] );
+        assertTrue( keyValue.length < "n:a-rather-long-index-name:name:Mattias".length() );
+
+        // Length prefixes makes the key/value boundary unambiguous
+        assertFalse( Arrays.equals( keys.keyValue( "ab", "c" ), keys.keyValue( "a", "bc" ) ) );
+        assertFalse( Arrays.equals( keys.startNode( 1 ), keys.endNode( 1 ) ) );
+    }
+
+    @Test
+    public void binaryPatternOnlyMatchesItsOwnIndex()
+    {
+        // 42 is '*' in ASCII and must be escaped in the KEYS pattern
+        RedisKeys keys = binaryKeys( "index", 42 );
+        assertArrayEquals( new byte[] { KeyFormat.BINARY_TAG, '\\', 42, '*' }, keys.indexPattern() );
+    }
+
+    @Test
+    public void bucketsAreStableAndWithinTheIndex()
+    {
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "users" ),
+                stringMap( CONFIG_KEY_BUCKETS, "16" ) );
+        assertTrue( keys.isBucketed() );
+        byte[] field = RedisKeys.field( "name", "Mattias" );
+        assertArrayEquals( keys.bucket( field ), keys.bucket( RedisKeys.field( "name", "Mattias" ) ) );
+        assertTrue( decode( keys.bucket( field ) ).matches( "n:users\\|b\\|([0-9]|1[0-5])" ) );
+        assertFalse( Arrays.equals( RedisKeys.field( "ab", "c" ), RedisKeys.field( "a", "bc" ) ) );
+        assertFalse( new RedisKeys( new IndexIdentifier( Node.class, "users" ), stringMap() ).isBucketed() );
+    }
+
+    @Test
+    public void dictionaryIsStoredUnderTheIndexPrefix()
+    {
+        assertEquals( "n:users|dict", decode( KeyFormat.text.dictionary( KeyFormat.text.prefix(
+                new IndexIdentifier( Node.class, "users" ), stringMap() ) ) ) );
+        RedisKeys keys = binaryKeys( "index", 3 );
+        byte[] dictionary = keys.getFormat().dictionary( keys.getPrefix() );
+        assertArrayEquals( new byte[] { KeyFormat.BINARY_TAG, 3, KeyFormat.KIND_DICTIONARY }, dictionary );
+    }
+
+    private RedisKeys binaryKeys( String name, long indexId )
+    {
+        return new RedisKeys( new IndexIdentifier( Node.class, name ), stringMap(
+                CONFIG_KEY_KEY_FORMAT, KeyFormat.binary.name(), CONFIG_KEY_INDEX_ID, "" + indexId ) );
+    }
+}
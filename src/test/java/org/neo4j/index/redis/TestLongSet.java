@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLongSet
+{
+    @Test
+    public void addAndContains()
+    {
+        LongSet set = new LongSet();
+        assertTrue( set.isEmpty() );
+        assertTrue( set.add( 0 ) );
+        assertTrue( set.add( 42 ) );
+        assertFalse( set.add( 42 ) );
+        assertEquals( 2, set.size() );
+        assertTrue( set.contains( 0 ) );
+        assertTrue( set.contains( 42 ) );
+        assertFalse( set.contains( 1 ) );
+        assertFalse( set.contains( -1 ) );
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity()
+    {
+        LongSet set = new LongSet( 2 );
+        for ( long id = 0; id < 10000; id += 3 )
+        {
+            set.add( id );
+        }
+        assertEquals( 3334, set.size() );
+        for ( long id = 0; id < 10000; id++ )
+        {
+            assertEquals( id % 3 == 0, set.contains( id ) );
+        }
+    }
+
+    @Test
+    public void canBeCreatedFromBoxedIds()
+    {
+        LongSet set = LongSet.of( asList( 5L, 7L, 5L ) );
+        assertEquals( 2, set.size() );
+        assertTrue( set.contains( 7 ) );
+    }
+}
@@ -24,6 +24,7 @@ import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -31,8 +32,12 @@ import static org.junit.Assert.fail;
 import static org.neo4j.index.redis.Contains.contains;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -52,8 +57,11 @@ import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.graphdb.index.RelationshipIndex;
 import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.base.IndexIdentifier;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 
+import redis.clients.jedis.Jedis;
+
 public class TestMultiValueIndex
 {
     private static GraphDatabaseService graphDb;
@@ -609,6 +617,108 @@ public class TestMultiValueIndex
         assertNull( graphDb.index().getConfiguration( index ).get( key ) );
     }
 
+    @Test
+    public void indexIdsAreOnlyAllocatedForNewIndexes()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_KEY_FORMAT, KeyFormat.binary.name() );
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "index-id-1", config );
+        String indexId = graphDb.index().getConfiguration( index ).get(
+                RedisIndexImplementation.CONFIG_KEY_INDEX_ID );
+        assertNotNull( indexId );
+        for ( int i = 0; i < 3; i++ )
+        {
+            Index<Node> again = graphDb.index().forNodes( "index-id-1", new HashMap<String, String>( config ) );
+            assertEquals( indexId, graphDb.index().getConfiguration( again ).get(
+                    RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) );
+        }
+        
+        // Looking it up never changes the id it was stored with
+        RedisDataSource dataSource = ((RedisIndex<Node>) index).getProvider().dataSource();
+        assertEquals( indexId, dataSource.getIndexStore().get( Node.class, "index-id-1" ).get(
+                RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) );
+        assertEquals( indexId, dataSource.getRegistry().get( new IndexIdentifier( Node.class, "index-id-1" ),
+                config ).getConfig().get( RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) );
+        
+        Index<Node> other = graphDb.index().forNodes( "index-id-2", config );
+        String otherId = graphDb.index().getConfiguration( other ).get(
+                RedisIndexImplementation.CONFIG_KEY_INDEX_ID );
+        assertNotNull( otherId );
+        assertFalse( indexId.equals( otherId ) );
+        assertEquals( otherId, dataSource.getIndexStore().get( Node.class, "index-id-2" ).get(
+                RedisIndexImplementation.CONFIG_KEY_INDEX_ID ) );
+    }
+
+    @Test
+    public void chunksDontOverwriteValuesLookingLikeThem() throws Exception
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "chunk-values", RedisIndexImplementation.COMPRESSED );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        index.add( node1, "name", "a" );
+        // Chunk 0 of "a" used to have the same key as the posting of this value
+        index.add( node2, "name", "a|" + CompressedPostings.chunk( node1.getId() ) );
+        restartTx();
+        assertThat( index.get( "name", "a" ), contains( node1 ) );
+        assertThat( index.get( "name", "a|" + CompressedPostings.chunk( node1.getId() ) ), contains( node2 ) );
+        finishTx( true );
+    }
+
+    @Test
+    public void emptyRangesAreRemovedFromTheDirectory() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE, "2" );
+        RedisIndex<Node> index = (RedisIndex<Node>) Neo4jTestCase.nodeIndex( graphDb, "range-directory", config );
+        beginTx();
+        Node first = graphDb.createNode();
+        index.add( first, "value", "a|1" );
+        Set<Node> remaining = new HashSet<Node>();
+        for ( int i = 0; i < 6; i++ )
+        {
+            Node node = graphDb.createNode();
+            index.add( node, "value", "a" );
+            remaining.add( node );
+        }
+        restartTx();
+        
+        // Empties the range of the first node, which is also part key 1 of value "a"
+        long emptied = first.getId() / 2;
+        for ( Node node : new ArrayList<Node>( remaining ) )
+        {
+            if ( node.getId() / 2 == emptied )
+            {
+                index.remove( node, "value", "a" );
+                remaining.remove( node );
+            }
+        }
+        restartTx();
+        assertEquals( remaining, new HashSet<Node>( IteratorUtil.asCollection( index.get( "value", "a" ) ) ) );
+        assertThat( index.get( "value", "a|1" ), contains( first ) );
+        assertEquals( remaining.size(), index.count( "value", "a" ) );
+        finishTx( true );
+        
+        RedisDataSource dataSource = index.getProvider().dataSource();
+        RedisKeys keys = dataSource.getRegistry().get( new IndexIdentifier( Node.class, "range-directory" ) ).getKeys();
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            if ( RedisDataSource.getTargetDatabase() != RedisDataSource.DEFAULT_DATABASE )
+            {
+                resource.select( RedisDataSource.getTargetDatabase() );
+            }
+            for ( byte[] range : resource.smembers( keys.keyValue( "value", "a" ) ) )
+            {
+                assertTrue( keys.id( range ) != emptied );
+            }
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+
     @Test
     public void testSomeStuff() throws Exception
     {
@@ -687,6 +797,121 @@ public class TestMultiValueIndex
         assertEquals(hits.getSingle().getId(), relationship1.getId());
     }
 
+    @Test
+    public void lookupsByStartNodeSeeWhatWasJustAddedForIt() throws Exception
+    {
+        RelationshipIndex rels = relationshipIndex( "planned-sizes" );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        rels.add( node1.createRelationshipTo( node2, TEST_TYPE ), "name", "Mattias" );
+        commitTx();
+        
+        // Has the planner cache the start node's relationships as none
+        assertThat( rels.get( "name", "Mattias", node2, null ), Contains.<Relationship>contains() );
+        beginTx();
+        Relationship relationship = node2.createRelationshipTo( node1, TEST_TYPE );
+        rels.add( relationship, "name", "Mattias" );
+        commitTx();
+        assertThat( rels.get( "name", "Mattias", node2, null ), contains( relationship ) );
+    }
+
+    @Test
+    public void getManyMergesCommittedAndTransactionState() throws Exception
+    {
+        RedisIndex<Node> index = (RedisIndex<Node>) nodeIndex( "get-many" );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Node node3 = graphDb.createNode();
+        index.add( node1, "name", "Mattias" );
+        index.add( node2, "name", "Mattias" );
+        index.add( node2, "name", "Tobias" );
+        restartTx();
+        
+        index.remove( node1, "name", "Mattias" );
+        index.add( node3, "name", "Tobias" );
+        Map<Object, IndexHits<Node>> hits = index.getMany( "name",
+                Arrays.asList( "Mattias", "Tobias", "Johan" ) );
+        assertEquals( Arrays.asList( "Mattias", "Tobias", "Johan" ),
+                new ArrayList<Object>( hits.keySet() ) );
+        assertThat( hits.get( "Mattias" ), contains( node2 ) );
+        assertThat( hits.get( "Tobias" ), contains( node2, node3 ) );
+        assertThat( hits.get( "Johan" ), Contains.<Node>contains() );
+    }
+
+    private void countsIncludeTransactionState( RedisIndex<Node> index )
+    {
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Node node3 = graphDb.createNode();
+        index.add( node1, "name", "Mattias" );
+        index.add( node2, "name", "Mattias" );
+        restartTx();
+        
+        assertEquals( 2, index.count( "name", "Mattias" ) );
+        index.remove( node1, "name", "Mattias" );
+        index.add( node2, "name", "Mattias" );
+        index.add( node3, "name", "Mattias" );
+        assertEquals( 2, index.count( "name", "Mattias" ) );
+        assertEquals( 2, index.get( "name", "Mattias" ).size() );
+        assertEquals( 0, index.count( "name", "Johan" ) );
+        restartTx();
+        assertEquals( 2, index.count( "name", "Mattias" ) );
+    }
+    
+    @Test
+    public void countsIncludeTransactionState() throws Exception
+    {
+        countsIncludeTransactionState( (RedisIndex<Node>) nodeIndex( "count" ) );
+    }
+    
+    @Test
+    public void countsIncludeTransactionStateWithRangeSplitPostings() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE, "2" );
+        countsIncludeTransactionState( (RedisIndex<Node>) Neo4jTestCase.nodeIndex( graphDb, "count-ranges", config ) );
+    }
+    
+    @Test
+    public void relationshipsCanBeCountedByStartNode() throws Exception
+    {
+        RedisIndex.RelationshipIndex index = (RedisIndex.RelationshipIndex) relationshipIndex( "degree" );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Relationship rel1 = node1.createRelationshipTo( node2, TEST_TYPE );
+        Relationship rel2 = node1.createRelationshipTo( node2, TEST_TYPE );
+        index.add( rel1, "type", "knows" );
+        index.add( rel2, "type", "knows" );
+        restartTx();
+        
+        assertEquals( 2, index.count( null, null, node1, null ) );
+        assertEquals( 0, index.count( null, null, node2, null ) );
+        assertEquals( 2, index.count( "type", "knows", node1, node2 ) );
+    }
+    
+    @Test
+    public void staleHitsAreSkippedButTheirIdsAreStillHandedOut() throws Exception
+    {
+        Index<Node> index = nodeIndex( "stale" );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        index.add( node1, "name", "Mattias" );
+        index.add( node2, "name", "Mattias" );
+        restartTx();
+        
+        node1.delete();
+        restartTx();
+        
+        assertThat( index.get( "name", "Mattias" ), contains( node2 ) );
+        assertThat( ((RedisIndex<Node>) index).getIds( "name", "Mattias" ),
+                contains( node1.getId(), node2.getId() ) );
+    }
+
     @SuppressWarnings( "unchecked" )
     private <T extends PropertyContainer> void testRemoveWithoutKey(
             EntityCreator<T> creator, Index<T> index ) throws Exception
@@ -775,6 +1000,348 @@ public class TestMultiValueIndex
         testRemoveWithoutKeyValue( RELATIONSHIP_CREATOR, relationshipIndex( "remove-wo-kv" ) );
     }
     
+    private static final Map<String, String> HASH_REVERSE_LAYOUT = MapUtil.stringMap(
+            new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+            RedisIndexImplementation.CONFIG_KEY_REVERSE_LAYOUT, ReverseLayout.hash.name() );
+    
+    @Test
+    public void testRemoveWithoutKeyHashReverseLayout() throws Exception
+    {
+        testRemoveWithoutKey( NODE_CREATOR,
+                Neo4jTestCase.nodeIndex( graphDb, "remove-wo-k-hash", HASH_REVERSE_LAYOUT ) );
+    }
+    
+    @Test
+    public void testRemoveWithoutKeyValueHashReverseLayout() throws Exception
+    {
+        testRemoveWithoutKeyValue( RELATIONSHIP_CREATOR,
+                Neo4jTestCase.relIndex( graphDb, "remove-wo-kv-hash", HASH_REVERSE_LAYOUT ) );
+    }
+    
+    @Test
+    public void makeSureAdditionsCanBeReadWithKeyDictionary()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_KEY_DICTIONARY, "true" );
+        makeSureAdditionsCanBeRead( Neo4jTestCase.nodeIndex( graphDb, "additions-dict", config ),
+                NODE_CREATOR );
+    }
+    
+    @Test
+    public void testRemoveWithoutKeyWithKeyDictionary() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_KEY_DICTIONARY, "true" );
+        testRemoveWithoutKey( RELATIONSHIP_CREATOR,
+                Neo4jTestCase.relIndex( graphDb, "remove-wo-k-dict", config ) );
+    }
+    
+    @Test
+    public void makeSureAdditionsCanBeReadWithValueDigests()
+    {
+        // "Mattias" is longer than 4 bytes and is stored as a digest
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_VALUE_DIGEST_THRESHOLD, "4" );
+        makeSureAdditionsCanBeRead( Neo4jTestCase.nodeIndex( graphDb, "additions-digest", config ),
+                NODE_CREATOR );
+    }
+    
+    @Test
+    public void testRemoveWithoutKeyValueWithValueDigests() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_VALUE_DIGEST_THRESHOLD, "4" );
+        testRemoveWithoutKeyValue( NODE_CREATOR,
+                Neo4jTestCase.nodeIndex( graphDb, "remove-wo-kv-digest", config ) );
+    }
+    
+    private static Jedis select( Jedis resource )
+    {
+        if ( RedisDataSource.getTargetDatabase() != RedisDataSource.DEFAULT_DATABASE )
+        {
+            resource.select( RedisDataSource.getTargetDatabase() );
+        }
+        return resource;
+    }
+    
+    @Test
+    public void keyCodesLeftByARolledBackPrepareAreHarmless() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_KEY_DICTIONARY, "true" );
+        RedisIndex<Node> index = (RedisIndex<Node>) Neo4jTestCase.nodeIndex( graphDb, "leftover-codes", config );
+        RedisDataSource dataSource = index.getProvider().dataSource();
+        RedisKeys keys = dataSource.getKeys( new IndexIdentifier( Node.class, "leftover-codes" ) );
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            // Allocated as a prepare does, with nothing stored under it
+            String code = keys.storedKey( resource, "name" );
+            assertThat( index.get( "name", "Mattias" ), Contains.<Node>contains() );
+            
+            beginTx();
+            Node node = graphDb.createNode();
+            index.add( node, "name", "Mattias" );
+            commitTx();
+            assertEquals( code, keys.lookupStoredKey( resource, "name" ) );
+            assertThat( index.get( "name", "Mattias" ), contains( node ) );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    @Test
+    public void digestsAreRemovedWithTheirLastEntry() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_VALUE_DIGEST_THRESHOLD, "4" );
+        RedisIndex<Node> index = (RedisIndex<Node>) Neo4jTestCase.nodeIndex( graphDb, "pruned-digests", config );
+        RedisDataSource dataSource = index.getProvider().dataSource();
+        RedisKeys keys = dataSource.getKeys( new IndexIdentifier( Node.class, "pruned-digests" ) );
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            // Registered as a prepare does, with nothing stored under it
+            String digest = keys.storedValue( resource, "Mattias" );
+            assertTrue( keys.isDigest( digest ) );
+            assertThat( index.get( "name", "Mattias" ), Contains.<Node>contains() );
+            
+            beginTx();
+            Node node1 = graphDb.createNode();
+            Node node2 = graphDb.createNode();
+            index.add( node1, "name", "Mattias" );
+            index.add( node1, "title", "Mattias" );
+            index.add( node2, "name", "Mattias" );
+            restartTx();
+            assertEquals( digest, keys.lookupStoredValue( resource, "Mattias" ) );
+            
+            index.remove( node1, "name", "Mattias" );
+            index.remove( node2 );
+            restartTx();
+            assertEquals( digest, keys.lookupStoredValue( resource, "Mattias" ) );
+            assertThat( index.get( "title", "Mattias" ), contains( node1 ) );
+            
+            index.remove( node1, "title" );
+            commitTx();
+            assertNull( keys.lookupStoredValue( resource, "Mattias" ) );
+            assertThat( index.get( "title", "Mattias" ), Contains.<Node>contains() );
+            
+            beginTx();
+            index.add( node2, "name", "Mattias" );
+            commitTx();
+            assertThat( index.get( "name", "Mattias" ), contains( node2 ) );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    @Test
+    public void makeSureAdditionsCanBeReadWithRangeSplitPostings()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE, "2" );
+        makeSureAdditionsCanBeRead( Neo4jTestCase.relIndex( graphDb, "additions-ranges", config ),
+                RELATIONSHIP_CREATOR );
+    }
+    
+    @Test
+    public void testRemoveWithoutKeyWithRangeSplitPostings() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE, "2" );
+        testRemoveWithoutKey( NODE_CREATOR, Neo4jTestCase.nodeIndex( graphDb, "remove-wo-k-ranges", config ) );
+    }
+    
+    @Test
+    public void makeSureAdditionsCanBeReadWithDeferredReads()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_DEFERRED_READS, "true" );
+        makeSureAdditionsCanBeRead( Neo4jTestCase.nodeIndex( graphDb, "additions-deferred", config ),
+                NODE_CREATOR );
+    }
+    
+    @Test
+    public void deferredReadsAreSentTogether() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_DEFERRED_READS, "true" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "deferred", config );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        index.add( node1, "name", "Mattias" );
+        index.add( node2, "name", "Tobias" );
+        restartTx();
+        
+        IndexHits<Node> mattias = index.get( "name", "Mattias" );
+        IndexHits<Node> tobias = index.get( "name", "Tobias" );
+        IndexHits<Node> johan = index.get( "name", "Johan" );
+        assertEquals( 1, tobias.size() );
+        assertThat( mattias, contains( node1 ) );
+        assertThat( tobias, contains( node2 ) );
+        assertThat( johan, Contains.<Node>contains() );
+    }
+    
+    @Test
+    public void prefixQueriesUnionTheMatchingValues() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PREFIX_QUERIES, "true" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "prefixes", config );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Node node3 = graphDb.createNode();
+        index.add( node1, "path", "/usr/local/bin" );
+        index.add( node1, "path", "/usr/local/lib" );
+        index.add( node2, "path", "/usr/local/libexec" );
+        index.add( node3, "path", "/usr/lib" );
+        index.add( node3, "path", "/usr/loc" );
+        restartTx();
+        
+        assertThat( index.query( "path", "/usr/local/*" ), contains( node1, node2 ) );
+        assertThat( index.query( "path", "/usr/local/lib*" ), contains( node1, node2 ) );
+        assertThat( index.query( "path", "/usr/l*" ), contains( node1, node2, node3 ) );
+        assertThat( index.query( "path", "/opt*" ), Contains.<Node>contains() );
+        assertThat( index.query( "name", "/usr*" ), Contains.<Node>contains() );
+        
+        index.remove( node2, "path", "/usr/local/libexec" );
+        restartTx();
+        assertThat( index.query( "path", "/usr/local/lib*" ), contains( node1 ) );
+        // The value without entities is gone after the query above
+        assertThat( index.query( "path", "/usr/local/lib*" ), contains( node1 ) );
+        finishTx( true );
+    }
+    
+    @Test
+    public void compoundQueriesIncludeTransactionState() throws Exception
+    {
+        Index<Node> index = nodeIndex( "compound" );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Node node3 = graphDb.createNode();
+        index.add( node1, "name", "Mattias" );
+        index.add( node1, "city", "Malmo" );
+        index.add( node2, "name", "Tobias" );
+        index.add( node2, "city", "Malmo" );
+        index.add( node3, "name", "Johan" );
+        index.add( node3, "city", "New York" );
+        restartTx();
+        
+        assertThat( index.query( "city:Malmo AND NOT name:Tobias" ), contains( node1 ) );
+        assertThat( index.query( "name:Johan OR (city:Malmo AND name:Tobias)" ), contains( node2, node3 ) );
+        assertThat( index.query( "city:\"New York\" AND name:Mattias" ), Contains.<Node>contains() );
+        assertThat( index.query( CompoundQuery.or( CompoundQuery.term( "city", "Malmo" ),
+                CompoundQuery.term( "city", "Lund" ) ) ), contains( node1, node2 ) );
+        
+        index.remove( node1, "city", "Malmo" );
+        index.add( node3, "city", "Malmo" );
+        index.add( node2, "name", "Johan" );
+        assertThat( index.query( "city:Malmo AND NOT name:Tobias" ), contains( node3 ) );
+        assertThat( index.query( "city:Malmo AND name:Johan" ), contains( node2, node3 ) );
+        restartTx();
+        assertThat( index.query( "city:Malmo AND NOT name:Tobias" ), contains( node3 ) );
+        assertThat( index.query( "city:Malmo AND name:Johan" ), contains( node2, node3 ) );
+        finishTx( true );
+    }
+    
+    @Test
+    public void orderedQueriesReturnTheWindowInSortOrder() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_SORT_KEYS, "age,name:text" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "ordered", config );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        Node node3 = graphDb.createNode();
+        Node node4 = graphDb.createNode();
+        index.add( node1, "city", "Malmo" );
+        index.add( node1, "age", 35 );
+        index.add( node1, "name", "Mattias" );
+        index.add( node2, "city", "Malmo" );
+        index.add( node2, "age", 9 );
+        index.add( node2, "name", "Tobias" );
+        index.add( node3, "city", "Malmo" );
+        index.add( node3, "age", 70 );
+        index.add( node3, "name", "Johan" );
+        index.add( node4, "city", "Lund" );
+        index.add( node4, "age", 20 );
+        restartTx();
+        
+        assertEquals( Arrays.asList( node2, node1, node3 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        assertEquals( Arrays.asList( node3, node1 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ).descending().limit( 2 ) ) ) );
+        assertEquals( Arrays.asList( node1, node2 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "name" ).limit( 1, 5 ) ) ) );
+        // Entities without a value for the sort key aren't hits
+        assertEquals( Arrays.asList( node3, node1 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo OR city:Lund", "name" ).limit( 2 ) ) ) );
+        assertEquals( Arrays.asList( node4.getId() ), IteratorUtil.asCollection(
+                ((RedisIndex<Node>) index).queryIds( OrderedQuery.orderBy( "city:Lund", "age" ) ) ) );
+        
+        index.remove( node1, "age", 35 );
+        index.add( node1, "age", 5 );
+        index.remove( node3 );
+        restartTx();
+        assertEquals( Arrays.asList( node1, node2 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        try
+        {
+            index.query( OrderedQuery.orderBy( "city:Malmo", "city" ) );
+            fail( "city isn't a sort key" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // Good
+        }
+        finishTx( true );
+    }
+    
+    @Test
+    public void entitiesStaySortedWhileTheyHaveValuesLeft() throws Exception
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( Neo4jTestCase.REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_SORT_KEYS, "age" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( graphDb, "ordered-multi", config );
+        beginTx();
+        Node node1 = graphDb.createNode();
+        Node node2 = graphDb.createNode();
+        index.add( node1, "city", "Malmo" );
+        index.add( node1, "age", 35 );
+        index.add( node1, "age", 36 );
+        index.add( node2, "city", "Malmo" );
+        index.add( node2, "age", 20 );
+        restartTx();
+        assertEquals( Arrays.asList( node2, node1 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        
+        index.remove( node1, "age", 36 );
+        restartTx();
+        assertEquals( Arrays.asList( node2, node1 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        
+        // The new value before removing the old one
+        index.add( node2, "age", 40 );
+        index.remove( node2, "age", 20 );
+        restartTx();
+        assertEquals( Arrays.asList( node1, node2 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        
+        index.remove( node1, "age", 35 );
+        restartTx();
+        assertEquals( Arrays.asList( node2 ), IteratorUtil.asCollection(
+                index.query( OrderedQuery.orderBy( "city:Malmo", "age" ) ) ) );
+        finishTx( true );
+    }
+    
     @Test
     public void nodeAndRelationshipIndexWithSameName() throws Exception
     {
@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.index.redis.Contains.contains;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+import redis.clients.jedis.Jedis;
+
+public class TestNumericIndex
+{
+    private static final String PATH = "target/var/numeric";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.NUMERIC;
+    private GraphDatabaseService db;
+    private Transaction tx;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        db.shutdown();
+    }
+    
+    private void beginTx()
+    {
+        tx = db.beginTx();
+    }
+    
+    private void finishTx( boolean success )
+    {
+        if ( success )
+        {
+            tx.success();
+        }
+        tx.finish();
+    }
+    
+    @Test
+    public void rangesAreQueriedInValueOrder()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "numeric-nodes", REDIS_CONFIG );
+        String key = "age";
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        Node d = db.createNode();
+        index.add( a, key, 45 );
+        index.add( b, key, 30 );
+        index.add( c, key, 12.5 );
+        index.add( d, key, "unknown" );
+        finishTx( true );
+        
+        assertEquals( Arrays.asList( b, a ), IteratorUtil.asCollection(
+                index.query( key, NumericRange.between( 30, 45 ) ) ) );
+        assertThat( index.query( key, NumericRange.greaterThan( 30 ) ), contains( a ) );
+        assertThat( index.query( key, NumericRange.lessThan( 30 ) ), contains( c ) );
+        assertThat( index.query( key, NumericRange.atMost( 30 ) ), contains( c, b ) );
+        assertThat( index.query( "height", NumericRange.atLeast( 0 ) ), Contains.<Node>contains() );
+        
+        // Still an exact match index
+        assertThat( index.get( key, "unknown" ), contains( d ) );
+        assertThat( index.get( key, 30 ), contains( b ) );
+    }
+    
+    @Test
+    public void removedValuesAreNoLongerInRanges()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "numeric-removals", REDIS_CONFIG );
+        String key = "score";
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, 1 );
+        index.add( a, key, 2 );
+        index.add( b, key, 3 );
+        index.add( c, key, 4 );
+        finishTx( true );
+        
+        // Two values in the range, but one hit
+        assertThat( index.query( key, NumericRange.between( 0, 10 ) ), contains( a, b, c ) );
+        
+        beginTx();
+        index.remove( a, key, 1 );
+        index.remove( b, key );
+        index.remove( c );
+        finishTx( true );
+        assertThat( index.query( key, NumericRange.between( 0, 10 ) ), contains( a ) );
+        assertThat( index.query( key, NumericRange.between( 0, 1.5 ) ), Contains.<Node>contains() );
+    }
+    
+    @Test
+    public void limitsAreAppliedAcrossPages()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "3" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "numeric-limits", config );
+        String key = "timestamp";
+        
+        beginTx();
+        Node[] nodes = new Node[20];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createNode();
+            index.add( nodes[i], key, 1000 + i );
+        }
+        finishTx( true );
+        
+        assertEquals( Arrays.asList( nodes ).subList( 5, 12 ), IteratorUtil.asCollection(
+                index.query( key, NumericRange.atLeast( 1000 ).limit( 5, 7 ) ) ) );
+        assertEquals( Arrays.asList( nodes ).subList( 18, 20 ), IteratorUtil.asCollection(
+                index.query( key, NumericRange.greaterThan( 1017 ).limit( 10 ) ) ) );
+        assertEquals( 20, IteratorUtil.asCollection(
+                ((RedisIndex<Node>) index).queryIds( key, NumericRange.atLeast( 0 ) ) ).size() );
+    }
+    
+    @Test
+    public void limitsCountEntitiesNotValues()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "numeric-distinct", REDIS_CONFIG );
+        String key = "score";
+        
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, 1 );
+        index.add( a, key, 2 );
+        index.add( b, key, 3 );
+        index.add( c, key, 4 );
+        finishTx( true );
+        
+        assertEquals( Arrays.asList( a, b ), IteratorUtil.asCollection(
+                index.query( key, NumericRange.atLeast( 0 ).limit( 2 ) ) ) );
+        assertEquals( Arrays.asList( b, c ), IteratorUtil.asCollection(
+                index.query( key, NumericRange.atLeast( 0 ).limit( 1, 2 ) ) ) );
+    }
+    
+    @Test
+    public void pagesResumeAfterTheLastEntryAcrossWrites()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "3" );
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "numeric-keyset", config );
+        String key = "timestamp";
+        
+        // Two entities per value
+        beginTx();
+        Node[] nodes = new Node[10];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = db.createNode();
+            index.add( nodes[i], key, 1000 + i / 2 );
+        }
+        finishTx( true );
+        
+        RedisDataSource dataSource = ((RedisIndex<Node>) index).getProvider().dataSource();
+        Jedis resource = dataSource.acquireResource();
+        try
+        {
+            if ( RedisDataSource.getTargetDatabase() != RedisDataSource.DEFAULT_DATABASE )
+            {
+                resource.select( RedisDataSource.getTargetDatabase() );
+            }
+            IdPages pages = dataSource.getRegistry().get( new IndexIdentifier( Node.class,
+                    index.getName() ) ).queryPages( resource, key, NumericRange.atLeast( 0 ) );
+            Set<Long> first = ids( pages.next( resource ) );
+            assertEquals( 3, first.size() );
+            assertTrue( first.contains( nodes[0].getId() ) );
+            assertTrue( first.contains( nodes[1].getId() ) );
+            
+            // The last entry read and its tie are removed, so are an entry
+            // not read yet and one already read, and entries are added
+            // before and after the last one read
+            beginTx();
+            index.remove( nodes[2], key, 1001 );
+            index.remove( nodes[3], key, 1001 );
+            index.remove( nodes[0], key, 1000 );
+            index.remove( nodes[7], key, 1003 );
+            Node before = db.createNode();
+            index.add( before, key, 999 );
+            Node after = db.createNode();
+            index.add( after, key, 1004 );
+            finishTx( true );
+            
+            List<Long> rest = new ArrayList<Long>();
+            for ( long[] page = pages.next( resource ); page != null; page = pages.next( resource ) )
+            {
+                rest.addAll( ids( page ) );
+            }
+            Set<Long> expected = ids( new long[] { nodes[4].getId(), nodes[5].getId(),
+                    nodes[6].getId(), nodes[8].getId(), nodes[9].getId(), after.getId() } );
+            assertEquals( expected, new HashSet<Long>( rest ) );
+            assertEquals( expected.size(), rest.size() );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    private static Set<Long> ids( long[] ids )
+    {
+        Set<Long> set = new HashSet<Long>();
+        for ( long id : ids )
+        {
+            set.add( id );
+        }
+        return set;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.index.redis.RedisIndexImplementation.CONFIG_KEY_INDEX_ID;
+import static org.neo4j.index.redis.RedisIndexImplementation.CONFIG_KEY_KEY_FORMAT;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.index.base.IndexIdentifier;
+
+public class TestNumericValues
+{
+    @Test
+    public void onlyFiniteNumbersAreScored()
+    {
+        assertEquals( Double.valueOf( 30 ), NumericValues.score( "30" ) );
+        assertEquals( Double.valueOf( -1.5 ), NumericValues.score( "-1.5" ) );
+        assertNull( NumericValues.score( "thirty" ) );
+        assertNull( NumericValues.score( "NaN" ) );
+        assertNull( NumericValues.score( "Infinity" ) );
+    }
+
+    @Test
+    public void membersHoldTheIdAndTellValuesApart()
+    {
+        for ( KeyFormat format : KeyFormat.values() )
+        {
+            RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "index" ), stringMap(
+                    CONFIG_KEY_KEY_FORMAT, format.name(), CONFIG_KEY_INDEX_ID, "1" ) );
+            for ( long id : new long[] { 0, 12, 300, Long.MAX_VALUE } )
+            {
+                assertEquals( id, NumericValues.id( keys, NumericValues.member( keys, id, "42" ) ) );
+            }
+            assertFalse( Arrays.equals( NumericValues.member( keys, 1, "2" ),
+                    NumericValues.member( keys, 1, "2.0" ) ) );
+        }
+    }
+
+    @Test
+    public void membersKeepTheScoreOfTheirValue()
+    {
+        RedisKeys keys = new RedisKeys( new IndexIdentifier( Node.class, "index" ), stringMap(
+                CONFIG_KEY_KEY_FORMAT, KeyFormat.binary.name(), CONFIG_KEY_INDEX_ID, "1" ) );
+        for ( String value : new String[] { "42", "-1.5", "1e300", "0" } )
+        {
+            assertEquals( NumericValues.score( value ).doubleValue(),
+                    NumericValues.score( NumericValues.member( keys, 300, value ) ), 0 );
+        }
+    }
+
+    @Test
+    public void membersAreComparedAsUnsignedBytes()
+    {
+        assertTrue( Bytes.compare( new byte[] { (byte) 0x80 }, new byte[] { 0x7F } ) > 0 );
+        assertTrue( Bytes.compare( new byte[] { 1 }, new byte[] { 1, 0 } ) < 0 );
+        assertEquals( 0, Bytes.compare( new byte[] { 1, 2 }, new byte[] { 1, 2 } ) );
+    }
+
+    @Test
+    public void exclusiveBoundsAreTheNextNumbers()
+    {
+        NumericRange range = NumericRange.between( 1, false, 2, false );
+        assertEquals( Math.nextUp( 1.0 ), range.getMin(), 0 );
+        assertEquals( Math.nextAfter( 2.0, 0 ), range.getMax(), 0 );
+        assertEquals( -1, range.getCount() );
+        assertEquals( 5, range.limit( 5, 10 ).getOffset() );
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+public class TestPagedIndexHits
+{
+    private static final String PATH = "target/var/paged";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.MULTIPLE_VALUES;
+    private GraphDatabaseService db;
+    private Transaction tx;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        db.shutdown();
+    }
+    
+    private void beginTx()
+    {
+        tx = db.beginTx();
+    }
+    
+    private void finishTx( boolean success )
+    {
+        if ( success )
+        {
+            tx.success();
+        }
+        tx.finish();
+    }
+    
+    private void restartTx()
+    {
+        finishTx( true );
+        beginTx();
+    }
+    
+    /**
+     * Four ids per range and one range per page, so the hits span many pages.
+     */
+    private Index<Node> rangedIndex( String name )
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_POSTING_RANGE_SIZE, "4",
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "4" );
+        return Neo4jTestCase.nodeIndex( db, name, config );
+    }
+    
+    private Set<Node> addUsers( Index<Node> index, int count )
+    {
+        Set<Node> nodes = new HashSet<Node>();
+        for ( int i = 0; i < count; i++ )
+        {
+            Node node = db.createNode();
+            index.add( node, "type", "user" );
+            nodes.add( node );
+        }
+        return nodes;
+    }
+    
+    private void assertSizedAndIteratedOverPages( Index<Node> index, Set<Node> expected )
+    {
+        IndexHits<Node> hits = index.get( "type", "user" );
+        assertEquals( expected.size(), hits.size() );
+        Set<Node> found = new HashSet<Node>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            found.add( hits.next() );
+        }
+        assertEquals( expected.size(), hits.size() );
+        while ( hits.hasNext() )
+        {
+            assertTrue( found.add( hits.next() ) );
+        }
+        assertEquals( expected, found );
+        assertEquals( expected.size(), hits.size() );
+        hits.close();
+    }
+    
+    private void sizeAndIterateWithTransactionState( Index<Node> index )
+    {
+        beginTx();
+        Set<Node> nodes = addUsers( index, 50 );
+        restartTx();
+        Node removed = nodes.iterator().next();
+        index.remove( removed, "type", "user" );
+        nodes.remove( removed );
+        Node added = db.createNode();
+        index.add( added, "type", "user" );
+        nodes.add( added );
+        
+        assertSizedAndIteratedOverPages( index, nodes );
+        finishTx( true );
+        assertSizedAndIteratedOverPages( index, nodes );
+    }
+    
+    @Test
+    public void rangedSetPostingsAreReadAPageAtATime()
+    {
+        sizeAndIterateWithTransactionState( rangedIndex( "paged-ranges" ) );
+    }
+    
+    @Test
+    public void plainSetPostingsAreReadInOnePage()
+    {
+        Map<String, String> config = MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PAGE_SIZE, "4" );
+        sizeAndIterateWithTransactionState( Neo4jTestCase.nodeIndex( db, "paged-plain", config ) );
+    }
+    
+    @Test( timeout = 60000 )
+    public void closingWithAPrefetchInFlightReleasesItsConnection()
+    {
+        Index<Node> index = rangedIndex( "paged-close" );
+        beginTx();
+        Set<Node> nodes = addUsers( index, 50 );
+        finishTx( true );
+        
+        // More rounds than there are connections in the pool, so a prefetch
+        // which held on to its connection would have this block
+        for ( int i = 0; i < 50; i++ )
+        {
+            IndexHits<Node> hits = index.get( "type", "user" );
+            assertTrue( nodes.contains( hits.next() ) );
+            hits.close();
+            assertFalse( hits.hasNext() );
+        }
+        assertEquals( nodes, new HashSet<Node>( IteratorUtil.asCollection( index.get( "type", "user" ) ) ) );
+    }
+    
+    @Test( timeout = 60000 )
+    public void prefetchesBeyondTheThreadLimitAreReadOnTheCallersThread() throws Exception
+    {
+        ExecutorService executor = RedisDataSource.newReadExecutor( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Future<Thread> busy = executor.submit( new Callable<Thread>()
+        {
+            public Thread call() throws Exception
+            {
+                release.await();
+                return Thread.currentThread();
+            }
+        } );
+        Callable<Thread> reader = new Callable<Thread>()
+        {
+            public Thread call()
+            {
+                return Thread.currentThread();
+            }
+        };
+        Future<Thread> overflow = executor.submit( reader );
+        assertTrue( overflow.isDone() );
+        assertEquals( Thread.currentThread(), overflow.get() );
+        release.countDown();
+        assertFalse( Thread.currentThread().equals( busy.get() ) );
+        
+        executor.shutdownNow();
+        try
+        {
+            executor.submit( reader );
+            fail( "Should reject prefetches once closed" );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // Good
+        }
+    }
+}
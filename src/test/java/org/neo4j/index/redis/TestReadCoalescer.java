@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestReadCoalescer
+{
+    @Test
+    public void concurrentIdenticalReadsShareOneCall() throws Exception
+    {
+        final ReadCoalescer coalescer = new ReadCoalescer();
+        final CountDownLatch reading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger calls = new AtomicInteger();
+        final long[] result = new long[] { 1, 2, 3 };
+        final Callable<long[]> reader = new Callable<long[]>()
+        {
+            public long[] call() throws Exception
+            {
+                calls.incrementAndGet();
+                reading.countDown();
+                release.await();
+                return result;
+            }
+        };
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<long[]> first = executor.submit( new Callable<long[]>()
+            {
+                public long[] call()
+                {
+                    return coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader );
+                }
+            } );
+            reading.await();
+            Future<long[]> second = executor.submit( new Callable<long[]>()
+            {
+                public long[] call()
+                {
+                    return coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader );
+                }
+            } );
+            while ( coalescer.getCoalescedReads() == 0 )
+            {
+                Thread.sleep( 1 );
+            }
+            release.countDown();
+            assertSame( result, first.get( 10, TimeUnit.SECONDS ) );
+            assertSame( result, second.get( 10, TimeUnit.SECONDS ) );
+            assertEquals( 1, calls.get() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void readsAfterACommitDontJoinReadsStartedBeforeIt() throws Exception
+    {
+        final ReadCoalescer coalescer = new ReadCoalescer();
+        final CountDownLatch reading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> reader = new Callable<Integer>()
+        {
+            public Integer call() throws Exception
+            {
+                int call = calls.incrementAndGet();
+                if ( call == 1 )
+                {
+                    reading.countDown();
+                    release.await();
+                }
+                return call;
+            }
+        };
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 1 );
+        try
+        {
+            Future<Integer> first = executor.submit( new Callable<Integer>()
+            {
+                public Integer call()
+                {
+                    return coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader );
+                }
+            } );
+            reading.await();
+            coalescer.committed();
+            
+            // Doesn't wait for the first read, which might not see the commit
+            assertEquals( 2, coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader ).intValue() );
+            assertEquals( 0, coalescer.getCoalescedReads() );
+            release.countDown();
+            assertEquals( 1, first.get( 10, TimeUnit.SECONDS ).intValue() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void completedReadsAreNotReused()
+    {
+        ReadCoalescer coalescer = new ReadCoalescer();
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Integer> reader = new Callable<Integer>()
+        {
+            public Integer call()
+            {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals( 1, coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader ).intValue() );
+        assertEquals( 2, coalescer.read( ReadCoalescer.key( new byte[] { 1 } ), reader ).intValue() );
+        assertEquals( 3, coalescer.read( ReadCoalescer.key( new byte[] { 2 } ), reader ).intValue() );
+        assertEquals( 0, coalescer.getCoalescedReads() );
+    }
+    
+    @Test( expected = IllegalStateException.class )
+    public void failuresArePropagated()
+    {
+        new ReadCoalescer().read( ReadCoalescer.key( new byte[] { 1 } ), new Callable<Object>()
+        {
+            public Object call()
+            {
+                throw new IllegalStateException();
+            }
+        } );
+    }
+}
@@ -24,6 +24,8 @@ import static org.junit.Assert.assertNull;
 import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.After;
@@ -34,6 +36,9 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 
 public class TestSingleValueIndex
@@ -77,13 +82,18 @@ public class TestSingleValueIndex
     }
     
     private Index<Node> nodeIndex( String name )
+    {
+        return nodeIndex( name, REDIS_CONFIG );
+    }
+    
+    private Index<Node> nodeIndex( String name, Map<String, String> config )
     {
         // Create/delete it because of the nature of redis... it's a server
         // and its indexes are there even after a test and we've cleared the db
         Transaction tx = db.beginTx();
         try
         {
-            Index<Node> index = db.index().forNodes( name, REDIS_CONFIG );
+            Index<Node> index = db.index().forNodes( name, config );
             index.delete();
             tx.success();
         }
@@ -91,13 +101,24 @@ public class TestSingleValueIndex
         {
             tx.finish();
         }
-        return db.index().forNodes( name, REDIS_CONFIG );
+        return db.index().forNodes( name, config );
     }
     
     @Test
     public void basic()
     {
-        Index<Node> index = nodeIndex( "basic" );
+        basic( nodeIndex( "basic" ) );
+    }
+    
+    @Test
+    public void basicBucketed()
+    {
+        basic( nodeIndex( "basic-bucketed", MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_BUCKETS, "64" ) ) );
+    }
+    
+    private void basic( Index<Node> index )
+    {
         String key = "key";
         
         beginTx();
@@ -162,6 +183,52 @@ public class TestSingleValueIndex
         assertNull( index.get( key, value ).getSingle() );
     }
 
+    @Test
+    public void getManyMergesCommittedAndTransactionState() throws Exception
+    {
+        RedisSingleValueIndex<Node> index = (RedisSingleValueIndex<Node>) nodeIndex( "get-many" );
+        String key = "key";
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, "1" );
+        index.add( b, key, "2" );
+        restartTx();
+        
+        index.remove( b, key, "2" );
+        index.add( c, key, "3" );
+        Map<Object, IndexHits<Node>> hits = index.getMany( key, Arrays.asList( "1", "2", "3", "4" ) );
+        assertEquals( a, hits.get( "1" ).getSingle() );
+        assertNull( hits.get( "2" ).getSingle() );
+        assertEquals( c, hits.get( "3" ).getSingle() );
+        assertNull( hits.get( "4" ).getSingle() );
+        finishTx( true );
+    }
+
+    @Test
+    public void prefixQueriesFindTheMatchingValues() throws Exception
+    {
+        Index<Node> index = nodeIndex( "prefixes", MapUtil.stringMap( new HashMap<String, String>( REDIS_CONFIG ),
+                RedisIndexImplementation.CONFIG_KEY_PREFIX_QUERIES, "true" ) );
+        String key = "sku";
+        beginTx();
+        Node a = db.createNode();
+        Node b = db.createNode();
+        Node c = db.createNode();
+        index.add( a, key, "AB-100" );
+        index.add( b, key, "AB-200" );
+        index.add( c, key, "AC-100" );
+        restartTx();
+        
+        assertEquals( 2, IteratorUtil.asCollection( index.query( key, "AB-*" ) ).size() );
+        assertEquals( c, index.query( key, "AC*" ).getSingle() );
+        index.remove( a, key, "AB-100" );
+        restartTx();
+        assertEquals( b, index.query( key, "AB*" ).getSingle() );
+        finishTx( true );
+    }
+
     @Ignore
     @Test
     public void testInsertionSpeed()
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class TestSortKeys
+{
+    @Test
+    public void keysAreNumericUnlessSaidOtherwise()
+    {
+        SortKeys sortKeys = SortKeys.parse( "age, name:text ,height:numeric" );
+        assertEquals( SortKeys.Kind.numeric, sortKeys.kind( "age" ) );
+        assertEquals( SortKeys.Kind.text, sortKeys.kind( "name" ) );
+        assertEquals( SortKeys.Kind.numeric, sortKeys.kind( "height" ) );
+        assertNull( sortKeys.kind( "city" ) );
+        assertTrue( SortKeys.parse( null ).isEmpty() );
+        assertTrue( SortKeys.parse( " " ).isEmpty() );
+    }
+
+    @Test
+    public void invalidSpecsAreRejected()
+    {
+        for ( String spec : new String[] { "age:date", ":text", "age,,name" } )
+        {
+            try
+            {
+                SortKeys.parse( spec );
+                fail( spec );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // Good
+            }
+        }
+    }
+
+    @Test
+    public void scoresFollowTheValueOrder()
+    {
+        assertNull( SortKeys.Kind.numeric.score( "unknown" ) );
+        assertTrue( SortKeys.Kind.numeric.score( "-3" ) < SortKeys.Kind.numeric.score( "2.5" ) );
+        assertTrue( SortKeys.Kind.numeric.score( "2.5" ) < SortKeys.Kind.numeric.score( "10" ) );
+        assertTrue( SortKeys.Kind.text.score( "10" ) < SortKeys.Kind.text.score( "2.5" ) );
+        assertTrue( SortKeys.Kind.text.score( "Anna" ) < SortKeys.Kind.text.score( "Bertil" ) );
+        assertTrue( SortKeys.Kind.text.score( "Ann" ) < SortKeys.Kind.text.score( "Anna" ) );
+        assertEquals( SortKeys.Kind.text.score( "Annabel" ), SortKeys.Kind.text.score( "Annabelle" ) );
+    }
+}
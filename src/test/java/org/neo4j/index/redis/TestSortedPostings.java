@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.index.redis.SortedPostings.gallop;
+
+import org.junit.Test;
+
+public class TestSortedPostings
+{
+    private static final long[] IDS = new long[] { 1, 3, 5, 7, 9, 11, 13, 15, 17, 19, 21 };
+
+    @Test
+    public void gallopsToTheFirstIdAtLeastTheTarget()
+    {
+        assertEquals( 0, gallop( IDS, 0, 0 ) );
+        assertEquals( 0, gallop( IDS, 0, 1 ) );
+        assertEquals( 1, gallop( IDS, 0, 2 ) );
+        assertEquals( 5, gallop( IDS, 0, 11 ) );
+        assertEquals( 10, gallop( IDS, 0, 20 ) );
+        assertEquals( 10, gallop( IDS, 0, 21 ) );
+    }
+
+    @Test
+    public void gallopsFromTheGivenPosition()
+    {
+        assertEquals( 4, gallop( IDS, 4, 2 ) );
+        assertEquals( 7, gallop( IDS, 4, 14 ) );
+    }
+
+    @Test
+    public void gallopsPastTheEndIfThereIsNoSuchId()
+    {
+        assertEquals( IDS.length, gallop( IDS, 0, 22 ) );
+        assertEquals( 0, gallop( new long[0], 0, 5 ) );
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.index.redis.Bytes.encode;
+
+import org.junit.Test;
+
+public class TestSortedValues
+{
+    @Test
+    public void scoresFollowTheByteOrderOfValues()
+    {
+        String[] sorted = new String[] { "", "a", "ab", "abcdef", "abcdeg", "abd", "b", "\u00e5" };
+        for ( int i = 1; i < sorted.length; i++ )
+        {
+            assertTrue( SortedValues.score( encode( sorted[i - 1] ), 0 ) <=
+                    SortedValues.score( encode( sorted[i] ), 0 ) );
+            assertTrue( Bytes.compare( encode( sorted[i - 1] ), encode( sorted[i] ) ) < 0 );
+        }
+        // Only the first bytes are scored
+        assertEquals( SortedValues.score( encode( "abcdefx" ), 0 ), SortedValues.score( encode( "abcdefy" ), 0 ), 0 );
+    }
+
+    @Test
+    public void prefixRangeCoversAllValuesWithThePrefix()
+    {
+        byte[] prefix = encode( "ab" );
+        double min = SortedValues.score( prefix, 0 );
+        double max = SortedValues.score( prefix, 0xFF );
+        for ( String value : new String[] { "ab", "ab\u0000", "abc", "ab\u00ff\u00ff\u00ff\u00ff" } )
+        {
+            double score = SortedValues.score( encode( value ), 0 );
+            assertTrue( value, score >= min && score <= max );
+            assertTrue( SortedValues.startsWith( encode( value ), prefix ) );
+        }
+        assertTrue( SortedValues.score( encode( "ac" ), 0 ) > max );
+        assertFalse( SortedValues.startsWith( encode( "a" ), prefix ) );
+    }
+
+    @Test
+    public void onlyTrailingWildcardsArePrefixQueries()
+    {
+        assertEquals( "abc", SortedValues.prefix( "abc*" ) );
+        assertEquals( "", SortedValues.prefix( "*" ) );
+        assertNull( SortedValues.prefix( "abc" ) );
+        assertNull( SortedValues.prefix( "a*c*" ) );
+        assertNull( SortedValues.prefix( "*bc" ) );
+        assertNull( SortedValues.prefix( 10 ) );
+    }
+}
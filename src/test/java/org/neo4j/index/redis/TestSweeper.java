@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.index.redis.Bytes.encode;
+import static org.neo4j.index.redis.Neo4jTestCase.deleteFileOrDirectory;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.base.IndexIdentifier;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+import redis.clients.jedis.Jedis;
+
+public class TestSweeper
+{
+    private static final String PATH = "target/var/sweeper";
+    private static final Map<String, String> REDIS_CONFIG = RedisIndexImplementation.MULTIPLE_VALUES;
+    private static final String THREAD_NAME = "Redis index sweeper";
+    
+    // Running, but sleeping through the tests which sweep themselves
+    private static final Map<String, String> SWEEPING = stringMap(
+            RedisDataSource.SWEEPER_PREFIX + "enabled", "true",
+            RedisDataSource.SWEEPER_PREFIX + "interval", "3600000" );
+    private GraphDatabaseService db;
+    
+    @Before
+    public void doBefore()
+    {
+        deleteFileOrDirectory( new File( PATH ) );
+        db = new EmbeddedGraphDatabase( PATH, SWEEPING );
+    }
+    
+    @After
+    public void doAfter()
+    {
+        if ( db != null )
+        {
+            db.shutdown();
+        }
+    }
+    
+    private static RedisDataSource dataSource( Index<Node> index )
+    {
+        return ((RedisIndex<Node>) index).getProvider().dataSource();
+    }
+    
+    private static RedisKeys keys( Index<Node> index )
+    {
+        return dataSource( index ).getKeys( new IndexIdentifier( Node.class, index.getName() ) );
+    }
+    
+    private static Jedis select( Jedis resource )
+    {
+        if ( RedisDataSource.getTargetDatabase() != RedisDataSource.DEFAULT_DATABASE )
+        {
+            resource.select( RedisDataSource.getTargetDatabase() );
+        }
+        return resource;
+    }
+    
+    private static boolean isMember( Jedis resource, byte[] key, byte[] member )
+    {
+        return resource.sismember( key, member );
+    }
+    
+    private Node orphanKey( Index<Node> index, String key, String value )
+    {
+        // Nothing left over from earlier runs
+        RedisDataSource dataSource = dataSource( index );
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            resource.del( keys( index ).sweepCandidates() );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+        
+        Transaction tx = db.beginTx();
+        Node node = db.createNode();
+        index.add( node, key, value );
+        tx.success();
+        tx.finish();
+        
+        tx = db.beginTx();
+        index.remove( node, key, value );
+        tx.success();
+        tx.finish();
+        return node;
+    }
+    
+    private static boolean sweeperThreadAlive()
+    {
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.getName().equals( THREAD_NAME ) && thread.isAlive() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Test
+    public void isOffByDefault()
+    {
+        db.shutdown();
+        db = new EmbeddedGraphDatabase( PATH );
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "sweeper-off", REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        assertNull( dataSource.getSweeper() );
+        assertFalse( sweeperThreadAlive() );
+        
+        // Nothing would ever pop the candidates
+        Node node = orphanKey( index, "name", "a" );
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            assertTrue( isMember( resource, keys( index ).entityRemoval( node.getId() ), encode( "name" ) ) );
+            assertFalse( resource.exists( keys( index ).sweepCandidates() ) );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    @Test
+    public void keysWithoutValuesAreSwept()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "sweeper-empty", REDIS_CONFIG );
+        RedisDataSource dataSource = dataSource( index );
+        RedisKeys keys = keys( index );
+        Node node = orphanKey( index, "name", "a" );
+        
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            assertTrue( isMember( resource, keys.entityRemoval( node.getId() ), encode( "name" ) ) );
+            Sweeper sweeper = new Sweeper( dataSource, 10, 10, 1000 );
+            assertEquals( 1, sweeper.sweep() );
+            assertEquals( 1, sweeper.getPrunedEntries() );
+            assertEquals( 0, sweeper.getConflicts() );
+            assertFalse( isMember( resource, keys.entityRemoval( node.getId() ), encode( "name" ) ) );
+            assertEquals( 0, resource.scard( keys.sweepCandidates() ).intValue() );
+            assertEquals( 0, sweeper.sweep() );
+        }
+        finally
+        {
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    @Test
+    public void entitiesWrittenToWhileBeingSweptAreLeftAlone()
+    {
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "sweeper-race", REDIS_CONFIG );
+        final RedisDataSource dataSource = dataSource( index );
+        final RedisKeys keys = keys( index );
+        final Node node = orphanKey( index, "name", "a" );
+        
+        // Adds a value for the key again between the SPOP and the EXEC
+        Jedis racing = new Jedis( RedisDataSource.DEFAULT_HOST, RedisDataSource.DEFAULT_PORT )
+        {
+            @Override
+            public redis.clients.jedis.Transaction multi()
+            {
+                Jedis other = TestSweeper.select( dataSource.acquireResource() );
+                try
+                {
+                    other.sadd( keys.entityAndKeyRemoval( "name", node.getId() ), encode( "b" ) );
+                }
+                finally
+                {
+                    dataSource.releaseResource( other );
+                }
+                return super.multi();
+            }
+        };
+        Jedis resource = select( dataSource.acquireResource() );
+        try
+        {
+            TestSweeper.select( racing );
+            Sweeper sweeper = new Sweeper( dataSource, 10, 10, 1000 );
+            long id = keys.id( racing.spop( keys.sweepCandidates() ) );
+            assertEquals( node.getId(), id );
+            sweeper.sweepEntity( racing, keys, id );
+            assertEquals( 1, sweeper.getConflicts() );
+            assertEquals( 0, sweeper.getPrunedEntries() );
+            assertTrue( isMember( resource, keys.entityRemoval( node.getId() ), encode( "name" ) ) );
+            
+            // Put back, and left alone by the next pass since it has a value again
+            assertTrue( isMember( resource, keys.sweepCandidates(), keys.id( node.getId() ) ) );
+            assertEquals( 1, sweeper.sweep() );
+            assertEquals( 0, sweeper.getPrunedEntries() );
+            assertTrue( isMember( resource, keys.entityRemoval( node.getId() ), encode( "name" ) ) );
+        }
+        finally
+        {
+            racing.disconnect();
+            dataSource.releaseResource( resource );
+        }
+    }
+    
+    @Test
+    public void pauseBacksOffWhileRedisIsSlow()
+    {
+        Sweeper sweeper = new Sweeper( null, 10, 100, 5 );
+        assertEquals( 100, sweeper.getPause() );
+        sweeper.adjustPause( 6 );
+        assertEquals( 200, sweeper.getPause() );
+        sweeper.adjustPause( 50 );
+        assertEquals( 400, sweeper.getPause() );
+        for ( int i = 0; i < 20; i++ )
+        {
+            sweeper.adjustPause( 50 );
+        }
+        assertEquals( 60000, sweeper.getPause() );
+        
+        // Recovers towards the interval, but never below it
+        sweeper.adjustPause( 5 );
+        assertEquals( 30000, sweeper.getPause() );
+        for ( int i = 0; i < 20; i++ )
+        {
+            sweeper.adjustPause( 1 );
+        }
+        assertEquals( 100, sweeper.getPause() );
+    }
+    
+    @Test
+    public void threadStopsOnShutdown()
+    {
+        db.shutdown();
+        db = new EmbeddedGraphDatabase( PATH, stringMap(
+                RedisDataSource.SWEEPER_PREFIX + "enabled", "true",
+                RedisDataSource.SWEEPER_PREFIX + "interval", "10" ) );
+        Index<Node> index = Neo4jTestCase.nodeIndex( db, "sweeper-shutdown", REDIS_CONFIG );
+        Sweeper sweeper = dataSource( index ).getSweeper();
+        assertNotNull( sweeper );
+        assertTrue( sweeperThreadAlive() );
+        orphanKey( index, "name", "a" );
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( sweeper.getPrunedEntries() == 0 && System.currentTimeMillis() < deadline )
+        {
+            Thread.yield();
+        }
+        assertTrue( sweeper.getPrunedEntries() > 0 );
+        
+        db.shutdown();
+        db = null;
+        assertFalse( sweeperThreadAlive() );
+    }
+}
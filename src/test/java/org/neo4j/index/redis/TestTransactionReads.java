@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.index.base.IndexIdentifier;
+
+public class TestTransactionReads
+{
+    private static final IndexIdentifier NODES = new IndexIdentifier( Node.class, "index" );
+    private static final IndexIdentifier RELATIONSHIPS = new IndexIdentifier( Relationship.class, "index" );
+
+    @Test
+    public void readsAreKeptPerIndexKeyAndRead()
+    {
+        TransactionReads reads = new TransactionReads();
+        long[] ids = new long[] { 1, 2 };
+        reads.put( NODES, "name", "Mattias", ids );
+        reads.put( NODES, "name", "Tobias", TransactionReads.NONE );
+        assertEquals( ids, reads.get( NODES, "name", "Mattias" ) );
+        assertEquals( TransactionReads.NONE, reads.get( NODES, "name", "Tobias" ) );
+        assertNull( reads.get( NODES, "title", "Mattias" ) );
+        assertNull( reads.get( RELATIONSHIPS, "name", "Mattias" ) );
+    }
+
+    @Test
+    public void writingToAKeyForgetsItsReads()
+    {
+        TransactionReads reads = new TransactionReads();
+        reads.put( NODES, "name", "Mattias", 1L );
+        reads.put( NODES, "title", "Hacker", 1L );
+        reads.put( NODES, null, "by-node", 1L );
+        reads.put( RELATIONSHIPS, "name", "Mattias", 1L );
+        reads.invalidate( NODES, "name" );
+        assertNull( reads.get( NODES, "name", "Mattias" ) );
+        assertNull( reads.get( NODES, null, "by-node" ) );
+        assertEquals( 1L, reads.get( NODES, "title", "Hacker" ) );
+        assertEquals( 1L, reads.get( RELATIONSHIPS, "name", "Mattias" ) );
+    }
+
+    @Test
+    public void removingWithoutKeyForgetsAllReadsOfTheIndex()
+    {
+        TransactionReads reads = new TransactionReads();
+        reads.put( NODES, "name", "Mattias", 1L );
+        reads.put( NODES, "title", "Hacker", 1L );
+        reads.put( RELATIONSHIPS, "name", "Mattias", 1L );
+        reads.invalidate( NODES, null );
+        assertNull( reads.get( NODES, "name", "Mattias" ) );
+        assertNull( reads.get( NODES, "title", "Hacker" ) );
+        assertEquals( 1L, reads.get( RELATIONSHIPS, "name", "Mattias" ) );
+    }
+}